@@ -0,0 +1,4 @@
+CREATE TABLE KeyTest (
+    key_id INTEGER PRIMARY KEY,
+    key_name VARCHAR(20) NOT NULL
+    );
@@ -0,0 +1,88 @@
+/**
+ *
+ */
+package org.theseed.erdb.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.sql.SQLException;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.theseed.java.erdb.DbBaseUpdate;
+import org.theseed.java.erdb.DbValue;
+
+/**
+ * This is a reject handler for error-tolerant loads that writes the rejected rows to a tab-delimited
+ * file.  Each output line contains the table name, the error message, and then the field values in
+ * the form "name=value".  Values that have no string representation (such as double arrays) are
+ * written as "(blob)".  Tabs and line breaks in the message and values are converted to spaces, so that
+ * each rejected row occupies exactly one line.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class RejectFileWriter implements DbBaseUpdate.IRejectHandler, AutoCloseable {
+
+    // FIELDS
+    /** output writer for the reject file */
+    private PrintWriter writer;
+    /** number of rows written */
+    private int count;
+
+    /**
+     * Open a reject file for output.
+     *
+     * @param outFile	file to receive the rejected rows
+     *
+     * @throws IOException
+     */
+    public RejectFileWriter(File outFile) throws IOException {
+        this.writer = new PrintWriter(outFile);
+        this.count = 0;
+    }
+
+    @Override
+    public synchronized void reject(String table, Map<String, DbValue> row, SQLException error) {
+        StringBuilder line = new StringBuilder(100);
+        line.append(table).append('\t').append(clean(error.getMessage()));
+        for (Map.Entry<String, DbValue> fieldEntry : row.entrySet()) {
+            line.append('\t').append(fieldEntry.getKey()).append('=');
+            DbValue value = fieldEntry.getValue();
+            if (value.isNull())
+                line.append("(null)");
+            else {
+                try {
+                    line.append(clean(value.getString()));
+                } catch (SQLException e) {
+                    line.append("(blob)");
+                }
+            }
+        }
+        this.writer.println(line.toString());
+        this.count++;
+    }
+
+    /**
+     * @return a string with its tabs and line breaks converted to spaces
+     *
+     * @param text		string to clean (may be NULL)
+     */
+    private static String clean(String text) {
+        return StringUtils.replaceChars(text, "\t\r\n", "   ");
+    }
+
+    /**
+     * @return the number of rows written to the reject file
+     */
+    public int getCount() {
+        return this.count;
+    }
+
+    @Override
+    public void close() {
+        this.writer.close();
+    }
+
+}
@@ -0,0 +1,311 @@
+/**
+ *
+ */
+package org.theseed.java.erdb;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * This object performs an aggregate query inside the database.  It is created from a {@link DbQuery}, whose
+ * table path and filters determine the records being aggregated.  The client then specifies grouping fields
+ * and aggregate functions using a fluent interface.  Each record returned contains the grouping fields, named
+ * by their field specs, followed by the aggregate values.  An aggregate value is named by its function and
+ * argument (e.g. "COUNT(*)" or "AVG(RnaSample.quality)"), unless it is renamed using {@link #as(String)}.
+ *
+ * If there are no grouping fields, a single record is returned.  The records are returned in no particular
+ * order.  The aggregation uses the parameter values in the parent query at the time it is executed, so it can be
+ * executed multiple times with different parameters.
+ *
+ * COUNT values are returned as integers, SUM and AVG values as floating-point numbers, and MIN and MAX values
+ * with the type of the underlying field.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class DbAggregation implements AutoCloseable, Iterable<DbRecord> {
+
+    // FIELDS
+    /** query whose records are being aggregated */
+    private DbQuery query;
+    /** database connection */
+    private DbConnection db;
+    /** select list being built */
+    private SqlBuffer selectList;
+    /** GROUP BY clause being built */
+    private SqlBuffer groupByClause;
+    /** list of names for the returned values */
+    private List<String> names;
+    /** list of types for the returned values */
+    private List<DbType> types;
+    /** set of names already used */
+    private Set<String> namesUsed;
+    /** number of grouping fields */
+    private int groupCount;
+    /** prepared statement for the aggregation, or NULL if it has not been prepared */
+    private PreparedStatement stmt;
+
+    /**
+     * Create an aggregation for a query.
+     *
+     * @param query		query whose records are to be aggregated
+     */
+    protected DbAggregation(DbQuery query) {
+        this.query = query;
+        this.db = query.getDb();
+        this.selectList = new SqlBuffer(this.db).startList();
+        this.groupByClause = new SqlBuffer(this.db).startList();
+        this.names = new ArrayList<>();
+        this.types = new ArrayList<>();
+        this.namesUsed = new HashSet<>();
+        this.groupCount = 0;
+        this.stmt = null;
+    }
+
+    /**
+     * Add grouping fields to the aggregation.
+     *
+     * @param fields	field specs (table.field) for the grouping fields
+     *
+     * @return this object, for fluent invocation
+     *
+     * @throws SQLException
+     */
+    public DbAggregation groupBy(String... fields) throws SQLException {
+        if (this.names.size() > this.groupCount)
+            throw new SQLException("Grouping fields must be specified before aggregate functions.");
+        for (String field : fields) {
+            DbTable.Field descriptor = this.query.getQueryField(field);
+            if (! descriptor.getType().isComparable())
+                throw new SQLException("Field \"" + field + "\" cannot be used for grouping.");
+            this.addValue(field, descriptor.getType());
+            this.selectList.appendDelim().quoteSpec(field);
+            this.groupByClause.appendDelim().quoteSpec(field);
+            this.groupCount++;
+        }
+        return this;
+    }
+
+    /**
+     * Count the records in each group.
+     *
+     * @return this object, for fluent invocation
+     *
+     * @throws SQLException
+     */
+    public DbAggregation count() throws SQLException {
+        this.addValue("COUNT(*)", DbType.INTEGER);
+        this.selectList.appendDelim().append("COUNT(*)");
+        return this;
+    }
+
+    /**
+     * Count the records in each group that have a non-null value in a field.
+     *
+     * @param field		field spec (table.field) of the field to check
+     *
+     * @return this object, for fluent invocation
+     *
+     * @throws SQLException
+     */
+    public DbAggregation count(String field) throws SQLException {
+        this.query.getQueryField(field);
+        return this.addFunction("COUNT", field, DbType.INTEGER);
+    }
+
+    /**
+     * Compute the sum of a numeric field in each group.
+     *
+     * @param field		field spec (table.field) of the field to sum
+     *
+     * @return this object, for fluent invocation
+     *
+     * @throws SQLException
+     */
+    public DbAggregation sum(String field) throws SQLException {
+        this.checkNumeric(field);
+        return this.addFunction("SUM", field, DbType.DOUBLE);
+    }
+
+    /**
+     * Compute the mean of a numeric field in each group.
+     *
+     * @param field		field spec (table.field) of the field to average
+     *
+     * @return this object, for fluent invocation
+     *
+     * @throws SQLException
+     */
+    public DbAggregation avg(String field) throws SQLException {
+        this.checkNumeric(field);
+        return this.addFunction("AVG", field, DbType.DOUBLE);
+    }
+
+    /**
+     * Compute the minimum of a field in each group.
+     *
+     * @param field		field spec (table.field) of the field to check
+     *
+     * @return this object, for fluent invocation
+     *
+     * @throws SQLException
+     */
+    public DbAggregation min(String field) throws SQLException {
+        return this.addFunction("MIN", field, this.getComparableType(field));
+    }
+
+    /**
+     * Compute the maximum of a field in each group.
+     *
+     * @param field		field spec (table.field) of the field to check
+     *
+     * @return this object, for fluent invocation
+     *
+     * @throws SQLException
+     */
+    public DbAggregation max(String field) throws SQLException {
+        return this.addFunction("MAX", field, this.getComparableType(field));
+    }
+
+    /**
+     * Rename the most recently added aggregate value.
+     *
+     * @param name		new name for the value in the returned records
+     *
+     * @return this object, for fluent invocation
+     *
+     * @throws SQLException
+     */
+    public DbAggregation as(String name) throws SQLException {
+        final int last = this.names.size() - 1;
+        if (last < this.groupCount)
+            throw new SQLException("No aggregate function to rename.");
+        if (this.namesUsed.contains(name))
+            throw new SQLException("Duplicate aggregate value name \"" + name + "\".");
+        this.namesUsed.remove(this.names.get(last));
+        this.namesUsed.add(name);
+        this.names.set(last, name);
+        return this;
+    }
+
+    /**
+     * @return the type of a comparable field
+     *
+     * @param field		field spec (table.field) of the field to check
+     *
+     * @throws SQLException
+     */
+    private DbType getComparableType(String field) throws SQLException {
+        DbType retVal = this.query.getQueryField(field).getType();
+        if (! retVal.isComparable())
+            throw new SQLException("Field \"" + field + "\" cannot be compared.");
+        return retVal;
+    }
+
+    /**
+     * Insure a field is numeric.
+     *
+     * @param field		field spec (table.field) of the field to check
+     *
+     * @throws SQLException
+     */
+    private void checkNumeric(String field) throws SQLException {
+        DbType type = this.query.getQueryField(field).getType();
+        if (type != DbType.INTEGER && type != DbType.DOUBLE)
+            throw new SQLException("Field \"" + field + "\" is not numeric.");
+    }
+
+    /**
+     * Add an aggregate function of a field to the select list.
+     *
+     * @param function	name of the aggregate function
+     * @param field		field spec (table.field) of the function's argument
+     * @param type		type of the function's value
+     *
+     * @return this object, for fluent invocation
+     *
+     * @throws SQLException
+     */
+    private DbAggregation addFunction(String function, String field, DbType type) throws SQLException {
+        this.addValue(function + "(" + field + ")", type);
+        this.selectList.appendDelim().append(function).append("(").quoteSpec(field).append(")");
+        return this;
+    }
+
+    /**
+     * Add a value to the list of returned values.
+     *
+     * @param name		name of the value
+     * @param type		type of the value
+     *
+     * @throws SQLException
+     */
+    private void addValue(String name, DbType type) throws SQLException {
+        if (this.stmt != null)
+            throw new SQLException("Cannot modify an aggregation after it has been executed.");
+        if (this.namesUsed.contains(name))
+            throw new SQLException("Duplicate aggregate value \"" + name + "\".");
+        this.namesUsed.add(name);
+        this.names.add(name);
+        this.types.add(type);
+    }
+
+    /**
+     * @return the text of the SQL statement for this aggregation
+     *
+     * @throws SQLException
+     */
+    public String getSql() throws SQLException {
+        if (this.names.isEmpty())
+            throw new SQLException("Aggregation does not have any values to return.");
+        SqlBuffer buffer = new SqlBuffer(this.db).append("SELECT ").append(this.selectList);
+        this.query.appendFromWhere(buffer);
+        if (this.groupCount > 0)
+            buffer.append(" GROUP BY ").append(this.groupByClause);
+        return buffer.toString();
+    }
+
+    /**
+     * Execute the aggregation with the parent query's current parameter values.
+     *
+     * @return a list of the records returned
+     *
+     * @throws SQLException
+     */
+    public synchronized List<DbRecord> getResults() throws SQLException {
+        if (this.stmt == null)
+            this.stmt = this.db.createStatement(this.getSql());
+        this.query.storeParms(this.stmt);
+        List<DbRecord> retVal = new ArrayList<>();
+        try (ResultSet results = this.stmt.executeQuery()) {
+            while (results.next())
+                retVal.add(new DbRecord(results, this.names, this.types));
+        }
+        return retVal;
+    }
+
+    /**
+     * Execute the aggregation and return an iterator through the results.
+     */
+    @Override
+    public Iterator<DbRecord> iterator() {
+        try {
+            return this.getResults().iterator();
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void close() throws SQLException {
+        if (this.stmt != null)
+            this.stmt.close();
+    }
+
+}
@@ -3,14 +3,23 @@
  */
 package org.theseed.java.erdb;
 
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Savepoint;
 import java.time.Instant;
 import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import org.theseed.java.erdb.types.DbBoolean;
 import org.theseed.java.erdb.types.DbDate;
@@ -33,6 +42,15 @@ import org.theseed.locations.Location;
  * field name).  The same value objects are in both structures.
  *
  * Parameter values are not cleared between individual updates, so if a value is not set it will remain the same.
+ * Use "clearValues" to set all the parameter values to null before building a new row.
+ *
+ * If a reject handler is specified, the update runs in error-tolerant mode.  A copy of each row in the current
+ * batch is kept, and if the batch fails, it is rolled back and bisected until the offending rows are isolated.
+ * Each offending row is passed to the reject handler along with its error, and the remaining rows are applied.
+ *
+ * If adaptive batching is turned on, the batch size is tuned online.  The latency and approximate byte size of
+ * each full batch are measured, and the batch size grows or shrinks toward the target latency, subject to a cap
+ * on the bytes held in a single batch.  The batch statistics are available from "getBatchStats" for diagnostics.
  *
  * @author Bruce Parrello
  *
@@ -40,22 +58,192 @@ import org.theseed.locations.Location;
 public abstract class DbBaseUpdate implements AutoCloseable {
 
     // FIELDS
+    /** logging facility */
+    private static final Logger log = LoggerFactory.getLogger(DbBaseUpdate.class);
     /** parent database connection */
     private DbConnection db;
     /** array of parameter value objects */
     private List<DbValue> parms;
     /** map of field names to parameter positions */
     private Map<String, Integer> fieldMap;
+    /** list of field names in parameter order */
+    private List<String> parmNames;
+    /** list of parameter types, in order */
+    private List<DbType> parmTypes;
+    /** index of the primary key parameter, or -1 if the key is not a parameter */
+    private int keyIdx;
     /** statement performing the update */
     private PreparedStatement stmt;
     /** size of current batch */
     private int batchCount;
     /** batch size to use */
-    private final int batchSize;
+    private int batchSize;
+    /** TRUE if the batch size is tuned online */
+    private boolean adaptive;
+    /** target batch latency in nanoseconds (adaptive mode) */
+    private long targetNanos;
+    /** maximum approximate bytes per batch (adaptive mode) */
+    private long maxBatchBytes;
+    /** maximum batch size (adaptive mode) */
+    private int maxAdaptiveSize;
+    /** approximate bytes in the current batch */
+    private long batchBytes;
+    /** number of batches executed */
+    private int batchesExecuted;
+    /** number of rows executed */
+    private long rowsExecuted;
+    /** total nanoseconds spent executing batches */
+    private long totalNanos;
+    /** nanoseconds spent executing the last batch */
+    private long lastNanos;
+    /** total approximate bytes executed */
+    private long totalBytes;
     /** table field descriptor */
     private DbTable tableData;
+    /** handler for rejected rows in error-tolerant mode, or NULL if errors are fatal */
+    private IRejectHandler rejectHandler;
+    /** copies of the parameter values for each row in the current batch (error-tolerant mode only) */
+    private List<DbValue[]> batchRows;
+    /** number of rows reported as changed by the database */
+    private long rowsAffected;
+    /** primary keys of the cached records changed by the current batch */
+    private Set<String> changedKeys;
+    /** TRUE if the current batch changes cached records whose keys are unknown */
+    private boolean changedAll;
+    /** number of rows rejected */
+    private int rejectCount;
     /** maximum batch size */
     protected static final int MAX_BATCH_SIZE = 100;
+    /** default target latency for adaptive batching, in milliseconds */
+    public static final double DEFAULT_TARGET_MILLIS = 50.0;
+    /** default byte cap for a single adaptive batch */
+    public static final long DEFAULT_MAX_BATCH_BYTES = 4 * 1024 * 1024;
+    /** default maximum adaptive batch size */
+    public static final int DEFAULT_MAX_ADAPTIVE_SIZE = 10000;
+
+    /**
+     * This object contains batch-execution statistics for an update.
+     */
+    public static class BatchStats {
+
+        /** table being updated */
+        private final String table;
+        /** current batch size */
+        private final int batchSize;
+        /** TRUE if the batch size is adaptive */
+        private final boolean adaptive;
+        /** number of batches executed */
+        private final int batchCount;
+        /** number of rows executed */
+        private final long rowCount;
+        /** mean batch latency in milliseconds */
+        private final double meanMillis;
+        /** latency of the last batch in milliseconds */
+        private final double lastMillis;
+        /** mean approximate bytes per batch */
+        private final double meanBytes;
+
+        /**
+         * Create a statistics snapshot for an update.
+         *
+         * @param update	update whose statistics are desired
+         */
+        private BatchStats(DbBaseUpdate update) {
+            this.table = update.tableData.getName();
+            this.batchSize = update.batchSize;
+            this.adaptive = update.adaptive;
+            this.batchCount = update.batchesExecuted;
+            this.rowCount = update.rowsExecuted;
+            if (this.batchCount == 0) {
+                this.meanMillis = 0.0;
+                this.meanBytes = 0.0;
+            } else {
+                this.meanMillis = update.totalNanos / (this.batchCount * 1e6);
+                this.meanBytes = update.totalBytes / (double) this.batchCount;
+            }
+            this.lastMillis = update.lastNanos / 1e6;
+        }
+
+        /**
+         * @return the name of the table being updated
+         */
+        public String getTable() {
+            return this.table;
+        }
+
+        /**
+         * @return the current batch size
+         */
+        public int getBatchSize() {
+            return this.batchSize;
+        }
+
+        /**
+         * @return TRUE if the batch size is being tuned online
+         */
+        public boolean isAdaptive() {
+            return this.adaptive;
+        }
+
+        /**
+         * @return the number of batches executed
+         */
+        public int getBatchCount() {
+            return this.batchCount;
+        }
+
+        /**
+         * @return the number of rows executed
+         */
+        public long getRowCount() {
+            return this.rowCount;
+        }
+
+        /**
+         * @return the mean batch latency in milliseconds
+         */
+        public double getMeanMillis() {
+            return this.meanMillis;
+        }
+
+        /**
+         * @return the latency of the last batch in milliseconds
+         */
+        public double getLastMillis() {
+            return this.lastMillis;
+        }
+
+        /**
+         * @return the mean approximate number of bytes per batch
+         */
+        public double getMeanBytes() {
+            return this.meanBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: batch size %d%s, %d rows in %d batches, %4.2f ms/batch, %4.0f bytes/batch",
+                    this.table, this.batchSize, (this.adaptive ? " (adaptive)" : ""), this.rowCount,
+                    this.batchCount, this.meanMillis, this.meanBytes);
+        }
+
+    }
+
+    /**
+     * This interface describes an object that receives the rows rejected in error-tolerant mode.
+     */
+    public interface IRejectHandler {
+
+        /**
+         * Process a rejected row.
+         *
+         * @param table		name of the table being updated
+         * @param row		map of field names to the values in the rejected row, in parameter order
+         * @param error		exception that caused the row to be rejected
+         */
+        public void reject(String table, Map<String, DbValue> row, SQLException error);
+
+    }
 
     /**
      * Construct an updater for the specified table.
@@ -69,6 +257,7 @@ public abstract class DbBaseUpdate implements AutoCloseable {
     protected DbBaseUpdate(DbConnection db, String table, int batchSize) throws SQLException {
         this.init(db, table);
         this.batchSize = batchSize;
+        this.adaptive = false;
     }
 
     /**
@@ -110,9 +299,28 @@ public abstract class DbBaseUpdate implements AutoCloseable {
         // Create the parm array and map.
         this.parms = new ArrayList<>(nFields);
         this.fieldMap = new HashMap<>(nFields * 4 / 3);
+        this.parmNames = new ArrayList<>(nFields);
+        this.parmTypes = new ArrayList<>(nFields);
+        this.keyIdx = -1;
         // Denote we have an empty batch and no statement.
         this.batchCount = 0;
         this.stmt = null;
+        // Errors are fatal until a reject handler is specified.
+        this.rejectHandler = null;
+        this.batchRows = null;
+        this.rejectCount = 0;
+        // Clear the batch statistics.
+        this.batchBytes = 0;
+        this.batchesExecuted = 0;
+        this.rowsExecuted = 0;
+        this.totalNanos = 0;
+        this.lastNanos = 0;
+        this.totalBytes = 0;
+        this.rowsAffected = 0;
+        this.changedKeys = new HashSet<>();
+        this.changedAll = false;
+        // Register with the connection so auto-chunking transactions can flush us.
+        db.registerUpdate(this);
     }
 
     /**
@@ -121,8 +329,220 @@ public abstract class DbBaseUpdate implements AutoCloseable {
      *  @throws SQLException
      */
     private void executeBatch() throws SQLException {
-        this.stmt.executeBatch();
+        long start = System.nanoTime();
+        try {
+            if (this.rejectHandler == null)
+                this.countAffected(this.stmt.executeBatch());
+            else {
+                this.executeTolerant();
+                this.batchRows.clear();
+            }
+        } catch (SQLException e) {
+            // Discard the failed batch so the update can still be used for new rows.
+            this.stmt.clearBatch();
+            if (this.batchRows != null)
+                this.batchRows.clear();
+            this.batchCount = 0;
+            this.batchBytes = 0;
+            throw e;
+        }
+        // Record the statistics.
+        this.lastNanos = System.nanoTime() - start;
+        this.totalNanos += this.lastNanos;
+        this.totalBytes += this.batchBytes;
+        this.rowsExecuted += this.batchCount;
+        this.batchesExecuted++;
         this.batchCount = 0;
+        this.batchBytes = 0;
+        // Discard any cached query results and records for the table.
+        String table = this.tableData.getName();
+        this.db.tableChanged(table, false);
+        if (this.changedAll)
+            this.db.entitiesChanged(table, null);
+        else if (! this.changedKeys.isEmpty())
+            this.db.entitiesChanged(table, this.changedKeys);
+        this.changedKeys.clear();
+        this.changedAll = false;
+    }
+
+    /**
+     * Execute a full batch and, in adaptive mode, tune the batch size based on its performance.  The new
+     * size is scaled toward the target latency, but never changes by more than a factor of two at a time,
+     * and is limited so that a batch of average-sized rows stays under the byte cap.
+     *
+     * @throws SQLException
+     */
+    private void executeFullBatch() throws SQLException {
+        final int rows = this.batchCount;
+        final long bytes = this.batchBytes;
+        this.executeBatch();
+        if (this.adaptive && rows > 0) {
+            double nanos = Math.max(this.lastNanos, 1);
+            long newSize = Math.round(rows * this.targetNanos / nanos);
+            newSize = Math.max(this.batchSize / 2, Math.min(newSize, this.batchSize * 2L));
+            if (bytes > 0) {
+                long byteLimit = this.maxBatchBytes * rows / bytes;
+                newSize = Math.min(newSize, byteLimit);
+            }
+            newSize = Math.max(1, Math.min(newSize, this.maxAdaptiveSize));
+            if (newSize != this.batchSize) {
+                log.debug("Batch size for {} changed from {} to {}.", this.tableData.getName(), this.batchSize, newSize);
+                this.batchSize = (int) newSize;
+            }
+        }
+    }
+
+    /**
+     * Turn on adaptive batching for this update.
+     *
+     * @param targetMillis	target latency for a single batch, in milliseconds
+     * @param maxBytes		maximum approximate number of bytes in a single batch
+     * @param maxSize		maximum number of rows in a single batch
+     */
+    public void setAdaptive(double targetMillis, long maxBytes, int maxSize) {
+        this.adaptive = true;
+        this.targetNanos = (long) (targetMillis * 1e6);
+        this.maxBatchBytes = maxBytes;
+        this.maxAdaptiveSize = maxSize;
+    }
+
+    /**
+     * Turn on adaptive batching for this update with the default tuning parameters.
+     */
+    public void setAdaptive() {
+        this.setAdaptive(DEFAULT_TARGET_MILLIS, DEFAULT_MAX_BATCH_BYTES, DEFAULT_MAX_ADAPTIVE_SIZE);
+    }
+
+    /**
+     * @return a snapshot of the batch statistics for this update
+     */
+    public BatchStats getBatchStats() {
+        return new BatchStats(this);
+    }
+
+    /**
+     * Execute the current batch in error-tolerant mode.  The batch is protected by a savepoint.  If it fails,
+     * we roll back to the savepoint and bisect the saved rows to find the ones in error.  If the connection is
+     * in auto-commit mode, the surviving rows are committed at the end.
+     *
+     * @throws SQLException
+     */
+    private void executeTolerant() throws SQLException {
+        Connection conn = this.db.getConnection();
+        boolean oldCommit = conn.getAutoCommit();
+        // Savepoints require that we be inside a transaction.
+        conn.setAutoCommit(false);
+        boolean done = false;
+        try {
+            Savepoint savepoint = conn.setSavepoint();
+            try {
+                int[] counts = this.stmt.executeBatch();
+                conn.releaseSavepoint(savepoint);
+                this.countAffected(counts);
+            } catch (SQLException e) {
+                conn.rollback(savepoint);
+                this.stmt.clearBatch();
+                this.bisect(conn, 0, this.batchRows.size(), e);
+            }
+            if (oldCommit)
+                conn.commit();
+            done = true;
+        } finally {
+            if (oldCommit && ! done)
+                conn.rollback();
+            conn.setAutoCommit(oldCommit);
+        }
+    }
+
+    /**
+     * Isolate the bad rows in a failed section of the current batch.  The section is split in half and each
+     * half is re-executed under its own savepoint.  A failing section of one row is rejected.
+     *
+     * @param conn		JDBC connection for the database
+     * @param start		index of the first saved row in the failed section
+     * @param end		index past the last saved row in the failed section
+     * @param error		exception thrown when the section failed
+     *
+     * @throws SQLException
+     */
+    private void bisect(Connection conn, int start, int end, SQLException error) throws SQLException {
+        if (end - start <= 1)
+            this.reject(this.batchRows.get(start), error);
+        else {
+            int mid = (start + end) / 2;
+            this.retrySection(conn, start, mid);
+            this.retrySection(conn, mid, end);
+        }
+    }
+
+    /**
+     * Re-execute a section of the saved rows from the current batch.  If it fails, the section is rolled
+     * back and bisected further.
+     *
+     * @param conn		JDBC connection for the database
+     * @param start		index of the first saved row in the section
+     * @param end		index past the last saved row in the section
+     *
+     * @throws SQLException
+     */
+    private void retrySection(Connection conn, int start, int end) throws SQLException {
+        Savepoint savepoint = conn.setSavepoint();
+        try {
+            for (int i = start; i < end; i++) {
+                this.storeRow(this.batchRows.get(i));
+                this.stmt.addBatch();
+            }
+            int[] counts = this.stmt.executeBatch();
+            conn.releaseSavepoint(savepoint);
+            this.countAffected(counts);
+        } catch (SQLException e) {
+            conn.rollback(savepoint);
+            this.stmt.clearBatch();
+            this.bisect(conn, start, end, e);
+        }
+    }
+
+    /**
+     * Accumulate the update counts from an executed batch.  A statement whose count is not known is
+     * assumed to have changed one row.
+     *
+     * @param counts	array of update counts returned by the batch
+     */
+    private void countAffected(int[] counts) {
+        for (int count : counts) {
+            if (count >= 0)
+                this.rowsAffected += count;
+            else if (count == Statement.SUCCESS_NO_INFO)
+                this.rowsAffected++;
+        }
+    }
+
+    /**
+     * Pass a rejected row to the reject handler.
+     *
+     * @param row		saved parameter values for the row
+     * @param error		exception that caused the rejection
+     */
+    private void reject(DbValue[] row, SQLException error) {
+        Map<String, DbValue> rowMap = new LinkedHashMap<>(row.length * 4 / 3 + 1);
+        for (int i = 0; i < row.length; i++)
+            rowMap.put(this.parmNames.get(i), row[i]);
+        String table = this.tableData.getName();
+        log.debug("Row rejected from {}: {}", table, error.getMessage());
+        this.rejectHandler.reject(table, rowMap, error);
+        this.rejectCount++;
+    }
+
+    /**
+     * Store a row of parameter values in the statement.
+     *
+     * @param row		parameter values to store, in order
+     *
+     * @throws SQLException
+     */
+    private void storeRow(DbValue[] row) throws SQLException {
+        for (int i = 0; i < row.length; i++)
+            row[i].store(this.stmt, i+1);
     }
 
     /**
@@ -131,27 +551,158 @@ public abstract class DbBaseUpdate implements AutoCloseable {
      * @throws SQLException
      */
     protected void submit() throws SQLException {
-        // Store the current parameter values in the statement.
-        final int n = this.parms.size();
+        this.submit(this.parms);
+    }
+
+    /**
+     * Process an update using a specified list of parameter values.  The values must be of the same types
+     * and in the same order as the statement parameters.
+     *
+     * @param values	parameter values to submit
+     *
+     * @throws SQLException
+     */
+    protected void submit(List<DbValue> values) throws SQLException {
+        // Store the parameter values in the statement.
+        final int n = values.size();
         for (int i = 0; i < n; i++) {
-            this.parms.get(i).store(this.stmt, i+1);
+            values.get(i).store(this.stmt, i+1);
+        }
+        // In error-tolerant mode, save a copy of the row for bisection.
+        if (this.rejectHandler != null) {
+            DbValue[] row = new DbValue[n];
+            for (int i = 0; i < n; i++)
+                row[i] = values.get(i).copy();
+            this.batchRows.add(row);
+        }
+        // If the table's records are cached, remember which ones this row changes.
+        if (this.changesRows() && this.db.getEntityCache(this.tableData.getName()) != null) {
+            String key = (this.identifiesRows() ? this.getKeyString(values) : null);
+            if (key == null)
+                this.changedAll = true;
+            else
+                this.changedKeys.add(key);
         }
         // Add the statement with the current parameter values to the batch.
         this.stmt.addBatch();
         this.batchCount++;
+        final boolean chunking = this.db.isChunking();
+        if (this.adaptive || chunking) {
+            int rowSize = getRowSize(values);
+            this.batchBytes += rowSize;
+            // Report the row to the connection.  In an auto-chunking transaction, this may flush and commit.
+            if (chunking)
+                this.db.recordRow(this.tableData.getName(), this.getKeyString(values), rowSize);
+        }
         // If the batch is full, clear it.
-        if (this.batchCount >= this.batchSize)
+        if (this.batchCount >= this.batchSize || this.adaptive && this.batchBytes >= this.maxBatchBytes)
+            this.executeFullBatch();
+    }
+
+    /**
+     * @return the primary key of the current row as a string, or NULL if it is not available
+     *
+     * @throws SQLException
+     */
+    protected String getKeyString() throws SQLException {
+        return this.getKeyString(this.parms);
+    }
+
+    /**
+     * @return the primary key of a row as a string, or NULL if it is not available
+     *
+     * @param values	parameter values for the row
+     *
+     * @throws SQLException
+     */
+    protected String getKeyString(List<DbValue> values) throws SQLException {
+        String retVal = null;
+        if (this.keyIdx >= 0) {
+            DbValue key = values.get(this.keyIdx);
+            if (! key.isNull())
+                retVal = key.getString();
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the approximate size in bytes of a row
+     *
+     * @param values	parameter values for the row
+     */
+    private static int getRowSize(List<DbValue> values) {
+        int retVal = 0;
+        for (DbValue parm : values)
+            retVal += parm.getSizeEstimate();
+        return retVal;
+    }
+
+    /**
+     * @return TRUE if this update can change existing records (the default), FALSE if it only adds new ones
+     */
+    protected boolean changesRows() {
+        return true;
+    }
+
+    /**
+     * @return TRUE if each row submitted changes only the record whose primary key is in the row, FALSE if
+     * 		   the records changed cannot be identified (the default)
+     */
+    protected boolean identifiesRows() {
+        return false;
+    }
+
+    /**
+     * @return a new row of empty parameter holders, of the same types and in the same order as the statement
+     * 		   parameters
+     */
+    protected DbValue[] createRow() {
+        final int n = this.parms.size();
+        DbValue[] retVal = new DbValue[n];
+        for (int i = 0; i < n; i++) {
+            DbValue holder = this.parmTypes.get(i).create();
+            holder.setNull();
+            retVal[i] = holder;
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the parameter index of a field, or -1 if the field is not a parameter
+     *
+     * @param field		name of the field of interest
+     */
+    protected int getParmIndex(String field) {
+        Integer retVal = this.fieldMap.get(field);
+        return (retVal == null ? -1 : retVal);
+    }
+
+    /**
+     * Execute the current batch, if it is nonempty.
+     *
+     * @throws SQLException
+     */
+    protected void flush() throws SQLException {
+        if (this.batchCount > 0)
             this.executeBatch();
     }
 
     @Override
     public void close() throws SQLException {
-        // If we have a batch, execute it.
-        if (this.batchCount > 0)
-            this.executeBatch();
-        // If we have a statement, close that.
-        if (this.stmt != null)
-            this.stmt.close();
+        try {
+            // If we have a batch, execute it.
+            this.flush();
+        } finally {
+            // If we have a statement, close that.  We always unregister, even if the flush failed.
+            try {
+                if (this.stmt != null)
+                    this.stmt.close();
+            } finally {
+                this.db.unregisterUpdate(this);
+            }
+        }
+        if (this.adaptive && log.isDebugEnabled())
+            log.debug("Final batch statistics: {}.", this.getBatchStats());
     }
 
     /**
@@ -174,6 +725,20 @@ public abstract class DbBaseUpdate implements AutoCloseable {
         return retVal;
     }
 
+    /**
+     * Return the value holder for the specified field.  Subclasses can use this to bind directly to a field's
+     * parameter holder once, rather than looking it up by name for every row.
+     *
+     * @param field		name of the field of interest
+     *
+     * @return the parameter holder for the named field
+     *
+     * @throws SQLException
+     */
+    protected DbValue getHolder(String field) throws SQLException {
+        return this.getField(field, DbValue.class);
+    }
+
     /**
      * Store a string in the value holder for the specified field.
      *
@@ -266,6 +831,20 @@ public abstract class DbBaseUpdate implements AutoCloseable {
         doubleHolder.set(value);
     }
 
+    /**
+     * Store an arbitrary object in the value holder for the specified field.  The object must be
+     * compatible with the field's type.  A NULL object stores a null value.
+     *
+     * @param field		name of the field
+     * @param value		object to store
+     *
+     * @throws SQLException
+     */
+    public void setValue(String field, Object value) throws SQLException {
+        DbValue holder = this.getField(field, DbValue.class);
+        holder.setObject(value);
+    }
+
     /**
      * Store a null value in the value holder for the specified field.
      *
@@ -278,6 +857,15 @@ public abstract class DbBaseUpdate implements AutoCloseable {
         nullHolder.setNull();
     }
 
+    /**
+     * Store null values in all the parameter value holders.  This insures that a field not set for a new
+     * row does not retain the value from a previous row.
+     */
+    public void clearValues() {
+        for (DbValue holder : this.parms)
+            holder.setNull();
+    }
+
     /**
      * Store a boolean value in the value holder for the specified field.
      *
@@ -305,6 +893,46 @@ public abstract class DbBaseUpdate implements AutoCloseable {
         DbValue holder = fieldDesc.getType().create();
         this.parms.add(holder);
         this.fieldMap.put(fieldName, idx);
+        this.parmNames.add(fieldName);
+        this.parmTypes.add(fieldDesc.getType());
+        if (fieldName.equals(this.tableData.getKeyName()))
+            this.keyIdx = idx;
+    }
+
+    /**
+     * Specify a handler for rejected rows.  This puts the update into error-tolerant mode.  It must be
+     * called before any rows are submitted.
+     *
+     * @param handler	handler to receive rejected rows
+     *
+     * @throws SQLException
+     */
+    protected void setRejectHandler(IRejectHandler handler) throws SQLException {
+        if (this.batchCount > 0)
+            throw new SQLException("Cannot change error-tolerance mode in the middle of a batch.");
+        this.rejectHandler = handler;
+        this.batchRows = (handler == null ? null : new ArrayList<>(this.batchSize));
+    }
+
+    /**
+     * @return the number of rows reported as changed by the database in executed batches
+     */
+    public long getRowsAffected() {
+        return this.rowsAffected;
+    }
+
+    /**
+     * @return the number of rows submitted in executed batches
+     */
+    public long getRowsExecuted() {
+        return this.rowsExecuted;
+    }
+
+    /**
+     * @return the number of rows rejected in error-tolerant mode
+     */
+    public int getRejectCount() {
+        return this.rejectCount;
     }
 
     /**
@@ -315,6 +943,10 @@ public abstract class DbBaseUpdate implements AutoCloseable {
      * @throws SQLException
      */
     protected void createStatement(SqlBuffer buffer) throws SQLException {
+        if (this.batchCount > 0)
+            throw new SQLException("Cannot replace the statement in the middle of a batch.");
+        if (this.stmt != null)
+            this.stmt.close();
         this.stmt = this.getDb().createStatement(buffer);
     }
 
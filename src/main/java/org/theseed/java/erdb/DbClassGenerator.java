@@ -0,0 +1,413 @@
+/**
+ *
+ */
+package org.theseed.java.erdb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This object generates typed access classes for database tables from the table metadata (including the
+ * custom types in the "_fields" meta-table).  For each table, two classes are produced.
+ *
+ * The loader class (e.g. "RnaSampleLoader") is a subclass of DbLoader with a typed setter for each field
+ * (e.g. "setQuality(double)").  Each setter stores directly into the field's parameter holder, which is bound
+ * once at construction, so loading a row requires no string lookups or type checks.
+ *
+ * The row class (e.g. "RnaSampleRow") wraps a DbRecord containing all the table's fields and has a typed
+ * getter for each field (e.g. "getQuality()").  The holders are bound by position when the row is created.
+ * The fields are in the same order as the records returned by DbConnection.getRecord and by a query that
+ * selects all the table's fields first, so the row class can wrap either of those.
+ *
+ * The generated code is only valid as long as the table's schema is unchanged, so it should be regenerated
+ * whenever the database definition changes.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class DbClassGenerator {
+
+    // FIELDS
+    /** logging facility */
+    private static final Logger log = LoggerFactory.getLogger(DbClassGenerator.class);
+    /** source database */
+    private DbConnection db;
+    /** package for the generated classes */
+    private String packageName;
+
+    /**
+     * This object describes the code-generation properties of a single field.
+     */
+    private static class FieldInfo {
+
+        /** name of the field in the database */
+        private String name;
+        /** camel-case name of the field for method names */
+        private String methodName;
+        /** camel-case name of the field for holder variables */
+        private String varName;
+        /** holder class name */
+        private String holderClass;
+        /** Java type of the field value */
+        private String javaType;
+        /** TRUE if the field is nullable */
+        private boolean nullable;
+        /** database type of the field */
+        private DbType type;
+
+        /**
+         * Compute the code-generation properties of a field.
+         *
+         * @param field		field descriptor
+         */
+        private FieldInfo(DbTable.Field field) {
+            this.name = field.getName();
+            this.methodName = javaName(this.name);
+            this.varName = StringUtils.uncapitalize(this.methodName);
+            this.nullable = field.isNullable();
+            this.type = field.getType();
+            switch (this.type) {
+            case INTEGER :
+                this.holderClass = "DbInteger";
+                this.javaType = "int";
+                break;
+            case DOUBLE :
+                this.holderClass = "DbDouble";
+                this.javaType = "double";
+                break;
+            case STRING :
+                this.holderClass = "DbString";
+                this.javaType = "String";
+                break;
+            case DOUBLE_ARRAY :
+                this.holderClass = "DbDoubleArray";
+                this.javaType = "double[]";
+                break;
+            case DATE :
+                this.holderClass = "DbDate";
+                this.javaType = "Instant";
+                break;
+            case BOOLEAN :
+                this.holderClass = "DbBoolean";
+                this.javaType = "boolean";
+                break;
+            case LOCATION :
+                this.holderClass = "DbLocation";
+                this.javaType = "Location";
+                break;
+            }
+        }
+
+    }
+
+    /**
+     * Construct a class generator for a database.
+     *
+     * @param db			source database
+     * @param packageName	name of the package for the generated classes
+     */
+    public DbClassGenerator(DbConnection db, String packageName) {
+        this.db = db;
+        this.packageName = packageName;
+    }
+
+    /**
+     * Generate the classes for all the tables in the database.
+     *
+     * @param outDir	base source directory for the output (the package subdirectories will be added)
+     *
+     * @return the number of tables processed
+     *
+     * @throws SQLException
+     * @throws IOException
+     */
+    public int generateAll(File outDir) throws SQLException, IOException {
+        List<String> tables = this.db.getTableNames();
+        for (String table : tables)
+            this.generate(table, outDir);
+        return tables.size();
+    }
+
+    /**
+     * Generate the classes for a single table.
+     *
+     * @param table		name of the table
+     * @param outDir	base source directory for the output (the package subdirectories will be added)
+     *
+     * @throws SQLException
+     * @throws IOException
+     */
+    public void generate(String table, File outDir) throws SQLException, IOException {
+        DbTable tableDesc = this.db.getTable(table);
+        if (tableDesc == null)
+            throw new SQLException("Table \"" + table + "\" not found in database " + this.db.getName() + ".");
+        File packageDir = new File(outDir, StringUtils.replaceChars(this.packageName, '.', File.separatorChar));
+        FileUtils.forceMkdir(packageDir);
+        String className = javaName(tableDesc.getName());
+        // Compute the field information.  The order here is the order of the fields in the table descriptor,
+        // which is the order used by getRecord.
+        Collection<DbTable.Field> fields = tableDesc.getFields();
+        List<FieldInfo> infos = new ArrayList<>(fields.size());
+        for (DbTable.Field field : fields)
+            infos.add(new FieldInfo(field));
+        File loaderFile = new File(packageDir, className + "Loader.java");
+        try (PrintWriter writer = new PrintWriter(loaderFile)) {
+            this.writeLoader(writer, tableDesc, className, infos);
+        }
+        File rowFile = new File(packageDir, className + "Row.java");
+        try (PrintWriter writer = new PrintWriter(rowFile)) {
+            this.writeRow(writer, tableDesc, className, infos);
+        }
+        log.info("Generated {} and {} for table {}.", loaderFile, rowFile, table);
+    }
+
+    /**
+     * Write the source code for a typed loader class.
+     *
+     * @param writer		output writer for the source file
+     * @param tableDesc		descriptor of the table
+     * @param className		base name of the table's classes
+     * @param infos			code-generation properties of the fields
+     */
+    private void writeLoader(PrintWriter writer, DbTable tableDesc, String className, List<FieldInfo> infos) {
+        String loaderName = className + "Loader";
+        String table = tableDesc.getName();
+        this.writeHeader(writer, infos, "DbConnection", "DbLoader");
+        writer.println("/**");
+        writer.println(" * This is a typed loader for the " + table + " table.  It was generated from the database metadata");
+        writer.println(" * and should not be edited.");
+        writer.println(" */");
+        writer.println("public class " + loaderName + " extends DbLoader {");
+        writer.println();
+        writer.println("    // FIELDS");
+        for (FieldInfo info : infos) {
+            writer.println("    /** parameter holder for " + info.name + " */");
+            writer.println("    private final " + info.holderClass + " " + info.varName + "Holder;");
+        }
+        writer.println();
+        writer.println("    /**");
+        writer.println("     * Construct a loader for the " + table + " table.");
+        writer.println("     *");
+        writer.println("     * @param db\t\tdatabase connection");
+        writer.println("     * @param batchSize\tbatch size for inserts");
+        writer.println("     *");
+        writer.println("     * @throws SQLException");
+        writer.println("     */");
+        writer.println("    protected " + loaderName + "(DbConnection db, int batchSize) throws SQLException {");
+        writer.println("        super(db, \"" + table + "\", batchSize);");
+        writer.println("        this.initialize(db, \"" + table + "\");");
+        for (FieldInfo info : infos)
+            writer.println("        this." + info.varName + "Holder = (" + info.holderClass + ") this.getHolder(\""
+                    + info.name + "\");");
+        writer.println("    }");
+        writer.println();
+        for (String mode : new String[] { "batch", "single" }) {
+            writer.println("    /**");
+            writer.println("     * @return a " + (mode.equals("batch") ? "batched" : "one-at-a-time") + " loader for the "
+                    + table + " table");
+            writer.println("     *");
+            writer.println("     * @param db\t\tdatabase connection");
+            writer.println("     *");
+            writer.println("     * @throws SQLException");
+            writer.println("     */");
+            writer.println("    public static " + loaderName + " " + mode + "(DbConnection db) throws SQLException {");
+            writer.println("        return new " + loaderName + "(db, " + (mode.equals("batch") ? "MAX_BATCH_SIZE" : "1") + ");");
+            writer.println("    }");
+            writer.println();
+        }
+        for (FieldInfo info : infos) {
+            this.writeSetter(writer, loaderName, info, info.javaType, "value");
+            if (info.type == DbType.DATE)
+                this.writeSetter(writer, loaderName, info, "LocalDate", "value");
+            if (info.nullable) {
+                writer.println("    /**");
+                writer.println("     * Store a null in the " + info.name + " field.");
+                writer.println("     *");
+                writer.println("     * @return this object, for fluent invocation");
+                writer.println("     */");
+                writer.println("    public " + loaderName + " set" + info.methodName + "Null() {");
+                writer.println("        this." + info.varName + "Holder.setNull();");
+                writer.println("        return this;");
+                writer.println("    }");
+                writer.println();
+            }
+        }
+        writer.println("}");
+    }
+
+    /**
+     * Write a typed setter method for a loader class.
+     *
+     * @param writer		output writer for the source file
+     * @param loaderName	name of the loader class
+     * @param info			code-generation properties of the field
+     * @param javaType		Java type of the setter parameter
+     * @param parmName		name of the setter parameter
+     */
+    private void writeSetter(PrintWriter writer, String loaderName, FieldInfo info, String javaType, String parmName) {
+        writer.println("    /**");
+        writer.println("     * Store a value in the " + info.name + " field.");
+        writer.println("     *");
+        writer.println("     * @param " + parmName + "\t\tvalue to store");
+        writer.println("     *");
+        writer.println("     * @return this object, for fluent invocation");
+        writer.println("     */");
+        writer.println("    public " + loaderName + " set" + info.methodName + "(" + javaType + " " + parmName + ") {");
+        writer.println("        this." + info.varName + "Holder.set(" + parmName + ");");
+        writer.println("        return this;");
+        writer.println("    }");
+        writer.println();
+    }
+
+    /**
+     * Write the source code for a typed row class.
+     *
+     * @param writer		output writer for the source file
+     * @param tableDesc		descriptor of the table
+     * @param className		base name of the table's classes
+     * @param infos			code-generation properties of the fields
+     */
+    private void writeRow(PrintWriter writer, DbTable tableDesc, String className, List<FieldInfo> infos) {
+        String rowName = className + "Row";
+        String table = tableDesc.getName();
+        // The connection is only needed for the key lookup method.
+        String keyName = tableDesc.getKeyName();
+        if (keyName != null)
+            this.writeHeader(writer, infos, "DbConnection", "DbRecord");
+        else
+            this.writeHeader(writer, infos, "DbRecord");
+        writer.println("/**");
+        writer.println(" * This is a typed record for the " + table + " table.  It was generated from the database metadata");
+        writer.println(" * and should not be edited.");
+        writer.println(" */");
+        writer.println("public class " + rowName + " {");
+        writer.println();
+        writer.println("    // FIELDS");
+        writer.println("    /** number of fields in the table */");
+        writer.println("    public static final int FIELD_COUNT = " + infos.size() + ";");
+        for (FieldInfo info : infos) {
+            writer.println("    /** value holder for " + info.name + " */");
+            writer.println("    private final " + info.holderClass + " " + info.varName + ";");
+        }
+        writer.println();
+        writer.println("    /**");
+        writer.println("     * Wrap a record whose fields, starting at the specified position, are all the fields");
+        writer.println("     * of the " + table + " table in table-descriptor order.");
+        writer.println("     *");
+        writer.println("     * @param record\t\tsource record");
+        writer.println("     * @param offset\t\tposition (0-based) of the table's first field in the record");
+        writer.println("     *");
+        writer.println("     * @throws SQLException");
+        writer.println("     */");
+        writer.println("    public " + rowName + "(DbRecord record, int offset) throws SQLException {");
+        writer.println("        if (record.size() < offset + FIELD_COUNT)");
+        writer.println("            throw new SQLException(\"Record is too short to contain a " + table + " row.\");");
+        int i = 0;
+        for (FieldInfo info : infos) {
+            writer.println("        this." + info.varName + " = (" + info.holderClass + ") record.getValue(offset + " + i + ");");
+            i++;
+        }
+        writer.println("    }");
+        writer.println();
+        writer.println("    /**");
+        writer.println("     * Wrap a record returned by DbConnection.getRecord for the " + table + " table.");
+        writer.println("     *");
+        writer.println("     * @param record\t\tsource record");
+        writer.println("     *");
+        writer.println("     * @throws SQLException");
+        writer.println("     */");
+        writer.println("    public " + rowName + "(DbRecord record) throws SQLException {");
+        writer.println("        this(record, 0);");
+        writer.println("    }");
+        writer.println();
+        if (keyName != null) {
+            FieldInfo keyInfo = infos.stream().filter(x -> x.name.equals(keyName)).findFirst().orElse(null);
+            String keyType = (keyInfo != null && keyInfo.type == DbType.INTEGER ? "int" : "String");
+            writer.println("    /**");
+            writer.println("     * @return the " + table + " row with the specified key, or NULL if there is none");
+            writer.println("     *");
+            writer.println("     * @param db\t\tdatabase connection");
+            writer.println("     * @param key\t\tprimary key of the desired row");
+            writer.println("     *");
+            writer.println("     * @throws SQLException");
+            writer.println("     */");
+            writer.println("    public static " + rowName + " get(DbConnection db, " + keyType + " key) throws SQLException {");
+            writer.println("        DbRecord record = db.getRecord(\"" + table + "\", key);");
+            writer.println("        return (record == null ? null : new " + rowName + "(record));");
+            writer.println("    }");
+            writer.println();
+        }
+        for (FieldInfo info : infos) {
+            writer.println("    /**");
+            writer.println("     * @return the value of the " + info.name + " field");
+            writer.println("     */");
+            writer.println("    public " + info.javaType + " get" + info.methodName + "() {");
+            writer.println("        return this." + info.varName + ".get();");
+            writer.println("    }");
+            writer.println();
+            if (info.nullable) {
+                writer.println("    /**");
+                writer.println("     * @return TRUE if the " + info.name + " field is null");
+                writer.println("     */");
+                writer.println("    public boolean is" + info.methodName + "Null() {");
+                writer.println("        return this." + info.varName + ".isNull();");
+                writer.println("    }");
+                writer.println();
+            }
+        }
+        writer.println("}");
+    }
+
+    /**
+     * Write the package and import statements for a generated class.
+     *
+     * @param writer		output writer for the source file
+     * @param infos			code-generation properties of the fields
+     * @param erdbClasses	names of the classes needed from the base package
+     */
+    private void writeHeader(PrintWriter writer, List<FieldInfo> infos, String... erdbClasses) {
+        writer.println("package " + this.packageName + ";");
+        writer.println();
+        writer.println("import java.sql.SQLException;");
+        boolean hasDate = infos.stream().anyMatch(x -> x.type == DbType.DATE);
+        if (hasDate) {
+            writer.println("import java.time.Instant;");
+            if (Arrays.asList(erdbClasses).contains("DbLoader"))
+                writer.println("import java.time.LocalDate;");
+        }
+        writer.println();
+        String basePackage = DbConnection.class.getPackageName();
+        for (String erdbClass : erdbClasses)
+            writer.println("import " + basePackage + "." + erdbClass + ";");
+        infos.stream().map(x -> x.holderClass).distinct().sorted()
+                .forEach(x -> writer.println("import " + basePackage + ".types." + x + ";"));
+        if (infos.stream().anyMatch(x -> x.type == DbType.LOCATION))
+            writer.println("import org.theseed.locations.Location;");
+        writer.println();
+    }
+
+    /**
+     * @return a camel-case Java name with an initial capital for a database name
+     *
+     * @param name		database table or field name
+     */
+    protected static String javaName(String name) {
+        String[] parts = StringUtils.split(name, "_");
+        StringBuilder retVal = new StringBuilder(name.length());
+        for (String part : parts)
+            retVal.append(StringUtils.capitalize(part));
+        return retVal.toString();
+    }
+
+}
@@ -5,6 +5,9 @@ package org.theseed.java.erdb;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.DriverManager;
@@ -14,15 +17,18 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
@@ -56,8 +62,36 @@ public abstract class DbConnection implements AutoCloseable {
     private PreparedStatement fieldTypeQuery;
     /** special query for placement data */
     private PreparedStatement placementQuery;
-    /** batch size for mass deletes */
-    private static final int DELETE_BATCH_SIZE = 100;
+    /** set of open update objects on this connection, in the order opened (synchronized) */
+    private Set<DbBaseUpdate> openUpdates;
+    /** active auto-chunking transaction, or NULL if none */
+    private ChunkedTransaction chunker;
+    /** active write queue, or NULL if writes are not being serialized */
+    private DbWriteQueue writeQueue;
+    /** number of rows to fetch at a time when streaming keys */
+    private static final int KEY_FETCH_SIZE = 1000;
+    /** number of temporary tables created (used to generate unique names) */
+    private int tempCount;
+    /** map of lower-case table names to primary-key filters */
+    private Map<String, KeyFilter> keyFilters;
+    /** maximum fraction of a filtered table's keys that can be deleted before its filter is rebuilt */
+    private double filterDeleteLimit;
+    /** default false-positive rate for key filters */
+    public static final double DEFAULT_FILTER_FPP = 0.01;
+    /** default fraction of deleted keys that triggers a key-filter rebuild */
+    public static final double DEFAULT_FILTER_DELETE_LIMIT = 0.25;
+    /** minimum key capacity of a key filter */
+    private static final int MIN_FILTER_CAPACITY = 1024;
+    /** query result cache, or NULL if results are not cached */
+    private DbResultCache resultCache;
+    /** map of lower-case table names to entity caches */
+    private Map<String, DbEntityCache> entityCaches;
+    /** map of lower-case table names to pinned in-memory tables */
+    private Map<String, DbPinnedTable> pinnedTables;
+    /** map of SQL statement text to prepared statements shared by query templates */
+    private Map<String, PreparedStatement> sharedStatements;
+    /** map of names to registered query templates */
+    private Map<String, DbQueryTemplate> namedQueries;
     /** queries to create field table */
     private static final String[] FIELD_CREATE = new String[] {
             "CREATE TABLE _fields (\n"
@@ -162,6 +196,13 @@ public abstract class DbConnection implements AutoCloseable {
             this.committed = true;
         }
 
+        /**
+         * @return TRUE if the transaction has been marked for commit
+         */
+        protected boolean isCommitted() {
+            return this.committed;
+        }
+
         @Override
         public void close() throws SQLException {
             if (this.committed)
@@ -169,6 +210,8 @@ public abstract class DbConnection implements AutoCloseable {
             else {
                 log.info("Rolling back transaction in database {}.", DbConnection.this.getName());
                 DbConnection.this.db.rollback();
+                // Cached results may contain the rolled-back changes.
+                DbConnection.this.allTablesChanged();
             }
             // Restore the auto-commit status.
             DbConnection.this.db.setAutoCommit(this.oldCommit);
@@ -176,6 +219,180 @@ public abstract class DbConnection implements AutoCloseable {
 
     }
 
+    /**
+     * This is a transaction that commits automatically in chunks.  Every loader and updater on the connection
+     * reports each row it submits, and when the number of rows or the approximate number of bytes since the
+     * last commit exceeds the specified limits, all pending batches are executed and the work is committed.
+     * This keeps the rollback journal or undo log small during very large loads.
+     *
+     * After each commit, the last committed primary key and the number of committed rows for each table are
+     * recorded as a checkpoint.  If a checkpoint file is specified, the checkpoint is written to it, so that an
+     * interrupted load can be resumed where it stopped.  The last key is only a valid resume point if the rows
+     * of each table are submitted in ascending key order, since otherwise a smaller key may still be uncommitted.
+     * For input in any other order, resume by skipping the committed number of rows of the same input (see
+     * {@link DbConnection#readCheckpoint(File)} and {@link DbConnection#readCheckpointCounts(File)}).
+     *
+     * Note that if this transaction is not committed, only the work since the last automatic commit is rolled
+     * back.  Each loader and updater is flushed at every commit until it is closed, so they must always be
+     * closed when no longer needed.
+     */
+    public class ChunkedTransaction extends Transaction {
+
+        /** maximum number of rows per commit */
+        private final int rowLimit;
+        /** maximum approximate number of bytes per commit */
+        private final long byteLimit;
+        /** checkpoint file, or NULL if none */
+        private final File checkpointFile;
+        /** number of rows since the last commit */
+        private int pendingRows;
+        /** approximate number of bytes since the last commit */
+        private long pendingBytes;
+        /** map of table names to last key submitted since the last commit */
+        private Map<String, String> pendingKeys;
+        /** map of table names to last key committed */
+        private Map<String, String> committedKeys;
+        /** map of table names to number of rows submitted since the last commit */
+        private Map<String, Long> pendingCounts;
+        /** map of table names to number of rows committed */
+        private Map<String, Long> committedCounts;
+        /** number of automatic commits performed */
+        private int chunkCount;
+
+        /**
+         * Create an auto-chunking transaction.
+         *
+         * @param rowLimit			maximum number of rows per commit
+         * @param byteLimit			maximum approximate number of bytes per commit
+         * @param checkpointFile	file to receive the checkpoint after each commit, or NULL if none
+         *
+         * @throws SQLException
+         */
+        public ChunkedTransaction(int rowLimit, long byteLimit, File checkpointFile) throws SQLException {
+            super();
+            if (DbConnection.this.chunker != null)
+                throw new SQLException("Cannot nest auto-chunking transactions on database " + DbConnection.this.getName() + ".");
+            this.rowLimit = rowLimit;
+            this.byteLimit = byteLimit;
+            this.checkpointFile = checkpointFile;
+            this.pendingRows = 0;
+            this.pendingBytes = 0;
+            this.pendingKeys = new TreeMap<>();
+            this.committedKeys = new TreeMap<>();
+            this.pendingCounts = new TreeMap<>();
+            this.committedCounts = new TreeMap<>();
+            this.chunkCount = 0;
+            DbConnection.this.chunker = this;
+        }
+
+        /**
+         * Record a row submitted to the database, and commit if a limit has been reached.
+         *
+         * @param table		name of the table being updated
+         * @param key		primary key of the row, or NULL if it is not known
+         * @param bytes		approximate size of the row in bytes
+         *
+         * @throws SQLException
+         */
+        protected void recordRow(String table, String key, int bytes) throws SQLException {
+            this.pendingRows++;
+            this.pendingBytes += bytes;
+            if (key != null)
+                this.pendingKeys.put(table, key);
+            this.pendingCounts.merge(table, 1L, Long::sum);
+            if (this.pendingRows >= this.rowLimit || this.pendingBytes >= this.byteLimit)
+                this.checkpoint();
+        }
+
+        /**
+         * Execute all pending batches, commit the work, and record the checkpoint.
+         *
+         * @throws SQLException
+         */
+        public void checkpoint() throws SQLException {
+            DbConnection.this.flushUpdates();
+            DbConnection.this.db.commit();
+            this.chunkCount++;
+            this.recordCheckpoint();
+            log.debug("Chunk {} committed with {} rows in database {}.", this.chunkCount, this.pendingRows,
+                    DbConnection.this.getName());
+        }
+
+        /**
+         * Move the pending keys to the committed-key map and write the checkpoint file.
+         *
+         * @throws SQLException
+         */
+        private void recordCheckpoint() throws SQLException {
+            this.committedKeys.putAll(this.pendingKeys);
+            this.pendingKeys.clear();
+            for (Map.Entry<String, Long> countEntry : this.pendingCounts.entrySet())
+                this.committedCounts.merge(countEntry.getKey(), countEntry.getValue(), Long::sum);
+            this.pendingCounts.clear();
+            this.pendingRows = 0;
+            this.pendingBytes = 0;
+            if (this.checkpointFile != null) {
+                // We write to a temporary file and rename it, so a crash never leaves a partial checkpoint.
+                File tempFile = new File(this.checkpointFile.getPath() + ".tmp");
+                try (PrintWriter writer = new PrintWriter(tempFile)) {
+                    // Each line contains the table name, the last key (empty if unknown), and the row count.
+                    for (Map.Entry<String, Long> countEntry : this.committedCounts.entrySet()) {
+                        String table = countEntry.getKey();
+                        writer.println(table + "\t" + this.committedKeys.getOrDefault(table, "") + "\t"
+                                + countEntry.getValue());
+                    }
+                } catch (IOException e) {
+                    throw new SQLException("Error writing checkpoint file: " + e.getMessage());
+                }
+                try {
+                    Files.move(tempFile.toPath(), this.checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) {
+                    throw new SQLException("Error saving checkpoint file: " + e.getMessage());
+                }
+            }
+        }
+
+        /**
+         * @return the last committed primary key for the specified table, or NULL if there is none
+         *
+         * @param table		name of the table of interest
+         */
+        public String getCheckpoint(String table) {
+            return this.committedKeys.get(table);
+        }
+
+        /**
+         * @return the number of rows committed for the specified table
+         *
+         * @param table		name of the table of interest
+         */
+        public long getCommittedRows(String table) {
+            return this.committedCounts.getOrDefault(table, 0L);
+        }
+
+        /**
+         * @return the number of automatic commits performed
+         */
+        public int getChunkCount() {
+            return this.chunkCount;
+        }
+
+        @Override
+        public void close() throws SQLException {
+            try {
+                if (this.isCommitted())
+                    DbConnection.this.flushUpdates();
+                super.close();
+                if (this.isCommitted())
+                    this.recordCheckpoint();
+            } finally {
+                DbConnection.this.chunker = null;
+            }
+        }
+
+    }
+
     /**
      * Connect to the database using the specified connect string.
      *
@@ -186,6 +403,17 @@ public abstract class DbConnection implements AutoCloseable {
     protected void connect(String connectString) throws SQLException {
         this.db = DriverManager.getConnection(connectString, this.properties());
         log.info("Connected to database {}.", this.getName());
+        this.writeQueue = null;
+        this.openUpdates = Collections.synchronizedSet(new LinkedHashSet<>());
+        this.tempCount = 0;
+        this.keyFilters = new HashMap<>();
+        this.filterDeleteLimit = DEFAULT_FILTER_DELETE_LIMIT;
+        this.resultCache = null;
+        this.entityCaches = new HashMap<>();
+        this.pinnedTables = new HashMap<>();
+        this.sharedStatements = new HashMap<>();
+        this.namedQueries = new TreeMap<>();
+        this.chunker = null;
         this.metaData = this.db.getMetaData();
         // Create the table map.  It is initialized lazily: that is, we store each table
         // definition when the table is first used.
@@ -285,338 +513,1006 @@ public abstract class DbConnection implements AutoCloseable {
     }
 
     /**
-     * @return the set of primary keys for the specified table
+     * Enable a primary-key filter for a table using the default false-positive rate.
      *
-     * @param table			table whose key set is desired
+     * @param table		name of the table to filter
+     *
+     * @return the filter built
      *
      * @throws SQLException
      */
-    public Set<String> getKeys(String table) throws SQLException {
-        Set<String> retVal = new HashSet<>();
-        // Get the key information from the table and build the query.
-        SqlBuffer buffer = new SqlBuffer(this);
-        DbTable tableDesc = this.getTable(table);
-        String keyName = tableDesc.getKeyName();
-        if (keyName == null)
-            throw new SQLException("Cannot do check-for-record on table " + table + ", which has no primary key.");
-        buffer.append("SELECT ").quote(keyName).append(" FROM ").quote(table);
-        try (Statement stmt = this.db.createStatement()) {
-            ResultSet results = stmt.executeQuery(buffer.toString());
-            // Loop through the results, building the set.
-            while (results.next())
-                retVal.add(results.getString(1));
-        }
-        return retVal;
+    public KeyFilter enableKeyFilter(String table) throws SQLException {
+        return this.enableKeyFilter(table, DEFAULT_FILTER_FPP);
     }
 
     /**
-     * @return TRUE if the specified record exists, else FALSE
+     * Enable a primary-key filter for a table.  The filter is built from a single scan of the table's keys,
+     * and is used by {@link #checkForRecord(String, String)} to answer definite negatives without a query.
+     * Inserts by DbLoader and deletes through this connection keep the filter current; other changes to the
+     * table (for example, through native JDBC statements) require a call to {@link #keyFilterStale(String)}.
      *
-     * @param table			table containing the record to check
-     * @param valueObject	value of the desired record's primary key
+     * @param table		name of the table to filter
+     * @param fpp		desired false-positive rate
+     *
+     * @return the filter built
      *
      * @throws SQLException
      */
-    private boolean checkForRecord(String table, DbValue valueObject) throws SQLException {
-        boolean retVal = false;
-        SqlBuffer buffer = new SqlBuffer(this);
-        DbTable tableDesc = this.getTable(table);
-        String keyName = tableDesc.getKeyName();
-        if (keyName == null)
-            throw new SQLException("Cannot do check-for-record on table " + table + ", which has no primary key.");
-        // Build the query.
-        buffer.append("SELECT ").quote(keyName).append(" FROM ").quote(table).append(" WHERE ")
-                .quote(keyName).append(" = ").appendMark();
-        try (PreparedStatement stmt = this.createStatement(buffer)) {
-            // Store the key value in the query and execute it.
-            valueObject.store(stmt, 1);
-            ResultSet results = stmt.executeQuery();
-            retVal = results.next();
-        }
-        // Return the result.  If a record was found, this will be TRUE.
+    public KeyFilter enableKeyFilter(String table, double fpp) throws SQLException {
+        KeyFilter retVal = this.buildKeyFilter(table, fpp);
+        this.keyFilters.put(table.toLowerCase(), retVal);
         return retVal;
     }
 
-
     /**
-     * Delete the specified record from the database.
-     *
-     * @param	table	table containing the record to delete
-     * @param	value	value of the desired record's primary key
+     * Disable the primary-key filter for a table.
      *
-     * @throws SQLException
+     * @param table		name of the table whose filter is no longer wanted
      */
-    public void deleteRecord(String table, String value) throws SQLException {
-        DbValue valueObject = new DbString(value);
-        this.deleteRecord(table, valueObject);
+    public void disableKeyFilter(String table) {
+        this.keyFilters.remove(table.toLowerCase());
     }
 
     /**
-     * Delete the specified record from the database.
-     *
-     * @param	table	table containing the record to delete
-     * @param	value	value of the desired record's primary key
+     * Specify the rebuild policy for key filters.  A filter is rebuilt when the number of keys deleted
+     * exceeds the specified fraction of the keys in it, or when more keys have been added than it was
+     * sized for.
      *
-     * @throws SQLException
+     * @param deleteLimit	maximum fraction of keys deleted before a rebuild
      */
-    public void deleteRecord(String table, int value) throws SQLException {
-        DbValue valueObject = new DbInteger(value);
-        this.deleteRecord(table, valueObject);
+    public void setKeyFilterDeleteLimit(double deleteLimit) {
+        this.filterDeleteLimit = deleteLimit;
     }
 
     /**
-     * Delete the specified record
+     * @return the current primary-key filter for a table, rebuilding it if necessary, or NULL if the table
+     * 		   is not filtered
      *
-     * @param table			table containing the record to delete
-     * @param valueObject	value of the desired record's primary key
+     * @param table		name of the table of interest
      *
      * @throws SQLException
      */
-    private void deleteRecord(String table, DbValue valueObject) throws SQLException {
-        SqlBuffer buffer = buildDeleteStmt(table);
-        try (PreparedStatement stmt = this.createStatement(buffer)) {
-            // Store the key value in the query and execute it.
-            valueObject.store(stmt, 1);
-            stmt.execute();
+    public KeyFilter getKeyFilter(String table) throws SQLException {
+        KeyFilter retVal = this.keyFilters.get(table.toLowerCase());
+        if (retVal != null && retVal.needsRebuild(this.filterDeleteLimit)) {
+            log.debug("Rebuilding key filter for {}.", table);
+            retVal = this.buildKeyFilter(table, retVal.getFpp());
+            this.keyFilters.put(table.toLowerCase(), retVal);
         }
+        return retVal;
     }
 
     /**
-     * Build a delete statement for the specified table.
+     * Build a primary-key filter for a table.  The filter is sized with room for the table to double.
      *
-     * @param table		table of interest
+     * @param table		name of the table to filter
+     * @param fpp		desired false-positive rate
      *
-     * @return an SQL buffer containing a primary-key delete statement for the specified table
+     * @return the filter built
      *
      * @throws SQLException
      */
-    public SqlBuffer buildDeleteStmt(String table) throws SQLException {
-        SqlBuffer retVal = new SqlBuffer(this);
-        DbTable tableDesc = this.getTable(table);
-        String keyName = tableDesc.getKeyName();
-        if (keyName == null)
-            throw new SQLException("Cannot do delete-record on table " + table + ", which has no primary key.");
-        // Build the query.
-        retVal.append("DELETE FROM ").quote(table).append(" WHERE ").quote(keyName).append(" = ").appendMark();
+    private KeyFilter buildKeyFilter(String table, double fpp) throws SQLException {
+        SqlBuffer buffer = new SqlBuffer(this).append("SELECT COUNT(*) FROM ").quote(table);
+        long count = 0;
+        try (Statement stmt = this.db.createStatement()) {
+            ResultSet results = stmt.executeQuery(buffer.toString());
+            if (results.next())
+                count = results.getLong(1);
+        }
+        KeyFilter retVal = new KeyFilter(Math.max(count * 2, MIN_FILTER_CAPACITY), fpp);
+        this.forEachKey(table, x -> retVal.add(x));
+        log.info("Key filter for {} built with {} keys in {} bytes.", table, retVal.getKeyCount(), retVal.getByteSize());
         return retVal;
     }
 
     /**
-     * @return a map from field names to custom field information for the specified table
+     * Record that a key has been added to a table.
      *
-     * @param table		name of the table whose custom-type fields are desired
+     * @param table		name of the table updated
+     * @param key		primary key added
+     */
+    protected void keyAdded(String table, String key) {
+        KeyFilter filter = this.keyFilters.get(table.toLowerCase());
+        if (filter != null)
+            filter.add(key);
+    }
+
+    /**
+     * Record that keys have been deleted from a table.
      *
-     * @throws SQLException
+     * @param table		name of the table updated
+     * @param count		number of keys deleted
      */
-    protected Map<String, DbTable.FieldDesc> getCustomTypes(String table) throws SQLException {
-        var retVal = new TreeMap<String, FieldDesc>();
-        this.fieldTypeQuery.setString(1, table);
-        ResultSet results = this.fieldTypeQuery.executeQuery();
-        while (results.next()) {
-            String fieldName = results.getString("field_name");
-            DbType fieldType = DbType.parse(results.getString("field_type"));
-            String comment = results.getString("description");
-            retVal.put(fieldName, new DbTable.FieldDesc(fieldType, comment));
-        }
-        return retVal;
+    protected void keysDeleted(String table, long count) {
+        KeyFilter filter = this.keyFilters.get(table.toLowerCase());
+        if (filter != null)
+            filter.recordDeletes(count);
     }
 
     /**
-     * Read a batch of database updates from a file and run them.
+     * Denote that the keys of a table have changed in a way the key filters cannot track.  The filter
+     * will be rebuilt before its next use.
      *
-     * The input file should contain SQL statements delimited by semi-colons at the end of the
-     * line.  If there are multiple statements on a line, or there are comments after the
-     * semicolon, the process will fail.  This is, however, a fairly flexible format and
-     * should be an easy convention to enforce.
+     * @param table		name of the table changed, or NULL to mark all the filters
+     */
+    public void keyFilterStale(String table) {
+        if (table == null)
+            this.keyFilters.values().stream().forEach(x -> x.setStale());
+        else {
+            KeyFilter filter = this.keyFilters.get(table.toLowerCase());
+            if (filter != null)
+                filter.setStale();
+        }
+    }
+
+    /**
+     * Enable caching of query results.  When the cache is active, the records returned by each query are saved
+     * under the query's SQL text and parameter values, and a query run again with the same parameters returns the
+     * saved records without going to the database.  Changes made through the loaders, updaters, and delete methods
+     * of this connection, as well as script updates and table clears, automatically remove the affected results.
+     * Changes made through native JDBC statements require a call to {@link #tableChanged(String, boolean)}.
      *
-     * @param inFile	file of updates to read
+     * @param maxBytes		maximum approximate number of bytes of records to cache
      *
-     * @throws SQLException
-     * @throws IOException
+     * @return the result cache
      */
-    public void scriptUpdate(File inFile) throws SQLException, IOException {
-        Statement stmt = this.db.createStatement();
-        StringBuilder buffer = new StringBuilder();
-       try (LineReader sqlStream = new LineReader(inFile);
-               Transaction xact = this.new Transaction()) {
-            while (sqlStream.hasNext()) {
-                String line = StringUtils.trim(sqlStream.next());
-                buffer.append(line);
-                // Check for end-of-statement.  If there is end-of-statement,  we add the SQL
-                // and clear the buffer.  Otherwise, we add a space before the next line is
-                // appended.
-                if (line.endsWith(";")) {
-                    stmt.addBatch(buffer.toString());
-                    buffer.setLength(0);
-                } else
-                    buffer.append(" ");
-            }
-            // Execute the batch.
-            stmt.executeBatch();
-            // Commit the updates.
-            xact.commit();
-        } finally {
-            stmt.close();
-        }
+    public DbResultCache enableResultCache(long maxBytes) {
+        this.resultCache = new DbResultCache(maxBytes);
+        return this.resultCache;
     }
 
     /**
-     * @return the property object for this database type (or NULL if none)
+     * Disable caching of query results.
      */
-    protected abstract Properties properties();
+    public void disableResultCache() {
+        this.resultCache = null;
+    }
 
     /**
-     * @return a list of table names in this database
-     *
-     * @throws SQLException
+     * @return the query result cache, or NULL if results are not being cached
      */
-    public List<String> getTableNames() throws SQLException {
-        List<String> retVal = new ArrayList<>();
-        ResultSet results = this.metaData.getTables(this.getCatalog(), this.getSchema(), null, TABLE_SEARCH);
-        while (results.next()) {
-            String tableName = results.getString("TABLE_NAME");
-            if (! tableName.startsWith("_"))
-                retVal.add(tableName);
-        }
-        return retVal;
+    public DbResultCache getResultCache() {
+        return this.resultCache;
     }
 
     /**
-     * Delete all of the tables from the database.
+     * Denote that the records in a table have changed.  Cached query results that read the table are discarded.
+     * If records were deleted, the cached query results and entities for the tables that refer to the changed
+     * table are discarded as well, since the deletes may have cascaded to them.  Entities of the changed table
+     * itself are invalidated separately, using {@link #entitiesChanged(String, Collection)}.
+     *
+     * @param table		name of the table that changed
+     * @param cascade	TRUE if records were deleted, so that tables with foreign keys referencing this one
+     * 					may also have changed
      *
      * @throws SQLException
      */
-    public void clearTables() throws SQLException {
-        // Create an SQL buffer for the drop statements.
-        SqlBuffer buffer = new SqlBuffer(this);
-        // This will be set to TRUE if we succeed.
-        boolean done = false;
-        // Get the table names.
-        List<String> tables = this.getTableNames();
-        // Turn off auto-commit.
-        boolean oldCommit = this.db.getAutoCommit();
-        this.db.setAutoCommit(false);
-        // Create the statement.
-        try (Statement stmt = this.db.createStatement()) {
-            // We can't drop a table if it has imported keys from tables still in the database.
-            // This set tracks the tables not yet dropped.
-            Set<String> unDropped = new HashSet<>(tables);
-            // This map tells us the tables dependent on this one.
-            Map<String, Set<String>> exportMap = new HashMap<>(tables.size() * 4 / 3 + 1);
-            String catalog = this.getCatalog();
-            String schema = this.getSchema();
-            for (String table : tables) {
-                ResultSet exports = this.metaData.getExportedKeys(catalog, schema, table);
-                Set<String> exportSet = new TreeSet<>();
-                while (exports.next()) {
-                    String otherTable = exports.getString("FKTABLE_NAME");
-                    if (! otherTable.contentEquals(table))
-                        exportSet.add(otherTable);
-                }
-                exportMap.put(table, exportSet);
-            }
-            // Loop until all the tables are dropped.
-            while (! unDropped.isEmpty()) {
-                // Find the first table that is safe to drop.
-                String table = null;
-                Iterator<String> iter = unDropped.iterator();
-                while (table == null && iter.hasNext()) {
-                    // Get a candidate table.
-                    String candidate = iter.next();
-                    // Are all of its exports dropped?
-                    boolean safe = exportMap.get(candidate).stream().allMatch(x -> ! unDropped.contains(x));
-                    if (safe)
-                        table = candidate;
+    public void tableChanged(String table, boolean cascade) throws SQLException {
+        if (! cascade) {
+            if (this.resultCache != null)
+                this.resultCache.invalidate(table);
+            this.pinnedChanged(table);
+        } else if (this.resultCache != null || ! this.entityCaches.isEmpty() || ! this.pinnedTables.isEmpty()) {
+            // Invalidate this table and every table that refers to it, directly or indirectly.
+            Set<String> processed = new HashSet<>();
+            List<String> pending = new ArrayList<>();
+            pending.add(table.toLowerCase());
+            while (! pending.isEmpty()) {
+                String current = pending.remove(pending.size() - 1);
+                if (processed.add(current)) {
+                    if (this.resultCache != null)
+                        this.resultCache.invalidate(current);
+                    this.pinnedChanged(current);
+                    // We don't know which records of the referencing tables were deleted.
+                    if (processed.size() > 1)
+                        this.entitiesChanged(current, null);
+                    DbTable tableDesc = this.getTable(current);
+                    if (tableDesc != null) {
+                        for (Map.Entry<String, DbTable.Link> link : tableDesc.getLinks()) {
+                            if (! link.getValue().isImported())
+                                pending.add(link.getKey());
+                        }
+                    }
                 }
-                if (table == null)
-                    throw new SQLException("Cannot drop all tables: circular references found.");
-                // Here it is safe to drop.
-                buffer.start("DROP TABLE ").quote(table);
-                unDropped.remove(table);
-                stmt.execute(buffer.toString());
             }
-            // Empty the meta-tables.
-            buffer.start("DELETE FROM ").quote("_fields");
-            stmt.execute(buffer.toString());
-            buffer.start("DELETE FROM ").quote("_diagram");
-            stmt.execute(buffer.toString());
-            // Commit the updates.
-            this.db.commit();
-            // Erase the table map.
-            this.tableMap.clear();
-            // Denote this all worked.
-            done = true;
-        } finally {
-            // If we did not commit, do a rollback.
-            if (! done)
-                this.db.rollback();
-            // Restore the auto-commit state.
-            this.db.setAutoCommit(oldCommit);
         }
     }
 
-    @Override
-    public void close() throws SQLException {
-        // Clean up the special statements.
-        if (this.fieldTypeQuery != null)
-            this.fieldTypeQuery.close();
-        if (this.placementQuery != null)
-            this.placementQuery.close();
-        // Close the database.
-        this.db.close();
-        log.info("Closed database {}.", this.getName());
-    }
-
     /**
-     * @return the name of this database
+     * Denote that any table in the database may have changed.  All cached query results and entities
+     * are discarded.
      */
-    public abstract String getName();
-
+    public void allTablesChanged() {
+        if (this.resultCache != null)
+            this.resultCache.clear();
+        this.entityCaches.values().stream().forEach(x -> x.clear());
+        this.pinnedTables.values().stream().forEach(x -> x.setStale());
+    }
 
     /**
-     * @return the database metaData
+     * Denote that a table has changed, so that its in-memory copy (if any) must be reloaded.
+     *
+     * @param table		name of the table that changed
      */
-    public DatabaseMetaData getMetaData() {
-        return this.metaData;
+    private void pinnedChanged(String table) {
+        if (! this.pinnedTables.isEmpty()) {
+            DbPinnedTable pinned = this.pinnedTables.get(table.toLowerCase());
+            if (pinned != null)
+                pinned.setStale();
+        }
     }
 
     /**
-     * @return the field type for the specified type string
+     * Pin a table in memory.  The entire table is loaded into an immutable map, which is reloaded whenever
+     * the table is written through this connection.  {@link #getRecord(String, String)},
+     * {@link #getRecords(String, Collection)}, and {@link #checkForRecord(String, String)} are answered from
+     * memory for a pinned table, and queries that join to a pinned table only to retrieve its fields resolve
+     * the join in memory instead of in the database.  This is intended for small tables that are used
+     * frequently.  Tables should be pinned before the queries that use them are executed, since a query's
+     * plan is fixed the first time it runs.
      *
-     * @param string	type string to parse
+     * Note that the field specifications in the records returned from a pinned table always use the table's
+     * real name.
+     *
+     * @param table		name of the table to pin
+     *
+     * @return the pinned table
      *
      * @throws SQLException
      */
-    protected abstract DbType parseType(String string) throws SQLException;
+    public DbPinnedTable pinTable(String table) throws SQLException {
+        DbTable tableDesc = this.getTable(table);
+        if (tableDesc == null)
+            throw new SQLException("Table " + table + " not found in database.");
+        DbPinnedTable retVal = new DbPinnedTable(this, tableDesc);
+        this.pinnedTables.put(table.toLowerCase(), retVal);
+        log.info("Table {} pinned in memory with {} records.", tableDesc.getName(), retVal.size());
+        return retVal;
+    }
 
     /**
-     * Store a quoted string in the specified text buffer.
+     * Release the in-memory copy of a pinned table.
      *
-     * @param queryBuffer	text buffer where an SQL statement is being built
-     * @param name			name to quote
+     * @param table		name of the table to unpin
      */
-    protected abstract void quote(SqlBuffer queryBuffer, String name);
+    public void unpinTable(String table) {
+        this.pinnedTables.remove(table.toLowerCase());
+    }
 
+    /**
+     * @return the in-memory copy of a pinned table, or NULL if the table is not pinned
+     *
+     * @param table		name of the table of interest
+     */
+    public DbPinnedTable getPinnedTable(String table) {
+        DbPinnedTable retVal = null;
+        if (! this.pinnedTables.isEmpty())
+            retVal = this.pinnedTables.get(table.toLowerCase());
+        return retVal;
+    }
 
     /**
-     * @return the catalog containing the current database
+     * Enable caching of the records in a table by primary key.  When the cache is active, {@link #getRecord(String, String)}
+     * and {@link #getRecords(String, Collection)} return cached records when possible, and the records they read
+     * are added to the cache.  Queries that select all the fields of the table also add the records they return.
+     * Updates and deletes through this connection remove the affected records.  Changes made through native
+     * JDBC statements require a call to {@link #entitiesChanged(String, Collection)}.
+     *
+     * Note that the field specifications in the records returned from a cached table always use the table's
+     * real name.
+     *
+     * @param table			name of the table to cache
+     * @param maxEntries	maximum number of records to cache
+     *
+     * @return the entity cache
+     *
+     * @throws SQLException
      */
-    protected abstract String getCatalog();
+    public DbEntityCache enableEntityCache(String table, int maxEntries) throws SQLException {
+        DbTable tableDesc = this.getTable(table);
+        if (tableDesc == null)
+            throw new SQLException("Table " + table + " not found in database.");
+        if (tableDesc.getKeyName() == null)
+            throw new SQLException("Cannot cache records of table " + table + ", which has no primary key.");
+        DbEntityCache retVal = new DbEntityCache(tableDesc.getName(), maxEntries);
+        this.entityCaches.put(table.toLowerCase(), retVal);
+        return retVal;
+    }
 
     /**
-     * @return the schema name of the current database
+     * Disable caching of the records in a table.
+     *
+     * @param table		name of the table whose records should no longer be cached
      */
-    protected abstract String getSchema();
+    public void disableEntityCache(String table) {
+        this.entityCaches.remove(table.toLowerCase());
+    }
 
     /**
-     * @return the definition for the named table
+     * @return the entity cache for a table, or NULL if the table's records are not cached
      *
-     * @param tName		name of the table whose definition is desired
-     * @throws SQLException
+     * @param table		name of the table of interest
      */
-    public DbTable getTable(String tName) throws SQLException {
-        String lc_tName = tName.toLowerCase();
-        DbTable retVal = this.tableMap.get(lc_tName);
+    public DbEntityCache getEntityCache(String table) {
+        DbEntityCache retVal = null;
+        if (! this.entityCaches.isEmpty())
+            retVal = this.entityCaches.get(table.toLowerCase());
+        return retVal;
+    }
+
+    /**
+     * Denote that records in a table have been changed or deleted, and remove them from the entity cache.
+     *
+     * @param table		name of the table that changed
+     * @param keys		primary keys of the changed records, or NULL if they are unknown
+     */
+    public void entitiesChanged(String table, Collection<String> keys) {
+        this.pinnedChanged(table);
+        DbEntityCache cache = this.getEntityCache(table);
+        if (cache != null) {
+            if (keys == null)
+                cache.clear();
+            else
+                keys.stream().forEach(x -> cache.invalidate(x));
+        }
+    }
+
+    /**
+     * @return the set of primary keys for the specified table
+     *
+     * @param table			table whose key set is desired
+     *
+     * @throws SQLException
+     */
+    public Set<String> getKeys(String table) throws SQLException {
+        Set<String> retVal = new HashSet<>();
+        this.forEachKey(table, x -> retVal.add(x));
+        return retVal;
+    }
+
+    /**
+     * @return a compact sorted set of the primary keys for the specified table
+     *
+     * @param table			table whose key set is desired
+     *
+     * @throws SQLException
+     */
+    public StringKeySet getStringKeys(String table) throws SQLException {
+        StringKeySet retVal = new StringKeySet();
+        this.forEachKey(table, x -> retVal.add(x));
+        return retVal;
+    }
+
+    /**
+     * @return a compact hash set of the primary keys for the specified table, which must have an integer key
+     *
+     * @param table			table whose key set is desired
+     *
+     * @throws SQLException
+     */
+    public IntKeySet getIntKeys(String table) throws SQLException {
+        IntKeySet retVal = new IntKeySet();
+        this.forEachIntKey(table, x -> retVal.add(x));
+        return retVal;
+    }
+
+    /**
+     * Perform an action on each primary key in the specified table.  The keys are streamed from the
+     * database, so they are never all in memory at once.  The action should not use this connection.
+     *
+     * @param table			table whose keys are desired
+     * @param action		action to perform on each key
+     *
+     * @throws SQLException
+     */
+    public void forEachKey(String table, Consumer<String> action) throws SQLException {
+        try (Statement stmt = this.db.createStatement()) {
+            ResultSet results = this.queryKeys(stmt, table, null);
+            while (results.next())
+                action.accept(results.getString(1));
+        }
+    }
+
+    /**
+     * Perform an action on each primary key in the specified table, which must have an integer key.
+     * The keys are streamed from the database, so they are never all in memory at once.  The action
+     * should not use this connection.
+     *
+     * @param table			table whose keys are desired
+     * @param action		action to perform on each key
+     *
+     * @throws SQLException
+     */
+    public void forEachIntKey(String table, IntConsumer action) throws SQLException {
+        try (Statement stmt = this.db.createStatement()) {
+            ResultSet results = this.queryKeys(stmt, table, DbType.INTEGER);
+            while (results.next())
+                action.accept(results.getInt(1));
+        }
+    }
+
+    /**
+     * Start a streaming query for the primary keys of a table.
+     *
+     * @param stmt		statement to use for the query
+     * @param table		table whose keys are desired
+     * @param type		required key type, or NULL if any type is acceptable
+     *
+     * @return a result set with the primary key in the first column
+     *
+     * @throws SQLException
+     */
+    private ResultSet queryKeys(Statement stmt, String table, DbType type) throws SQLException {
+        // Get the key information from the table and build the query.
+        SqlBuffer buffer = new SqlBuffer(this);
+        DbTable tableDesc = this.getTable(table);
+        if (tableDesc == null)
+            throw new SQLException("Table " + table + " not found in database.");
+        String keyName = tableDesc.getKeyName();
+        if (keyName == null)
+            throw new SQLException("Cannot get keys for table " + table + ", which has no primary key.");
+        if (type != null && tableDesc.getType(keyName) != type)
+            throw new SQLException("Primary key of table " + table + " is not of type " + type + ".");
+        buffer.append("SELECT ").quote(keyName).append(" FROM ").quote(table);
+        stmt.setFetchSize(this.streamingFetchSize());
+        return stmt.executeQuery(buffer.toString());
+    }
+
+    /**
+     * @return TRUE if the specified record exists, else FALSE
+     *
+     * @param table			table containing the record to check
+     * @param valueObject	value of the desired record's primary key
+     *
+     * @throws SQLException
+     */
+    private boolean checkForRecord(String table, DbValue valueObject) throws SQLException {
+        boolean retVal = false;
+        DbPinnedTable pinned = this.getPinnedTable(table);
+        if (pinned != null)
+            retVal = (pinned.get(valueObject.getString()) != null);
+        else {
+            // If there is a key filter, it can rule out the record without a query.  Getting the filter may
+            // require a rebuild, so we only do it when the table is not pinned.
+            KeyFilter filter = this.getKeyFilter(table);
+            if (filter == null || filter.mightContain(valueObject.getString())) {
+                SqlBuffer buffer = new SqlBuffer(this);
+                DbTable tableDesc = this.getTable(table);
+                String keyName = tableDesc.getKeyName();
+                if (keyName == null)
+                    throw new SQLException("Cannot do check-for-record on table " + table + ", which has no primary key.");
+                // Build the query.
+                buffer.append("SELECT ").quote(keyName).append(" FROM ").quote(table).append(" WHERE ")
+                        .quote(keyName).append(" = ").appendMark();
+                try (PreparedStatement stmt = this.createStatement(buffer)) {
+                    // Store the key value in the query and execute it.
+                    valueObject.store(stmt, 1);
+                    ResultSet results = stmt.executeQuery();
+                    retVal = results.next();
+                }
+            }
+        }
+        // Return the result.  If a record was found, this will be TRUE.
+        return retVal;
+    }
+
+
+    /**
+     * Delete the specified record from the database.
+     *
+     * @param	table	table containing the record to delete
+     * @param	value	value of the desired record's primary key
+     *
+     * @throws SQLException
+     */
+    public void deleteRecord(String table, String value) throws SQLException {
+        DbValue valueObject = new DbString(value);
+        this.deleteRecord(table, valueObject);
+    }
+
+    /**
+     * Delete the specified record from the database.
+     *
+     * @param	table	table containing the record to delete
+     * @param	value	value of the desired record's primary key
+     *
+     * @throws SQLException
+     */
+    public void deleteRecord(String table, int value) throws SQLException {
+        DbValue valueObject = new DbInteger(value);
+        this.deleteRecord(table, valueObject);
+    }
+
+    /**
+     * Delete the specified record
+     *
+     * @param table			table containing the record to delete
+     * @param valueObject	value of the desired record's primary key
+     *
+     * @throws SQLException
+     */
+    private void deleteRecord(String table, DbValue valueObject) throws SQLException {
+        SqlBuffer buffer = buildDeleteStmt(table);
+        try (PreparedStatement stmt = this.createStatement(buffer)) {
+            // Store the key value in the query and execute it.
+            valueObject.store(stmt, 1);
+            stmt.execute();
+        }
+        this.keysDeleted(table, 1);
+        this.entitiesChanged(table, List.of(valueObject.getString()));
+        this.tableChanged(table, true);
+    }
+
+    /**
+     * Build a delete statement for the specified table.
+     *
+     * @param table		table of interest
+     *
+     * @return an SQL buffer containing a primary-key delete statement for the specified table
+     *
+     * @throws SQLException
+     */
+    public SqlBuffer buildDeleteStmt(String table) throws SQLException {
+        SqlBuffer retVal = new SqlBuffer(this);
+        DbTable tableDesc = this.getTable(table);
+        String keyName = tableDesc.getKeyName();
+        if (keyName == null)
+            throw new SQLException("Cannot do delete-record on table " + table + ", which has no primary key.");
+        // Build the query.
+        retVal.append("DELETE FROM ").quote(table).append(" WHERE ").quote(keyName).append(" = ").appendMark();
+        return retVal;
+    }
+
+    /**
+     * @return a map from field names to custom field information for the specified table
+     *
+     * @param table		name of the table whose custom-type fields are desired
+     *
+     * @throws SQLException
+     */
+    protected Map<String, DbTable.FieldDesc> getCustomTypes(String table) throws SQLException {
+        var retVal = new TreeMap<String, FieldDesc>();
+        this.fieldTypeQuery.setString(1, table);
+        ResultSet results = this.fieldTypeQuery.executeQuery();
+        while (results.next()) {
+            String fieldName = results.getString("field_name");
+            DbType fieldType = DbType.parse(results.getString("field_type"));
+            String comment = results.getString("description");
+            retVal.put(fieldName, new DbTable.FieldDesc(fieldType, comment));
+        }
+        return retVal;
+    }
+
+    /**
+     * Read a batch of database updates from a file and run them.
+     *
+     * The input file should contain SQL statements delimited by semi-colons.  Semicolons inside
+     * quoted strings, quoted identifiers, and comments are ignored.  The whole script is run as a
+     * single transaction, so nothing is committed unless every statement succeeds.
+     *
+     * @param inFile	file of updates to read
+     *
+     * @throws SQLException
+     * @throws IOException
+     */
+    public void scriptUpdate(File inFile) throws SQLException, IOException {
+        new DbScriptRunner(this).run(inFile);
+    }
+
+    /**
+     * Read a batch of database updates from a file and run them, committing after every chunk of
+     * statements.  The file is processed incrementally, so it can be arbitrarily large.  If the
+     * script fails, the exception message indicates how many statements were committed, and that
+     * number can be passed as the start offset to resume the script.
+     *
+     * @param inFile		file of updates to read
+     * @param chunkSize		number of statements per commit
+     * @param startOffset	number of statements to skip at the beginning of the file
+     *
+     * @return the total number of statements committed, including the ones skipped
+     *
+     * @throws SQLException
+     * @throws IOException
+     */
+    public long scriptUpdate(File inFile, int chunkSize, long startOffset) throws SQLException, IOException {
+        return new DbScriptRunner(this).setChunkSize(chunkSize).setStartOffset(startOffset).run(inFile);
+    }
+
+    /**
+     * @return the property object for this database type (or NULL if none)
+     */
+    protected abstract Properties properties();
+
+    /**
+     * @return a list of table names in this database
+     *
+     * @throws SQLException
+     */
+    public List<String> getTableNames() throws SQLException {
+        List<String> retVal = new ArrayList<>();
+        ResultSet results = this.metaData.getTables(this.getCatalog(), this.getSchema(), null, TABLE_SEARCH);
+        while (results.next()) {
+            String tableName = results.getString("TABLE_NAME");
+            if (! tableName.startsWith("_"))
+                retVal.add(tableName);
+        }
+        return retVal;
+    }
+
+    /**
+     * Delete all of the tables from the database.  Foreign-key checking is suspended during the
+     * operation, so the tables can be dropped in any order without examining the key metadata.
+     *
+     * @throws SQLException
+     */
+    public void clearTables() throws SQLException {
+        // Create an SQL buffer for the drop statements.
+        SqlBuffer buffer = new SqlBuffer(this);
+        // Get the table names.
+        List<String> tables = this.getTableNames();
+        try (Statement stmt = this.db.createStatement()) {
+            // Foreign-key checking must be changed outside of a transaction for some engines.
+            boolean oldChecks = this.setForeignKeyChecks(stmt, false);
+            try (Transaction xact = this.new Transaction()) {
+                for (String table : tables) {
+                    buffer.start("DROP TABLE ").quote(table);
+                    stmt.execute(buffer.toString());
+                }
+                // Empty the meta-tables.
+                buffer.start("DELETE FROM ").quote("_fields");
+                stmt.execute(buffer.toString());
+                buffer.start("DELETE FROM ").quote("_diagram");
+                stmt.execute(buffer.toString());
+                xact.commit();
+            } finally {
+                this.setForeignKeyChecks(stmt, oldChecks);
+            }
+            // Erase the table map.
+            this.tableMap.clear();
+            this.keyFilters.clear();
+            this.allTablesChanged();
+            this.pinnedTables.clear();
+            this.closeSharedStatements();
+        }
+    }
+
+    /**
+     * Delete all of the data from the database, leaving the schema and the metadata intact.  Foreign-key
+     * checking is suspended during the operation, so the tables can be emptied in any order.
+     *
+     * Note that on some engines (such as MySQL) truncating a table performs an implicit commit, so a
+     * failure can leave some of the tables emptied and others not.
+     *
+     * @throws SQLException
+     */
+    public void truncateTables() throws SQLException {
+        SqlBuffer buffer = new SqlBuffer(this);
+        List<String> tables = this.getTableNames();
+        try (Statement stmt = this.db.createStatement()) {
+            boolean oldChecks = this.setForeignKeyChecks(stmt, false);
+            try (Transaction xact = this.new Transaction()) {
+                for (String table : tables) {
+                    buffer.start(this.truncateCommand()).quote(table);
+                    stmt.execute(buffer.toString());
+                }
+                xact.commit();
+            } finally {
+                this.setForeignKeyChecks(stmt, oldChecks);
+            }
+        }
+        this.keyFilterStale(null);
+        this.allTablesChanged();
+        log.info("{} tables truncated in {}.", tables.size(), this.getName());
+    }
+
+    /**
+     * Register an open update object with this connection.
+     *
+     * @param update	loader or updater being opened
+     */
+    protected void registerUpdate(DbBaseUpdate update) {
+        this.openUpdates.add(update);
+    }
+
+    /**
+     * Remove an update object from the registry when it is closed.
+     *
+     * @param update	loader or updater being closed
+     */
+    protected void unregisterUpdate(DbBaseUpdate update) {
+        this.openUpdates.remove(update);
+    }
+
+    /**
+     * Execute the pending batches of all the open loaders and updaters on this connection.
+     *
+     * @throws SQLException
+     */
+    protected void flushUpdates() throws SQLException {
+        // Take a snapshot so that updates can be opened or closed by other threads while we flush.
+        List<DbBaseUpdate> updates;
+        synchronized (this.openUpdates) {
+            updates = new ArrayList<>(this.openUpdates);
+        }
+        for (DbBaseUpdate update : updates)
+            update.flush();
+    }
+
+    /**
+     * @return TRUE if an auto-chunking transaction is active on this connection
+     */
+    protected boolean isChunking() {
+        return (this.chunker != null);
+    }
+
+    /**
+     * Record a row submitted to the database.  If an auto-chunking transaction is active, this may
+     * cause a commit.
+     *
+     * @param table		name of the table being updated
+     * @param key		primary key of the row, or NULL if it is not known
+     * @param bytes		approximate size of the row in bytes
+     *
+     * @throws SQLException
+     */
+    protected void recordRow(String table, String key, int bytes) throws SQLException {
+        if (this.chunker != null)
+            this.chunker.recordRow(table, key, bytes);
+    }
+
+    /**
+     * Read a checkpoint file written by an auto-chunking transaction.
+     *
+     * @param checkpointFile	checkpoint file to read
+     *
+     * @return a map from table names to the last committed primary key, or an empty map if the file does not exist
+     *
+     * @throws IOException
+     */
+    public static Map<String, String> readCheckpoint(File checkpointFile) throws IOException {
+        Map<String, String> retVal = new TreeMap<>();
+        if (checkpointFile.exists()) {
+            try (LineReader inStream = new LineReader(checkpointFile)) {
+                for (String line : inStream) {
+                    String[] parts = StringUtils.splitPreserveAllTokens(line, '\t');
+                    if (parts.length >= 2 && ! parts[1].isEmpty())
+                        retVal.put(parts[0], parts[1]);
+                }
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * Read the committed row counts from a checkpoint file written by an auto-chunking transaction.
+     *
+     * @param checkpointFile	checkpoint file to read
+     *
+     * @return a map from table names to the number of committed rows, or an empty map if the file does not exist
+     *
+     * @throws IOException
+     */
+    public static Map<String, Long> readCheckpointCounts(File checkpointFile) throws IOException {
+        Map<String, Long> retVal = new TreeMap<>();
+        if (checkpointFile.exists()) {
+            try (LineReader inStream = new LineReader(checkpointFile)) {
+                for (String line : inStream) {
+                    String[] parts = StringUtils.splitPreserveAllTokens(line, '\t');
+                    if (parts.length >= 3)
+                        retVal.put(parts[0], Long.valueOf(parts[2]));
+                }
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * Start a write-serializer queue for this connection.  Commands submitted to the queue from any thread
+     * are executed by a single writer thread, with up to the specified number of commands folded into each
+     * physical commit.  Only one queue can be active at a time.
+     *
+     * @param groupSize		maximum number of commands per physical commit
+     *
+     * @return the write queue
+     *
+     * @throws SQLException
+     */
+    public synchronized DbWriteQueue startWriteQueue(int groupSize) throws SQLException {
+        if (this.writeQueue != null)
+            throw new SQLException("A write queue is already active on database " + this.getName() + ".");
+        this.writeQueue = new DbWriteQueue(this, groupSize);
+        return this.writeQueue;
+    }
+
+    /**
+     * Denote that a write queue has shut down.
+     *
+     * @param queue		write queue that was closed
+     */
+    protected synchronized void writeQueueClosed(DbWriteQueue queue) {
+        if (this.writeQueue == queue)
+            this.writeQueue = null;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        // Drain and stop the write queue (if any).
+        if (this.writeQueue != null)
+            this.writeQueue.close();
+        // Clean up the special statements.
+        this.closeSharedStatements();
+        if (this.fieldTypeQuery != null)
+            this.fieldTypeQuery.close();
+        if (this.placementQuery != null)
+            this.placementQuery.close();
+        // Close the database.
+        this.db.close();
+        log.info("Closed database {}.", this.getName());
+    }
+
+    /**
+     * @return the name of this database
+     */
+    public abstract String getName();
+
+
+    /**
+     * @return the underlying JDBC connection
+     */
+    protected Connection getConnection() {
+        return this.db;
+    }
+
+    /**
+     * @return the database metaData
+     */
+    public DatabaseMetaData getMetaData() {
+        return this.metaData;
+    }
+
+    /**
+     * @return the field type for the specified type string
+     *
+     * @param string	type string to parse
+     *
+     * @throws SQLException
+     */
+    protected abstract DbType parseType(String string) throws SQLException;
+
+    /**
+     * Store a quoted string in the specified text buffer.
+     *
+     * @param queryBuffer	text buffer where an SQL statement is being built
+     * @param name			name to quote
+     */
+    protected abstract void quote(SqlBuffer queryBuffer, String name);
+
+    /**
+     * Turn foreign-key checking on or off for this connection.  On some engines this has no effect inside a
+     * transaction, in which case an exception is thrown if a transaction is active.
+     *
+     * @param stmt		statement to use for executing commands
+     * @param enabled	TRUE to enable foreign-key checks, FALSE to disable them
+     *
+     * @return TRUE if foreign-key checks were enabled before the call, else FALSE
+     *
+     * @throws SQLException
+     */
+    protected abstract boolean setForeignKeyChecks(Statement stmt, boolean enabled) throws SQLException;
+
+    /**
+     * @return the command prefix for an insert that ignores rows with duplicate keys, without the table name
+     */
+    protected abstract String insertIgnoreCommand();
+
+    /**
+     * @return the command prefix for removing all the records from a table, without the table name
+     */
+    protected abstract String truncateCommand();
+
+    /**
+     * Create an empty temporary table whose columns are copied from an existing table.  If index fields
+     * are specified, the temporary table must be indexed on them.
+     *
+     * @param stmt			statement to use for executing commands
+     * @param name			name to give to the temporary table
+     * @param source		name of the table whose columns are being copied
+     * @param fields		names of the columns to copy
+     * @param indexFields	names of the columns to index
+     *
+     * @throws SQLException
+     */
+    protected abstract void buildTempTable(Statement stmt, String name, String source, Collection<String> fields,
+            Collection<String> indexFields) throws SQLException;
+
+    /**
+     * @return the command prefix for dropping a temporary table, without the table name
+     */
+    protected abstract String dropTempCommand();
+
+    /**
+     * Build a set-based UPDATE statement that copies field values from a source table into the
+     * matching rows of a target table.  A target row matches a source row if all the key fields
+     * are equal.
+     *
+     * @param buffer		SQL buffer to contain the statement
+     * @param table			name of the target table
+     * @param source		name of the source table
+     * @param setFields		names of the fields to copy
+     * @param keyFields		names of the fields used to match rows
+     */
+    protected abstract void buildJoinUpdate(SqlBuffer buffer, String table, String source,
+            Collection<String> setFields, Collection<String> keyFields);
+
+    /**
+     * @return the maximum number of parameter marks allowed in a single statement
+     */
+    protected abstract int maxParameters();
+
+    /**
+     * @return the fetch size to use for a query whose results must be streamed rather than loaded into
+     * 		   memory all at once
+     */
+    protected int streamingFetchSize() {
+        return KEY_FETCH_SIZE;
+    }
+
+    /**
+     * Append a LIMIT clause to a query statement.  Both supported engines accept the "LIMIT n OFFSET m" form,
+     * but an offset requires a limit, so the largest possible count is used when only an offset is specified.
+     *
+     * @param buffer	buffer containing the statement being built
+     * @param limit		maximum number of records to return, or 0 for no limit
+     * @param offset	number of records to skip
+     */
+    protected void appendLimit(SqlBuffer buffer, int limit, int offset) {
+        buffer.append(" LIMIT ").append(limit > 0 ? Integer.toString(limit) : Long.toString(Long.MAX_VALUE));
+        if (offset > 0)
+            buffer.append(" OFFSET ").append(Integer.toString(offset));
+    }
+
+    /**
+     * @return TRUE if a backslash is an escape character inside string literals for this database type
+     */
+    protected boolean backslashEscapes() {
+        return false;
+    }
+
+    /**
+     * @return TRUE if square brackets quote identifiers in scripts for this database type
+     */
+    protected boolean bracketQuotes() {
+        return true;
+    }
+
+    /**
+     * @return TRUE if a line comment in a script must have whitespace after its two dashes for this database type
+     */
+    protected boolean dashCommentSpace() {
+        return false;
+    }
+
+
+    /**
+     * @return the catalog containing the current database
+     */
+    protected abstract String getCatalog();
+
+    /**
+     * @return the schema name of the current database
+     */
+    protected abstract String getSchema();
+
+    /**
+     * @return the definition for the named table
+     *
+     * @param tName		name of the table whose definition is desired
+     * @throws SQLException
+     */
+    public DbTable getTable(String tName) throws SQLException {
+        String lc_tName = tName.toLowerCase();
+        DbTable retVal = this.tableMap.get(lc_tName);
         if (retVal == null) {
             retVal = DbTable.load(this, tName);
             // If the table exists, cache it in the table map.
@@ -634,37 +1530,314 @@ public abstract class DbConnection implements AutoCloseable {
      * @throws SQLException
      */
     public PreparedStatement createStatement(SqlBuffer buffer) throws SQLException {
-        PreparedStatement retVal = this.db.prepareStatement(buffer.toString());
+        return this.createStatement(buffer.toString());
+    }
+
+    /**
+     * @return a prepared statement based on SQL text.
+     *
+     * @param sql		text of the statement (with parameter marks)
+     *
+     * @throws SQLException
+     */
+    public PreparedStatement createStatement(String sql) throws SQLException {
+        PreparedStatement retVal = this.db.prepareStatement(sql);
+        return retVal;
+    }
+
+    /**
+     * Get a prepared statement shared by all the users of the same SQL text on this connection.  The statement
+     * is prepared the first time it is requested, and is closed when the connection closes or the tables are
+     * cleared, so a user holding the statement must check whether it is closed and request it again if it is.
+     * The users must not close it.  Because a statement can only have one open result set, a query on a shared
+     * statement must be finished before the statement is executed again.
+     *
+     * @return the shared prepared statement for the SQL text
+     *
+     * @param sql		text of the statement (with parameter marks)
+     *
+     * @throws SQLException
+     */
+    public synchronized PreparedStatement getSharedStatement(String sql) throws SQLException {
+        PreparedStatement retVal = this.sharedStatements.get(sql);
+        if (retVal == null) {
+            retVal = this.createStatement(sql);
+            this.sharedStatements.put(sql, retVal);
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the number of shared prepared statements on this connection
+     */
+    public synchronized int getSharedStatementCount() {
+        return this.sharedStatements.size();
+    }
+
+    /**
+     * Register a query template under a name, so that it can be executed using {@link #query(String, Object...)}.
+     * The template is compiled immediately.
+     *
+     * @param name			name for the query
+     * @param template		template for the query
+     *
+     * @throws SQLException
+     */
+    public synchronized void registerQuery(String name, DbQueryTemplate template) throws SQLException {
+        if (this.namedQueries.containsKey(name))
+            throw new SQLException("Query name \"" + name + "\" is already registered in database " + this.getName() + ".");
+        this.namedQueries.put(name, template.compile());
+    }
+
+    /**
+     * Register all the named queries of another connection to the same database.  This is used to set up
+     * the connections in a pool from a single master registry.  The templates are shared.
+     *
+     * @param source	connection whose named queries are to be copied
+     *
+     * @throws SQLException
+     */
+    public void registerQueries(DbConnection source) throws SQLException {
+        Map<String, DbQueryTemplate> sourceQueries;
+        synchronized (source) {
+            sourceQueries = new TreeMap<>(source.namedQueries);
+        }
+        for (Map.Entry<String, DbQueryTemplate> queryEntry : sourceQueries.entrySet())
+            this.registerQuery(queryEntry.getKey(), queryEntry.getValue());
+    }
+
+    /**
+     * @return the query template registered under a name, or NULL if there is none
+     *
+     * @param name		name of the desired query
+     */
+    public synchronized DbQueryTemplate getRegisteredQuery(String name) {
+        return this.namedQueries.get(name);
+    }
+
+    /**
+     * @return the names of the registered queries
+     */
+    public synchronized Set<String> getQueryNames() {
+        return new TreeSet<>(this.namedQueries.keySet());
+    }
+
+    /**
+     * Create an instance of a registered query with the specified parameter values.  The instance uses this
+     * connection's shared prepared statement for the query.
+     *
+     * All the instances of a registered query share one statement, and executing the statement closes the result
+     * set of the previous execution.  An iteration through an instance's results must therefore be finished
+     * before another instance of the same query is executed on this connection, even from another thread;
+     * otherwise the unfinished iteration fails with an SQL error.  Use a separate connection for each thread
+     * that runs the query concurrently.
+     *
+     * @param name		name of the query to run
+     * @param parms		parameter values for the query, in order
+     *
+     * @return an executable query with the parameters filled in
+     *
+     * @throws SQLException
+     */
+    public DbQuery query(String name, Object... parms) throws SQLException {
+        DbQueryTemplate template = this.getRegisteredQuery(name);
+        if (template == null)
+            throw new SQLException("No query named \"" + name + "\" is registered in database " + this.getName() + ".");
+        DbQuery retVal = template.instance(this);
+        retVal.setParms(parms);
+        return retVal;
+    }
+
+    /**
+     * Prepare the statements for all the registered queries on this connection, so that the first call to
+     * each query does not pay the preparation cost.
+     *
+     * @return the number of queries prepared
+     *
+     * @throws SQLException
+     */
+    public int warmUp() throws SQLException {
+        long start = System.currentTimeMillis();
+        List<DbQueryTemplate> templates;
+        synchronized (this) {
+            templates = new ArrayList<>(this.namedQueries.values());
+        }
+        for (DbQueryTemplate template : templates) {
+            try (DbQuery query = template.instance(this)) {
+                query.prepare();
+            }
+        }
+        log.info("{} registered queries prepared in database {} in {} ms.", templates.size(), this.getName(),
+                System.currentTimeMillis() - start);
+        return templates.size();
+    }
+
+    /**
+     * Close all the shared prepared statements on this connection.
+     *
+     * @throws SQLException
+     */
+    private synchronized void closeSharedStatements() throws SQLException {
+        for (PreparedStatement stmt : this.sharedStatements.values())
+            stmt.close();
+        this.sharedStatements.clear();
+    }
+
+    /**
+     * Create an empty temporary table with the same column types as some of the columns in an existing
+     * table.  The temporary table is visible only to this connection, and should be dropped with
+     * {@link #dropTempTable(String)} when it is no longer needed.
+     *
+     * @param source		name of the table whose columns are being copied
+     * @param fields		names of the columns to copy
+     * @param indexFields	names of the columns to index, or an empty list if no index is needed
+     *
+     * @return the name of the temporary table
+     *
+     * @throws SQLException
+     */
+    public String createTempTable(String source, Collection<String> fields, Collection<String> indexFields)
+            throws SQLException {
+        this.tempCount++;
+        String retVal = "_tmp" + this.tempCount + "_" + source;
+        try (Statement stmt = this.db.createStatement()) {
+            this.buildTempTable(stmt, retVal, source, fields, indexFields);
+        }
+        log.debug("Temporary table {} created in {}.", retVal, this.getName());
         return retVal;
     }
 
     /**
-     * Delete a set of identified records from the specified table.  This method batches the
-     * queries rather than doing individual delete calls.
+     * Drop a temporary table created by {@link #createTempTable(String, Collection, Collection)}.
+     *
+     * @param name		name of the temporary table
+     *
+     * @throws SQLException
+     */
+    public void dropTempTable(String name) throws SQLException {
+        SqlBuffer buffer = new SqlBuffer(this).append(this.dropTempCommand()).quote(name);
+        try (Statement stmt = this.db.createStatement()) {
+            stmt.execute(buffer.toString());
+        }
+    }
+
+    /**
+     * Delete a set of identified records from the specified table.  The keys are sent in chunks of
+     * the form "DELETE ... WHERE key IN (...)", with each chunk as large as the database's parameter
+     * limit allows.  The keys can be strings or integers, and are converted to the type of the key
+     * field.  If a chunked transaction is active, each deleted key counts as a row toward the chunk
+     * limit.
      *
      * @param table		name of the target table
      * @param keys		keys of the records to delete
      *
+     * @return the number of records deleted
+     *
      * @throws SQLException
      */
-    public void deleteRecords(String table, Collection<String> keys) throws SQLException {
-        // Prepare a statement to do the deletes.
-        SqlBuffer buffer = this.buildDeleteStmt(table);
-        try (PreparedStatement stmt = this.createStatement(buffer)) {
-            // Count the number of statements for batching purposes.
-            int count = 0;
-            for (String key : keys) {
-                if (count >= DELETE_BATCH_SIZE) {
-                    stmt.executeBatch();
-                    count = 0;
+    public int deleteRecords(String table, Collection<?> keys) throws SQLException {
+        int retVal = 0;
+        final int n = keys.size();
+        if (n > 0) {
+            DbTable tableDesc = this.getTable(table);
+            if (tableDesc == null)
+                throw new SQLException("Table " + table + " not found in database.");
+            String keyName = tableDesc.getKeyName();
+            if (keyName == null)
+                throw new SQLException("Cannot do delete-records on table " + table + ", which has no primary key.");
+            DbType keyType = tableDesc.getType(keyName);
+            DbValue keyValue = keyType.create();
+            final int chunkSize = Math.min(n, this.maxParameters());
+            SqlBuffer buffer = new SqlBuffer(this);
+            buffer.append("DELETE FROM ").quote(table).append(" WHERE ").quote(keyName).append(" IN ")
+                    .addMarkList(chunkSize);
+            PreparedStatement stmt = this.createStatement(buffer);
+            try {
+                // This tracks the position in the current chunk.
+                int count = 0;
+                // This tracks the number of keys left to process.
+                int remaining = n;
+                for (Object key : keys) {
+                    keyValue.setObject(convertKey(keyType, key));
+                    count++;
+                    keyValue.store(stmt, count);
+                    if (count >= chunkSize || count >= remaining) {
+                        // Here we have a full chunk, or the residual.
+                        retVal += stmt.executeUpdate();
+                        for (int i = 0; i < count; i++)
+                            this.recordRow(table, null, keyValue.getSizeEstimate());
+                        remaining -= count;
+                        count = 0;
+                        if (remaining > 0 && remaining < chunkSize) {
+                            // Prepare a smaller statement for the residual.
+                            stmt.close();
+                            buffer.start("DELETE FROM ").quote(table).append(" WHERE ").quote(keyName)
+                                    .append(" IN ").addMarkList(remaining);
+                            stmt = this.createStatement(buffer);
+                        }
+                    }
                 }
-                stmt.setString(1, key);
-                stmt.addBatch();
-                count++;
+            } finally {
+                stmt.close();
+            }
+            this.keysDeleted(table, retVal);
+            if (this.getEntityCache(table) != null) {
+                List<String> keyStrings = new ArrayList<>(n);
+                for (Object key : keys)
+                    keyStrings.add(key.toString());
+                this.entitiesChanged(table, keyStrings);
+            }
+            this.tableChanged(table, true);
+        }
+        return retVal;
+    }
+
+    /**
+     * Convert a key to the type of a table's key field.  Integer keys can be specified as numbers or strings,
+     * and string keys as any object.
+     *
+     * @param keyType	type of the key field
+     * @param key		key to convert
+     *
+     * @return an object compatible with the key field's value holder
+     *
+     * @throws SQLException
+     */
+    private static Object convertKey(DbType keyType, Object key) throws SQLException {
+        Object retVal = key;
+        if (keyType == DbType.STRING)
+            retVal = key.toString();
+        else if (keyType == DbType.INTEGER && ! (key instanceof Number)) {
+            try {
+                retVal = Integer.valueOf(key.toString().trim());
+            } catch (NumberFormatException e) {
+                throw new SQLException("Invalid integer key \"" + key + "\".");
             }
-            if (count > 0)
-                stmt.executeBatch();
         }
+        return retVal;
+    }
+
+    /**
+     * Delete the records in a table that satisfy the filters of a query.  The delete is performed
+     * entirely in the database, using the query's current parameter values.  The query can join
+     * other tables in order to filter the target table's records, in which case the target table
+     * must have a primary key.
+     *
+     * @param query		query whose path and filters identify the records to delete
+     * @param table		table specification (name or alias in the query path) of the target table
+     *
+     * @return the number of records deleted
+     *
+     * @throws SQLException
+     */
+    public int deleteWhere(DbQuery query, String table) throws SQLException {
+        int retVal = query.executeDelete(table);
+        String realName = query.getTableName(table);
+        this.keysDeleted(realName, retVal);
+        this.entitiesChanged(realName, null);
+        this.tableChanged(realName, true);
+        log.debug("{} records deleted from {} in database {}.", retVal, table, this.getName());
+        return retVal;
     }
 
     /**
@@ -709,35 +1882,132 @@ public abstract class DbConnection implements AutoCloseable {
      */
     private DbRecord getRecord(String table, DbValue valueObject) throws SQLException {
         DbRecord retVal = null;
-        SqlBuffer buffer = new SqlBuffer(this);
+        DbEntityCache cache = this.getEntityCache(table);
+        DbPinnedTable pinned = this.getPinnedTable(table);
+        String key = null;
+        if (pinned != null)
+            retVal = pinned.get(valueObject.getString());
+        else if (cache != null) {
+            key = valueObject.getString();
+            retVal = cache.get(key);
+        }
+        if (retVal == null && pinned == null) {
+            DbTable tableDesc = this.getTable(table);
+            List<String> names = new ArrayList<String>();
+            List<DbType> types = new ArrayList<DbType>();
+            SqlBuffer buffer = this.buildRecordSelect(tableDesc, (cache == null ? table : cache.getTable()),
+                    names, types);
+            buffer.append(" = ").appendMark();
+            try (PreparedStatement stmt = this.createStatement(buffer)) {
+                // Store the key value in the query and execute it.
+                valueObject.store(stmt, 1);
+                ResultSet results = stmt.executeQuery();
+                if (results.next()) {
+                    retVal = new DbRecord(results, names, types);
+                    if (cache != null)
+                        cache.put(key, retVal);
+                }
+            }
+        }
+        // Return the result.  If no record was found, this will be NULL.
+        return retVal;
+    }
+
+    /**
+     * Retrieve the records with the specified primary key values, containing all their fields.  Records
+     * in the entity cache are returned from memory, and the others are read using "IN" lists as large as the
+     * database's parameter limit allows.  The keys can be strings or integers.
+     *
+     * @param table		table from which to query
+     * @param keys		primary keys of the desired records
+     *
+     * @return a map from the primary key strings of the records found to the records themselves
+     *
+     * @throws SQLException
+     */
+    public Map<String, DbRecord> getRecords(String table, Collection<?> keys) throws SQLException {
+        Map<String, DbRecord> retVal = new HashMap<>(keys.size() * 4 / 3 + 1);
         DbTable tableDesc = this.getTable(table);
+        if (tableDesc == null)
+            throw new SQLException("Table " + table + " not found in database.");
+        DbEntityCache cache = this.getEntityCache(table);
+        DbPinnedTable pinned = this.getPinnedTable(table);
+        // Find the keys we need to read.
+        List<Object> needed = new ArrayList<>(keys.size());
+        for (Object key : keys) {
+            DbRecord record;
+            if (pinned != null)
+                record = pinned.get(key.toString());
+            else
+                record = (cache == null ? null : cache.get(key.toString()));
+            if (record != null)
+                retVal.put(key.toString(), record);
+            else if (pinned == null)
+                needed.add(key);
+        }
+        final int n = needed.size();
+        if (n > 0) {
+            List<String> names = new ArrayList<String>();
+            List<DbType> types = new ArrayList<DbType>();
+            String prefix = (cache == null ? table : cache.getTable());
+            SqlBuffer base = this.buildRecordSelect(tableDesc, prefix, names, types);
+            // Find the position of the key in the record.
+            int keyIdx = names.indexOf(prefix + "." + tableDesc.getKeyName());
+            DbValue keyValue = tableDesc.getType(tableDesc.getKeyName()).create();
+            final int chunkSize = Math.min(n, this.maxParameters());
+            for (int start = 0; start < n; start += chunkSize) {
+                final int end = Math.min(n, start + chunkSize);
+                SqlBuffer buffer = new SqlBuffer(this).append(base).append(" IN ").addMarkList(end - start);
+                try (PreparedStatement stmt = this.createStatement(buffer)) {
+                    for (int i = start; i < end; i++) {
+                        keyValue.setObject(needed.get(i));
+                        keyValue.store(stmt, i - start + 1);
+                    }
+                    ResultSet results = stmt.executeQuery();
+                    while (results.next()) {
+                        DbRecord record = new DbRecord(results, names, types);
+                        String key = record.getValue(keyIdx).getString();
+                        retVal.put(key, record);
+                        if (cache != null)
+                            cache.put(key, record);
+                    }
+                }
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * Build the start of a statement that selects all the fields of a table's records by primary key.  The
+     * statement ends with the primary key field name, so that the caller can add the comparison.
+     *
+     * @param tableDesc		descriptor of the table to query
+     * @param prefix		table name to use in the field specs of the records
+     * @param names			list to receive the field specs of the records
+     * @param types			list to receive the field types of the records
+     *
+     * @return an SQL buffer containing the start of the statement
+     *
+     * @throws SQLException
+     */
+    private SqlBuffer buildRecordSelect(DbTable tableDesc, String prefix, List<String> names, List<DbType> types)
+            throws SQLException {
+        SqlBuffer retVal = new SqlBuffer(this);
+        String table = tableDesc.getName();
         String keyName = tableDesc.getKeyName();
         if (keyName == null)
             throw new SQLException("Cannot do get-record on table " + table + ", which has no primary key.");
-        // Build the return slots for this record.  We need all the field names.
+        // Build the return slots for the records.  We need all the field names.
         Collection<DbTable.Field> fields = tableDesc.getFields();
-        List<String> names = new ArrayList<String>(fields.size());
-        List<DbType> types = new ArrayList<DbType>(fields.size());
-        buffer.append("SELECT ").startList();
+        retVal.append("SELECT ").startList();
         for (DbTable.Field field : fields) {
-            names.add(table + "." + field.getName());
+            names.add(prefix + "." + field.getName());
             types.add(field.getType());
-            buffer.appendDelim().quote(table, field.getName());
+            retVal.appendDelim().quote(table, field.getName());
         }
         // Now finish the query.
-        buffer.append(" FROM ").quote(table).append(" WHERE ")
-                .quote(keyName).append(" = ").appendMark();
-        try (PreparedStatement stmt = this.createStatement(buffer)) {
-            // Store the key value in the query and execute it.
-            valueObject.store(stmt, 1);
-            ResultSet results = stmt.executeQuery();
-            if (results.next()) {
-                retVal = new DbRecord(results, names, types);
-            }
-        }
-        // Return the result.  If a record was found, this will be TRUE.
+        retVal.append(" FROM ").quote(table).append(" WHERE ").quote(keyName);
         return retVal;
-
     }
 
 }
@@ -0,0 +1,164 @@
+/**
+ *
+ */
+package org.theseed.java.erdb;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This object caches the records of a single table by primary key.  The cache holds a limited number of
+ * records, and when it is full the least recently used record is evicted.  The owning connection removes
+ * records from the cache when they are updated or deleted.
+ *
+ * The cached records are shared by all the clients that receive them, and must not be modified.  The field
+ * specifications in a cached record always use the real name of the table.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class DbEntityCache {
+
+    // FIELDS
+    /** real name of the cached table */
+    private String table;
+    /** maximum number of records to cache */
+    private int maxEntries;
+    /** map of primary keys to records, in least-recently-used order */
+    private LinkedHashMap<String, DbRecord> records;
+    /** number of requests satisfied from the cache */
+    private long hits;
+    /** number of requests not satisfied from the cache */
+    private long misses;
+    /** number of records evicted to make room */
+    private long evictions;
+    /** number of records removed because they changed */
+    private long invalidations;
+
+    /**
+     * Create an empty entity cache for a table.
+     *
+     * @param table			real name of the table
+     * @param maxEntries	maximum number of records to cache
+     */
+    public DbEntityCache(String table, int maxEntries) {
+        if (maxEntries <= 0)
+            throw new IllegalArgumentException("Entity cache size must be positive.");
+        this.table = table;
+        this.maxEntries = maxEntries;
+        this.records = new LinkedHashMap<>(Math.min(maxEntries, 1024) * 4 / 3 + 1, 0.75f, true);
+        this.hits = 0;
+        this.misses = 0;
+        this.evictions = 0;
+        this.invalidations = 0;
+    }
+
+    /**
+     * @return the cached record with the specified key, or NULL if it is not cached
+     *
+     * @param key	primary key of the desired record
+     */
+    public synchronized DbRecord get(String key) {
+        DbRecord retVal = this.records.get(key);
+        if (retVal == null)
+            this.misses++;
+        else
+            this.hits++;
+        return retVal;
+    }
+
+    /**
+     * Store a record in the cache.
+     *
+     * @param key		primary key of the record
+     * @param record	record to store
+     */
+    public synchronized void put(String key, DbRecord record) {
+        this.records.put(key, record);
+        if (this.records.size() > this.maxEntries) {
+            Iterator<Map.Entry<String, DbRecord>> iter = this.records.entrySet().iterator();
+            while (this.records.size() > this.maxEntries) {
+                iter.next();
+                iter.remove();
+                this.evictions++;
+            }
+        }
+    }
+
+    /**
+     * Remove a record from the cache.
+     *
+     * @param key	primary key of the record that changed
+     */
+    public synchronized void invalidate(String key) {
+        if (this.records.remove(key) != null)
+            this.invalidations++;
+    }
+
+    /**
+     * Remove all the records from the cache.
+     */
+    public synchronized void clear() {
+        this.invalidations += this.records.size();
+        this.records.clear();
+    }
+
+    /**
+     * @return the real name of the cached table
+     */
+    public String getTable() {
+        return this.table;
+    }
+
+    /**
+     * @return the maximum number of records to cache
+     */
+    public int getMaxEntries() {
+        return this.maxEntries;
+    }
+
+    /**
+     * @return the number of records in the cache
+     */
+    public synchronized int size() {
+        return this.records.size();
+    }
+
+    /**
+     * @return the number of requests satisfied from the cache
+     */
+    public synchronized long getHits() {
+        return this.hits;
+    }
+
+    /**
+     * @return the number of requests not satisfied from the cache
+     */
+    public synchronized long getMisses() {
+        return this.misses;
+    }
+
+    /**
+     * @return the fraction of requests satisfied from the cache
+     */
+    public synchronized double getHitRate() {
+        long total = this.hits + this.misses;
+        return (total == 0 ? 0.0 : (double) this.hits / total);
+    }
+
+    /**
+     * @return the number of records evicted to make room for new ones
+     */
+    public synchronized long getEvictions() {
+        return this.evictions;
+    }
+
+    /**
+     * @return the number of records removed because they changed
+     */
+    public synchronized long getInvalidations() {
+        return this.invalidations;
+    }
+
+}
@@ -0,0 +1,248 @@
+/**
+ *
+ */
+package org.theseed.java.erdb;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This object returns the results of a query one page at a time using keyset pagination.  Rather than skipping
+ * the records of the earlier pages with an offset, the pager remembers the ordering-field values of the last
+ * record in each page, and the next page is selected with a row-value filter of the form
+ *
+ * 		(a, b) > (?, ?)
+ *
+ * where "a" and "b" are the ordering fields.  With an index on the ordering fields, the cost of each page is
+ * proportional to the page size, no matter how deep the page.
+ *
+ * The query must have an ordering, and the ordering fields must be non-null and must together identify each
+ * record uniquely (for example, by ending with the primary key).  If the ordering fields are not in the query's
+ * select list, the pager selects them as well, so they are in the records it returns; the query itself is not
+ * changed.  The pager uses the query's parameter values at the time each page is read.
+ * All the joins in the query are performed in the database, and the query's own limit and offset are ignored.
+ *
+ * The last key of a page can be saved and used to resume the paging later, which allows a stateless client to
+ * request the page after a given position.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class DbKeysetPager implements AutoCloseable {
+
+    // FIELDS
+    /** query being paged */
+    private DbQuery query;
+    /** database connection */
+    private DbConnection db;
+    /** number of records per page */
+    private int pageSize;
+    /** field specs of the fields selected by the pager */
+    private List<String> fieldNames;
+    /** types of the fields selected by the pager */
+    private List<DbType> fieldTypes;
+    /** field specs of the ordering fields */
+    private List<String> keyFields;
+    /** ordering-field values of the last record returned, or NULL if we are at the start */
+    private List<DbValue> lastKey;
+    /** TRUE if the last page has been read */
+    private boolean done;
+    /** statement for the first page, or NULL if it has not been prepared */
+    private PreparedStatement firstStmt;
+    /** statement for subsequent pages, or NULL if it has not been prepared */
+    private PreparedStatement nextStmt;
+
+    /**
+     * Create a pager for a query.
+     *
+     * @param query		query whose results are to be paged
+     * @param pageSize	number of records per page
+     *
+     * @throws SQLException
+     */
+    protected DbKeysetPager(DbQuery query, int pageSize) throws SQLException {
+        if (pageSize < 1)
+            throw new SQLException("Invalid page size " + pageSize + ".");
+        this.keyFields = query.getOrderFields();
+        if (this.keyFields.isEmpty())
+            throw new SQLException("Keyset paging requires a query with an ordering.");
+        // Insure the ordering fields are in our select list.  The query may be in use, so we do not modify it.
+        this.fieldNames = new ArrayList<>(query.getFieldNames());
+        this.fieldTypes = new ArrayList<>(query.getFieldTypes());
+        for (String field : this.keyFields) {
+            if (! this.fieldNames.contains(field)) {
+                this.fieldNames.add(field);
+                this.fieldTypes.add(query.getQueryField(field).getType());
+            }
+        }
+        this.query = query;
+        this.db = query.getDb();
+        this.pageSize = pageSize;
+        this.lastKey = null;
+        this.done = false;
+        this.firstStmt = null;
+        this.nextStmt = null;
+    }
+
+    /**
+     * @return the next page of results, or an empty list if there are no more
+     *
+     * @throws SQLException
+     */
+    public synchronized List<DbRecord> nextPage() throws SQLException {
+        List<DbRecord> retVal = new ArrayList<>(this.pageSize);
+        if (! this.done) {
+            PreparedStatement stmt;
+            if (this.lastKey == null) {
+                if (this.firstStmt == null)
+                    this.firstStmt = this.db.createStatement(this.buildSql(false));
+                stmt = this.firstStmt;
+            } else {
+                if (this.nextStmt == null)
+                    this.nextStmt = this.db.createStatement(this.buildSql(true));
+                stmt = this.nextStmt;
+                // The key values go after the query's own parameters.
+                int idx = this.query.getParmCount() + 1;
+                for (DbValue keyValue : this.lastKey)
+                    keyValue.store(stmt, idx++);
+            }
+            this.query.storeParms(stmt);
+            try (ResultSet results = stmt.executeQuery()) {
+                while (results.next())
+                    retVal.add(new DbRecord(results, this.fieldNames, this.fieldTypes));
+            }
+            // A short page is the last one.
+            this.done = (retVal.size() < this.pageSize);
+            if (! retVal.isEmpty()) {
+                DbRecord last = retVal.get(retVal.size() - 1);
+                List<DbValue> newKey = new ArrayList<>(this.keyFields.size());
+                for (String field : this.keyFields)
+                    newKey.add(last.getValue(field).copy());
+                this.lastKey = newKey;
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * Build the SQL statement for a page.
+     *
+     * @param keyed		TRUE if the page follows a previous page, else FALSE
+     *
+     * @return the SQL text for the page query
+     *
+     * @throws SQLException
+     */
+    private String buildSql(boolean keyed) throws SQLException {
+        SqlBuffer buffer = new SqlBuffer(this.db).append("SELECT ").startList();
+        for (String field : this.fieldNames)
+            buffer.appendDelim().quoteSpec(field);
+        this.query.appendFromWhere(buffer);
+        if (keyed) {
+            buffer.append(this.query.hasFilters() ? " AND " : " WHERE ").append("(").startList();
+            for (String field : this.keyFields)
+                buffer.appendDelim().quoteSpec(field);
+            buffer.append(") > ").addMarkList(this.keyFields.size());
+        }
+        this.query.appendOrderBy(buffer);
+        this.db.appendLimit(buffer, this.pageSize, 0);
+        return buffer.toString();
+    }
+
+    /**
+     * @return TRUE if there may be more pages to read
+     */
+    public synchronized boolean hasMore() {
+        return ! this.done;
+    }
+
+    /**
+     * @return copies of the ordering-field values of the last record returned, or NULL if no records have been
+     * 		   returned
+     */
+    public synchronized List<DbValue> getLastKey() {
+        List<DbValue> retVal = null;
+        if (this.lastKey != null) {
+            retVal = new ArrayList<>(this.lastKey.size());
+            for (DbValue keyValue : this.lastKey)
+                retVal.add(keyValue.copy());
+        }
+        return retVal;
+    }
+
+    /**
+     * Position the pager so that the next page starts after the specified key.  This is used to resume paging
+     * from a key saved using {@link #getLastKey()}.
+     *
+     * @param key		ordering-field values of the record preceding the desired page
+     *
+     * @return this object, for fluent invocation
+     *
+     * @throws SQLException
+     */
+    public synchronized DbKeysetPager seek(List<DbValue> key) throws SQLException {
+        this.checkKeySize(key.size());
+        List<DbValue> newKey = new ArrayList<>(key.size());
+        for (DbValue keyValue : key)
+            newKey.add(keyValue.copy());
+        this.lastKey = newKey;
+        this.done = false;
+        return this;
+    }
+
+    /**
+     * Position the pager so that the next page starts after the record with the specified ordering-field
+     * values.
+     *
+     * @param values	ordering-field values of the record preceding the desired page
+     *
+     * @return this object, for fluent invocation
+     *
+     * @throws SQLException
+     */
+    public synchronized DbKeysetPager seek(Object... values) throws SQLException {
+        this.checkKeySize(values.length);
+        List<DbValue> newKey = new ArrayList<>(values.length);
+        for (int i = 0; i < values.length; i++) {
+            DbValue keyValue = this.fieldTypes.get(this.fieldNames.indexOf(this.keyFields.get(i))).create();
+            keyValue.setObject(values[i]);
+            newKey.add(keyValue);
+        }
+        this.lastKey = newKey;
+        this.done = false;
+        return this;
+    }
+
+    /**
+     * Insure a key has the correct number of values.
+     *
+     * @param size		number of values in the key
+     *
+     * @throws SQLException
+     */
+    private void checkKeySize(int size) throws SQLException {
+        if (size != this.keyFields.size())
+            throw new SQLException("Key has " + size + " values, but the ordering has " + this.keyFields.size()
+                    + " fields.");
+    }
+
+    /**
+     * Return the pager to the first page.
+     */
+    public synchronized void reset() {
+        this.lastKey = null;
+        this.done = false;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        if (this.firstStmt != null)
+            this.firstStmt.close();
+        if (this.nextStmt != null)
+            this.nextStmt.close();
+    }
+
+}
@@ -0,0 +1,344 @@
+/**
+ *
+ */
+package org.theseed.java.erdb;
+
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This object schedules the loading of multiple tables so that foreign-key order is respected.  The client
+ * registers a load task for each table.  The scheduler uses the link metadata of the tables to determine which
+ * tables refer to which others, and a table's task is only started after the tasks for all of its parent tables
+ * (the tables its foreign keys reference) have finished and committed.  Links to tables that have no task in
+ * the schedule are ignored, as are links from a table to itself.
+ *
+ * If a connection source is specified, independent tables are loaded concurrently, each task running in its own
+ * transaction on its own connection, which is closed when the task finishes.  This is appropriate for a server
+ * database like MySQL.  Otherwise, the tasks are run one at a time on the scheduler's connection in dependency
+ * order, each in its own transaction.  This is appropriate for SQLite, which only allows a single writer.
+ *
+ * In either mode, if a task fails, the tasks that depend on it are not run, but independent tasks are still run
+ * to completion.  The first failure is then thrown to the caller.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class DbLoadScheduler {
+
+    // FIELDS
+    /** logging facility */
+    private static final Logger log = LoggerFactory.getLogger(DbLoadScheduler.class);
+    /** main database connection */
+    private DbConnection db;
+    /** source of additional connections for concurrent loading, or NULL to load on the main connection */
+    private IConnectionSource connections;
+    /** maximum number of tables to load concurrently */
+    private int threads;
+    /** map of lower-case table names to load tasks, in registration order */
+    private Map<String, Task> taskMap;
+    /** default maximum number of concurrent loads */
+    private static final int DEFAULT_THREADS = 4;
+
+    /**
+     * This interface describes the load task for a single table.
+     */
+    public interface ITableLoader {
+
+        /**
+         * Load data into the table.  The task is run inside a transaction, which is committed when it returns.
+         *
+         * @param db		database connection to use
+         *
+         * @throws SQLException
+         */
+        public void load(DbConnection db) throws SQLException;
+
+    }
+
+    /**
+     * This interface describes an object that opens new connections to the target database.
+     */
+    public interface IConnectionSource {
+
+        /**
+         * @return a new connection to the database
+         *
+         * @throws SQLException
+         */
+        public DbConnection open() throws SQLException;
+
+    }
+
+    /**
+     * This object describes a registered table load.
+     */
+    private static class Task {
+
+        /** name of the table */
+        private String table;
+        /** load task for the table */
+        private ITableLoader loader;
+        /** lower-case names of the parent tables in the schedule */
+        private List<String> parents;
+
+        /**
+         * Create a table load descriptor.
+         *
+         * @param table		name of the table
+         * @param loader	load task for the table
+         */
+        private Task(String table, ITableLoader loader) {
+            this.table = table;
+            this.loader = loader;
+            this.parents = new ArrayList<>();
+        }
+
+    }
+
+    /**
+     * Create a load scheduler for a database.
+     *
+     * @param db		main database connection, used for metadata and for loading if no connection source
+     * 					is specified
+     */
+    public DbLoadScheduler(DbConnection db) {
+        this.db = db;
+        this.connections = null;
+        this.threads = DEFAULT_THREADS;
+        this.taskMap = new LinkedHashMap<>();
+    }
+
+    /**
+     * Specify a source of connections for concurrent loading.
+     *
+     * @param connections	object that opens new connections to the database
+     * @param threads		maximum number of tables to load at once
+     *
+     * @return this object, for fluent invocation
+     */
+    public DbLoadScheduler setConcurrent(IConnectionSource connections, int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("Thread count must be at least 1.");
+        this.connections = connections;
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * Register the load task for a table.
+     *
+     * @param table		name of the table to load
+     * @param loader	task that loads the table
+     *
+     * @return this object, for fluent invocation
+     *
+     * @throws SQLException
+     */
+    public DbLoadScheduler add(String table, ITableLoader loader) throws SQLException {
+        DbTable tableData = this.db.getTable(table);
+        if (tableData == null)
+            throw new SQLException("Table " + table + " does not exist in database " + this.db.getName() + ".");
+        String lcName = tableData.getName().toLowerCase();
+        if (this.taskMap.containsKey(lcName))
+            throw new SQLException("Table " + table + " is scheduled twice.");
+        this.taskMap.put(lcName, new Task(tableData.getName(), loader));
+        return this;
+    }
+
+    /**
+     * Compute the parents of each task in the schedule.
+     *
+     * @throws SQLException
+     */
+    private void computeParents() throws SQLException {
+        for (Map.Entry<String, Task> taskEntry : this.taskMap.entrySet()) {
+            String lcName = taskEntry.getKey();
+            Task task = taskEntry.getValue();
+            task.parents.clear();
+            DbTable tableData = this.db.getTable(task.table);
+            for (Map.Entry<String, DbTable.Link> linkEntry : tableData.getLinks()) {
+                String other = linkEntry.getKey();
+                if (linkEntry.getValue().isImported() && ! other.equals(lcName) && this.taskMap.containsKey(other))
+                    task.parents.add(other);
+            }
+        }
+    }
+
+    /**
+     * @return the names of the scheduled tables in an order in which they can be loaded
+     *
+     * @throws SQLException
+     */
+    public List<String> getLoadOrder() throws SQLException {
+        this.computeParents();
+        // Count the unloaded parents of each table and list the children of each table.
+        Map<String, Integer> waiting = new HashMap<>();
+        Map<String, List<String>> children = new HashMap<>();
+        Deque<String> ready = new ArrayDeque<>();
+        for (Map.Entry<String, Task> taskEntry : this.taskMap.entrySet()) {
+            String lcName = taskEntry.getKey();
+            List<String> parents = taskEntry.getValue().parents;
+            waiting.put(lcName, parents.size());
+            for (String parent : parents)
+                children.computeIfAbsent(parent, x -> new ArrayList<>()).add(lcName);
+            if (parents.isEmpty())
+                ready.add(lcName);
+        }
+        // Release the tables in dependency order.
+        List<String> retVal = new ArrayList<>(this.taskMap.size());
+        while (! ready.isEmpty()) {
+            String lcName = ready.remove();
+            retVal.add(this.taskMap.get(lcName).table);
+            for (String child : children.getOrDefault(lcName, List.of())) {
+                int count = waiting.merge(child, -1, Integer::sum);
+                if (count == 0)
+                    ready.add(child);
+            }
+        }
+        if (retVal.size() < this.taskMap.size()) {
+            TreeSet<String> cycle = new TreeSet<>();
+            for (Task task : this.taskMap.values()) {
+                if (! retVal.contains(task.table))
+                    cycle.add(task.table);
+            }
+            throw new SQLException("Circular foreign-key dependency among tables " + String.join(", ", cycle) + ".");
+        }
+        return retVal;
+    }
+
+    /**
+     * Run all the scheduled load tasks.
+     *
+     * @throws SQLException
+     */
+    public void run() throws SQLException {
+        List<String> order = this.getLoadOrder();
+        long start = System.currentTimeMillis();
+        if (this.connections == null)
+            this.runSequential(order);
+        else
+            this.runConcurrent(order);
+        log.info("{} tables loaded in {} ms.", order.size(), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Run the scheduled load tasks one at a time on the main connection.
+     *
+     * @param order		table names in dependency order
+     *
+     * @throws SQLException
+     */
+    private void runSequential(List<String> order) throws SQLException {
+        // This tracks the tables that failed or were skipped because a parent failed.
+        Set<String> failed = new HashSet<>();
+        Exception error = null;
+        for (String table : order) {
+            String lcName = table.toLowerCase();
+            Task task = this.taskMap.get(lcName);
+            if (task.parents.stream().anyMatch(x -> failed.contains(x))) {
+                log.warn("Table {} skipped because a table it depends on failed to load.", table);
+                failed.add(lcName);
+            } else {
+                try {
+                    runTask(this.db, task);
+                } catch (SQLException | RuntimeException e) {
+                    log.error("Error loading table {}: {}", table, e.getMessage());
+                    failed.add(lcName);
+                    if (error == null)
+                        error = e;
+                }
+            }
+        }
+        if (error instanceof SQLException)
+            throw (SQLException) error;
+        else if (error != null)
+            throw (RuntimeException) error;
+    }
+
+    /**
+     * Run the scheduled load tasks concurrently, each on its own connection.
+     *
+     * @param order		table names in dependency order
+     *
+     * @throws SQLException
+     */
+    private void runConcurrent(List<String> order) throws SQLException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(this.threads, order.size()));
+        try {
+            // Because the tables are in dependency order, each table's parents have futures by the time we
+            // reach it.
+            Map<String, CompletableFuture<Void>> futures = new HashMap<>();
+            for (String table : order) {
+                String lcName = table.toLowerCase();
+                Task task = this.taskMap.get(lcName);
+                CompletableFuture<?>[] parents = task.parents.stream().map(x -> futures.get(x))
+                        .toArray(CompletableFuture<?>[]::new);
+                CompletableFuture<Void> future = CompletableFuture.allOf(parents).thenRunAsync(() -> {
+                    try (DbConnection taskDb = this.connections.open()) {
+                        runTask(taskDb, task);
+                    } catch (Exception e) {
+                        throw new CompletionException(e);
+                    }
+                }, executor);
+                futures.put(lcName, future);
+            }
+            // Wait for all the tasks to finish, and then report the first failure.  We must not throw before
+            // every task is done, or tasks could still be running on their connections after we return.
+            Throwable error = null;
+            String errorTable = null;
+            for (String table : order) {
+                try {
+                    futures.get(table.toLowerCase()).join();
+                } catch (CompletionException e) {
+                    if (error == null) {
+                        error = e.getCause();
+                        errorTable = table;
+                    }
+                }
+            }
+            if (error instanceof SQLException)
+                throw (SQLException) error;
+            else if (error instanceof RuntimeException)
+                throw (RuntimeException) error;
+            else if (error != null)
+                throw new SQLException("Error loading table " + errorTable + ": " + error.getMessage(), error);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Run a single load task in its own transaction.
+     *
+     * @param taskDb	database connection to use
+     * @param task		task to run
+     *
+     * @throws SQLException
+     */
+    private static void runTask(DbConnection taskDb, Task task) throws SQLException {
+        long start = System.currentTimeMillis();
+        try (DbConnection.Transaction xact = taskDb.new Transaction()) {
+            task.loader.load(taskDb);
+            xact.commit();
+        }
+        log.info("Table {} loaded in {} ms.", task.table, System.currentTimeMillis() - start);
+    }
+
+}
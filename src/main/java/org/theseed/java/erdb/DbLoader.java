@@ -4,7 +4,31 @@
 package org.theseed.java.erdb;
 
 import java.sql.SQLException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import org.theseed.java.erdb.types.DbBoolean;
+import org.theseed.java.erdb.types.DbDate;
+import org.theseed.java.erdb.types.DbDouble;
+import org.theseed.java.erdb.types.DbDoubleArray;
+import org.theseed.java.erdb.types.DbInteger;
+import org.theseed.java.erdb.types.DbLocation;
+import org.theseed.java.erdb.types.DbString;
+import org.theseed.locations.Location;
 
 /**
  * This class loads records for a single table into the database.  A prepared statement is built
@@ -16,11 +40,218 @@ import java.util.Collection;
  *
  * Parameter values are not cleared between inserts, so if a value is not set it will remain the same.
  *
+ * A loader can be put into error-tolerant mode by calling "tolerant" with a reject handler.  In this mode,
+ * a batch that fails (for example, because one row violates a foreign key) is bisected to find the bad rows,
+ * which are passed to the handler, and the remaining rows are inserted.
+ *
+ * A loader can also be put into skip-existing mode by calling "skipExisting".  In this mode, rows whose
+ * primary key (or any other unique key) already exists in the table are silently skipped by the database,
+ * and the numbers of inserted and skipped rows are available after the batches are executed.
+ *
+ * Finally, "loadAll" loads an entire stream of input objects.  A mapping function converts each object into a
+ * row using a {@link RowSetter}.  The mapping and the encoding of the values into their bound form are done in
+ * parallel on the common fork-join pool, while the encoded rows are bound and batched by the calling thread,
+ * which remains the only thread that touches the database connection.
+ *
  * @author Bruce Parrello
  *
  */
 public class DbLoader extends DbBaseUpdate {
 
+    // FIELDS
+    /** names of the fields in the insert statement, in parameter order */
+    private String[] fieldList;
+    /** TRUE if rows with existing keys are skipped */
+    private boolean skipping;
+    /** maximum number of encoded rows waiting to be bound during a stream load */
+    private static final int LOAD_QUEUE_SIZE = 4096;
+    /** number of milliseconds to wait for room in the load queue before checking for an abort */
+    private static final long LOAD_QUEUE_WAIT = 100;
+    /** marker for the end of the encoded rows in a stream load */
+    private static final DbValue[] END_OF_ROWS = new DbValue[0];
+
+    /**
+     * This object is used by the mapping function in a stream load to fill in the values of a single row.
+     * Each row setter has its own private value holders, so row setters can be filled concurrently.  Because
+     * the mapping function cannot throw checked exceptions, errors are thrown as runtime exceptions wrapping
+     * the underlying SQL exception.
+     */
+    public class RowSetter {
+
+        /** value holders for this row, in parameter order */
+        private DbValue[] row;
+
+        /**
+         * Create a row setter with all of its values null.
+         */
+        protected RowSetter() {
+            this.row = DbLoader.this.createRow();
+        }
+
+        /**
+         * @return the value holder for a field in this row
+         *
+         * @param field		name of the field of interest
+         * @param class1	required holder type for the field
+         */
+        private <T extends DbValue> T getField(String field, Class<T> class1) {
+            int idx = DbLoader.this.getParmIndex(field);
+            if (idx < 0)
+                throw new RuntimeException(new SQLException("Field " + field + " does not exist in statement."));
+            DbValue retVal = this.row[idx];
+            if (! class1.isAssignableFrom(retVal.getClass()))
+                throw new RuntimeException(new SQLException("Field " + field + " in query is not a "
+                        + class1.toString() + "."));
+            return class1.cast(retVal);
+        }
+
+        /**
+         * Store a string in a field.
+         *
+         * @param field		name of the field
+         * @param value		string value to store
+         *
+         * @return this object, for fluent invocation
+         */
+        public RowSetter set(String field, String value) {
+            this.getField(field, DbString.class).set(value);
+            return this;
+        }
+
+        /**
+         * Store an integer in a field.
+         *
+         * @param field		name of the field
+         * @param value		integer value to store
+         *
+         * @return this object, for fluent invocation
+         */
+        public RowSetter set(String field, int value) {
+            this.getField(field, DbInteger.class).set(value);
+            return this;
+        }
+
+        /**
+         * Store a floating-point number in a field.
+         *
+         * @param field		name of the field
+         * @param value		value to store
+         *
+         * @return this object, for fluent invocation
+         */
+        public RowSetter set(String field, double value) {
+            this.getField(field, DbDouble.class).set(value);
+            return this;
+        }
+
+        /**
+         * Store a boolean value in a field.
+         *
+         * @param field		name of the field
+         * @param b			boolean value to store
+         *
+         * @return this object, for fluent invocation
+         */
+        public RowSetter set(String field, boolean b) {
+            this.getField(field, DbBoolean.class).set(b);
+            return this;
+        }
+
+        /**
+         * Store a double array in a field.
+         *
+         * @param field		name of the field
+         * @param array		double-array to store
+         *
+         * @return this object, for fluent invocation
+         */
+        public RowSetter set(String field, double[] array) {
+            this.getField(field, DbDoubleArray.class).set(array);
+            return this;
+        }
+
+        /**
+         * Store a location in a field.
+         *
+         * @param field		name of the field
+         * @param loc		location value to store
+         *
+         * @return this object, for fluent invocation
+         */
+        public RowSetter set(String field, Location loc) {
+            this.getField(field, DbLocation.class).set(loc);
+            return this;
+        }
+
+        /**
+         * Store a date in a field.
+         *
+         * @param field		name of the field
+         * @param date		date to store
+         *
+         * @return this object, for fluent invocation
+         */
+        public RowSetter set(String field, Instant date) {
+            this.getField(field, DbDate.class).set(date);
+            return this;
+        }
+
+        /**
+         * Store a local date in a field.
+         *
+         * @param field		name of the field
+         * @param date		date to store
+         *
+         * @return this object, for fluent invocation
+         */
+        public RowSetter set(String field, LocalDate date) {
+            this.getField(field, DbDate.class).set(date);
+            return this;
+        }
+
+        /**
+         * Store an arbitrary object in a field.  The object must be compatible with the field's type.
+         * A NULL object stores a null value.
+         *
+         * @param field		name of the field
+         * @param value		object to store
+         *
+         * @return this object, for fluent invocation
+         */
+        public RowSetter setValue(String field, Object value) {
+            try {
+                this.getField(field, DbValue.class).setObject(value);
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+            return this;
+        }
+
+        /**
+         * Store a null value in a field.
+         *
+         * @param field		name of the field
+         *
+         * @return this object, for fluent invocation
+         */
+        public RowSetter setNull(String field) {
+            this.getField(field, DbValue.class).setNull();
+            return this;
+        }
+
+        /**
+         * Encode the values of this row for binding.
+         *
+         * @return the encoded row
+         */
+        protected DbValue[] encode() {
+            for (DbValue value : this.row)
+                value.encode();
+            return this.row;
+        }
+
+    }
+
     /**
      * Construct a loader for the specified table.
      *
@@ -48,6 +279,21 @@ public class DbLoader extends DbBaseUpdate {
         return retVal;
     }
 
+    /**
+     * Construct a loader for the specified table whose batch size is tuned online.
+     *
+     * @param db		database connection
+     * @param table		name of table to load
+     *
+     * @throws SQLException
+     */
+    public static DbLoader adaptive(DbConnection db, String table) throws SQLException {
+        DbLoader retVal = new DbLoader(db, table, MAX_BATCH_SIZE);
+        retVal.initialize(db, table);
+        retVal.setAdaptive();
+        return retVal;
+    }
+
     /**
      * Construct a one-at-a-time loader for the specified table.
      *
@@ -58,6 +304,7 @@ public class DbLoader extends DbBaseUpdate {
      */
     public static DbLoader single(DbConnection db, String table) throws SQLException {
         DbLoader retVal = new DbLoader(db, table, 1);
+        retVal.initialize(db, table);
         return retVal;
     }
 
@@ -76,28 +323,211 @@ public class DbLoader extends DbBaseUpdate {
         Collection<DbTable.Field> fields = tableData.getFields();
         // Create an array for the field names.
         final int nFields = fields.size();
-        String[] fieldList = new String[nFields];
+        this.fieldList = new String[nFields];
         // Each field is added as a parameter.
         int i = 0;
         for (DbTable.Field field : fields) {
-            fieldList[i] = field.getName();
-            this.addParm(fieldList[i]);
+            this.fieldList[i] = field.getName();
+            this.addParm(this.fieldList[i]);
             i++;
         }
         // Now we have all the parameter holders created and connected to the field names.
-        // Build the query itself.
-        SqlBuffer buffer = (new SqlBuffer(db)).append("INSERT INTO ").quote(table).append(" ")
-                .addFields(fieldList).append(" VALUES ").addMarkList(nFields);
+        this.skipping = false;
+        this.buildStatement("INSERT INTO ");
+    }
+
+    /**
+     * Build the insert statement.
+     *
+     * @param command	insert command prefix, without the table name
+     *
+     * @throws SQLException
+     */
+    private void buildStatement(String command) throws SQLException {
+        final int nFields = this.fieldList.length;
+        SqlBuffer buffer = (new SqlBuffer(this.getDb())).append(command).quote(this.getTableData().getName())
+                .append(" ").addFields(this.fieldList).append(" VALUES ").addMarkList(nFields);
         this.createStatement(buffer);
     }
 
+    /**
+     * Put this loader into skip-existing mode.  Rows that would duplicate an existing key are ignored
+     * by the database instead of causing an error.  This must be called before any rows are inserted.
+     *
+     * @return this object, for fluent invocation
+     *
+     * @throws SQLException
+     */
+    public DbLoader skipExisting() throws SQLException {
+        if (! this.skipping) {
+            this.buildStatement(this.getDb().insertIgnoreCommand());
+            this.skipping = true;
+        }
+        return this;
+    }
+
+    /**
+     * @return the number of rows inserted by the executed batches
+     */
+    public long getInsertCount() {
+        return this.getRowsAffected();
+    }
+
+    /**
+     * @return the number of rows skipped by the executed batches because their keys already existed
+     */
+    public long getSkipCount() {
+        return this.getRowsExecuted() - this.getRowsAffected() - this.getRejectCount();
+    }
+
+    @Override
+    protected boolean changesRows() {
+        // Inserts never change existing records, even in skip-existing mode.
+        return false;
+    }
+
+    /**
+     * Put this loader into error-tolerant mode.  Rows that cannot be inserted are passed to the
+     * specified handler instead of failing the load.
+     *
+     * @param handler	handler to receive the rejected rows
+     *
+     * @return this object, for fluent invocation
+     *
+     * @throws SQLException
+     */
+    public DbLoader tolerant(IRejectHandler handler) throws SQLException {
+        this.setRejectHandler(handler);
+        return this;
+    }
+
     /**
      * Insert the current record into the database.
      *
      * @throws SQLException
      */
     public void insert() throws SQLException {
+        // Keep the table's key filter current.  If the insert later fails, this only adds a false positive.
+        String key = this.getKeyString();
+        if (key != null)
+            this.getDb().keyAdded(this.getTableData().getName(), key);
         this.submit();
     }
 
+    /**
+     * Load all the objects in a stream into the table.  The rows may be inserted in any order.
+     *
+     * @param source	stream of input objects
+     * @param mapper	function that fills in a row from an input object
+     *
+     * @return the number of rows submitted
+     *
+     * @throws SQLException
+     */
+    public <T> long loadAll(Stream<T> source, BiConsumer<T, RowSetter> mapper) throws SQLException {
+        return this.loadAll(source, mapper, false);
+    }
+
+    /**
+     * Load all the objects in a stream into the table.  The input objects are mapped to rows and the rows are
+     * encoded in parallel on the common fork-join pool.  The encoded rows are passed through a bounded queue
+     * to the calling thread, which binds them to the insert statement and batches them in the normal way.
+     *
+     * If the input order is kept, the rows are inserted in stream order; otherwise, they are inserted in
+     * whatever order they are encoded, which is faster.
+     *
+     * @param source	stream of input objects
+     * @param mapper	function that fills in a row from an input object
+     * @param ordered	TRUE if the rows must be inserted in stream order
+     *
+     * @return the number of rows submitted
+     *
+     * @throws SQLException
+     */
+    public <T> long loadAll(Stream<T> source, BiConsumer<T, RowSetter> mapper, boolean ordered) throws SQLException {
+        final BlockingQueue<DbValue[]> queue = new ArrayBlockingQueue<>(LOAD_QUEUE_SIZE);
+        final AtomicBoolean abort = new AtomicBoolean(false);
+        // This function converts an input object to an encoded row.
+        Function<T, DbValue[]> encoder = x -> {
+            RowSetter setter = this.new RowSetter();
+            mapper.accept(x, setter);
+            return setter.encode();
+        };
+        // This function queues an encoded row.  If the writer has failed, it aborts the stream.
+        Consumer<DbValue[]> queuer = x -> this.enqueue(queue, x, abort);
+        // Start the producer.  When it finishes, successfully or not, it queues the end marker.
+        CompletableFuture<Void> producer = CompletableFuture.runAsync(() -> {
+            Stream<T> stream = source.parallel();
+            if (ordered)
+                stream.map(encoder).forEachOrdered(queuer);
+            else
+                stream.unordered().map(encoder).forEach(queuer);
+        }).whenComplete((r, e) -> this.enqueue(queue, END_OF_ROWS, abort));
+        // Bind and submit the rows as they arrive.
+        long retVal = 0;
+        String table = this.getTableData().getName();
+        try {
+            DbValue[] row = queue.take();
+            while (row != END_OF_ROWS) {
+                List<DbValue> values = Arrays.asList(row);
+                String key = this.getKeyString(values);
+                if (key != null)
+                    this.getDb().keyAdded(table, key);
+                this.submit(values);
+                retVal++;
+                row = queue.take();
+            }
+        } catch (InterruptedException e) {
+            abort.set(true);
+            Thread.currentThread().interrupt();
+            throw new SQLException("Stream load of " + table + " interrupted.", e);
+        } catch (SQLException | RuntimeException e) {
+            abort.set(true);
+            throw e;
+        }
+        // Check for an error in the producer.
+        try {
+            producer.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            // A failure on another worker thread can be wrapped more than once, so we search the whole
+            // cause chain for an SQL exception.
+            SQLException sqlError = null;
+            for (Throwable t = cause; t != null && sqlError == null; t = t.getCause()) {
+                if (t instanceof SQLException)
+                    sqlError = (SQLException) t;
+            }
+            if (sqlError != null)
+                throw sqlError;
+            else if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            else
+                throw new SQLException("Error in stream load of " + table + ": " + cause.getMessage(), cause);
+        }
+        return retVal;
+    }
+
+    /**
+     * Put an encoded row in the load queue.  If the queue is full, this waits for room.
+     *
+     * @param queue		load queue
+     * @param row		encoded row to queue
+     * @param abort		flag that is set if the writer has failed
+     *
+     * @throws CancellationException if the writer has failed
+     */
+    private void enqueue(BlockingQueue<DbValue[]> queue, DbValue[] row, AtomicBoolean abort) {
+        try {
+            boolean queued = false;
+            while (! queued) {
+                if (abort.get())
+                    throw new CancellationException("Stream load aborted.");
+                queued = queue.offer(row, LOAD_QUEUE_WAIT, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Stream load interrupted.");
+        }
+    }
+
 }
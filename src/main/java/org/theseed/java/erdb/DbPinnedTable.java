@@ -0,0 +1,148 @@
+/**
+ *
+ */
+package org.theseed.java.erdb;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This object holds the entire contents of a small table in memory.  The records are kept in an immutable
+ * map keyed by primary key.  When the table is written, the owning connection marks the map stale, and it is
+ * reloaded the next time it is used.  Each reload produces a new map, so a client holding the old map (such as
+ * a query in the middle of an iteration) sees a consistent snapshot.
+ *
+ * The field specifications in the records always use the real name of the table.  The records are shared by
+ * all the clients that receive them, and must not be modified.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class DbPinnedTable {
+
+    // FIELDS
+    /** logging facility */
+    private static final Logger log = LoggerFactory.getLogger(DbPinnedTable.class);
+    /** owning database connection */
+    private DbConnection db;
+    /** descriptor of the pinned table */
+    private DbTable tableDesc;
+    /** current map of primary keys to records */
+    private Map<String, DbRecord> records;
+    /** TRUE if the table has changed since the records were loaded */
+    private boolean stale;
+    /** number of times the records have been loaded */
+    private int loadCount;
+
+    /**
+     * Load a table into memory.
+     *
+     * @param db			owning database connection
+     * @param tableDesc		descriptor of the table to pin
+     *
+     * @throws SQLException
+     */
+    protected DbPinnedTable(DbConnection db, DbTable tableDesc) throws SQLException {
+        if (tableDesc.getKeyName() == null)
+            throw new SQLException("Cannot pin table " + tableDesc.getName() + ", which has no primary key.");
+        this.db = db;
+        this.tableDesc = tableDesc;
+        this.loadCount = 0;
+        this.load();
+    }
+
+    /**
+     * Read all the records of the table into a new map.
+     *
+     * @throws SQLException
+     */
+    private void load() throws SQLException {
+        String table = this.tableDesc.getName();
+        Collection<DbTable.Field> fields = this.tableDesc.getFields();
+        List<String> names = new ArrayList<>(fields.size());
+        List<DbType> types = new ArrayList<>(fields.size());
+        SqlBuffer buffer = new SqlBuffer(this.db).append("SELECT ").startList();
+        for (DbTable.Field field : fields) {
+            names.add(table + "." + field.getName());
+            types.add(field.getType());
+            buffer.appendDelim().quote(table, field.getName());
+        }
+        buffer.append(" FROM ").quote(table);
+        final int keyIdx = names.indexOf(table + "." + this.tableDesc.getKeyName());
+        Map<String, DbRecord> newRecords = new HashMap<>();
+        try (PreparedStatement stmt = this.db.createStatement(buffer)) {
+            ResultSet results = stmt.executeQuery();
+            while (results.next()) {
+                DbRecord record = new DbRecord(results, names, types);
+                newRecords.put(record.getValue(keyIdx).getString(), record);
+            }
+        }
+        this.records = Collections.unmodifiableMap(newRecords);
+        this.stale = false;
+        this.loadCount++;
+        log.debug("{} records loaded for pinned table {}.", newRecords.size(), table);
+    }
+
+    /**
+     * @return the current map of primary keys to records, reloading it if the table has changed
+     *
+     * @throws SQLException
+     */
+    public synchronized Map<String, DbRecord> getRecords() throws SQLException {
+        if (this.stale)
+            this.load();
+        return this.records;
+    }
+
+    /**
+     * @return the record with the specified primary key, or NULL if there is none
+     *
+     * @param key		primary key of the desired record
+     *
+     * @throws SQLException
+     */
+    public DbRecord get(String key) throws SQLException {
+        return this.getRecords().get(key);
+    }
+
+    /**
+     * @return the number of records in the table
+     *
+     * @throws SQLException
+     */
+    public int size() throws SQLException {
+        return this.getRecords().size();
+    }
+
+    /**
+     * Denote that the table has changed, so the records must be reloaded before their next use.
+     */
+    protected synchronized void setStale() {
+        this.stale = true;
+    }
+
+    /**
+     * @return the descriptor of the pinned table
+     */
+    public DbTable getTableData() {
+        return this.tableDesc;
+    }
+
+    /**
+     * @return the number of times the records have been loaded
+     */
+    public synchronized int getLoadCount() {
+        return this.loadCount;
+    }
+
+}
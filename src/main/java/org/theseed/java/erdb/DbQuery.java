@@ -9,6 +9,9 @@ import java.sql.SQLException;
 import java.time.Instant;
 import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -18,6 +21,7 @@ import java.util.Spliterator;
 import java.util.Spliterators;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.function.BiConsumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Stream;
@@ -60,6 +64,17 @@ import org.theseed.locations.Location;
  * (starting from 1) in the order that they are created.  Use the "set" methods to update the parameters.
  * Each time an iterator is created, a new result set is fired off.
  *
+ * If the database connection has a result cache, the records for each set of parameter values are saved
+ * after they have all been read, and subsequent iterators over the same parameter values return the saved
+ * records without executing the query.  Cached records are shared, and must not be modified.  Similarly, if
+ * a table in the query has an entity cache and all of its fields are selected, the table's records are
+ * extracted from the query results and added to the entity cache.
+ *
+ * A join to a pinned table (see {@link DbConnection#pinTable(String)}) is resolved in memory rather than in
+ * the database if it goes from a foreign key to the pinned table's primary key, no other table is joined
+ * from the pinned table, and the pinned table is not used in a filter or ordering.  In this case, only the
+ * foreign key is retrieved from the database and the pinned table's fields are filled in from memory.
+ *
  * @author Bruce Parrello
  *
  */
@@ -68,14 +83,32 @@ public class DbQuery implements AutoCloseable, Iterable<DbRecord> {
     // FIELDS
     /** prepared statement for the query */
     private PreparedStatement stmt;
+    /** prepared statement for counting the query's records, or NULL if it has not been prepared */
+    private PreparedStatement countStmt;
+    /** prepared statement for checking whether the query has records, or NULL if it has not been prepared */
+    private PreparedStatement existsStmt;
     /** map of table name aliases to table descriptors */
     private Map<String, DbTable> tableMap;
-    /** FROM clause */
-    private SqlBuffer fromClause;
+    /** table spec of the first table in the path */
+    private String firstSpec;
+    /** descriptor of the first table in the path */
+    private DbTable firstTable;
+    /** list of the joins in the path, in order */
+    private List<Join> joins;
+    /** set of table specs used in filters or orderings */
+    private Set<String> filterSpecs;
+    /** plan for resolving joins to pinned tables in memory, or NULL if the query has not been planned */
+    private PinPlan pinPlan;
     /** WHERE clause */
     private SqlBuffer whereClause;
     /** ORDER BY clause */
     private SqlBuffer orderByClause;
+    /** list of field specs in the ORDER BY clause */
+    private List<String> orderFields;
+    /** maximum number of records to return, or 0 for no limit */
+    private int limit;
+    /** number of records to skip before returning results */
+    private int offset;
     /** list of field types for the returned fields */
     private List<DbType> fieldTypes;
     /** list of field specs for the returned fields */
@@ -86,6 +119,28 @@ public class DbQuery implements AutoCloseable, Iterable<DbRecord> {
     private DbConnection db;
     /** list of saved parameter values */
     private List<DbValue> parms;
+    /** number of tables joined in the FROM clause */
+    private int tableCount;
+    /** text of the SQL statement, or NULL if it has not been built */
+    private String sqlText;
+    /** TRUE if the query structure is shared with a template and can no longer be modified */
+    private boolean frozen;
+    /** TRUE if the prepared statement is shared with other queries on the same connection */
+    private boolean sharedStmt;
+    /** stack of open filter groups, innermost first */
+    private Deque<FilterGroup> groups;
+    /** list of outer-query field specs referenced by this query's correlation filters */
+    private List<String> outerFields;
+    /** set of real names of the tables read by subqueries */
+    private Set<String> subTables;
+    /** list of temporary tables created for collection filters */
+    private List<String> tempTables;
+    /** default number of values above which a collection filter uses a temporary table */
+    public static final int IN_TABLE_THRESHOLD = 1000;
+    /** number of values to insert per batch when loading a collection filter's temporary table */
+    private static final int IN_TABLE_BATCH = 1000;
+    /** maximum number of parameter sets to combine in a single batched query */
+    private static final int MAX_UNION_BRANCHES = 100;
     /** map of delimiters to join types */
     private static final Map<String, String> JOIN_TYPES = Map.of(
             "", " INNER JOIN",
@@ -95,6 +150,220 @@ public class DbQuery implements AutoCloseable, Iterable<DbRecord> {
     /** pattern for parsing the joined tables in the table path */
     private static final Pattern JOINED_TABLE = Pattern.compile("(\\s+|\\s*[<&]\\s*)([^\\s<&]+)");
 
+    /**
+     * This object describes an open group of filters.
+     */
+    private static class FilterGroup {
+
+        /** buffer containing the group's filters */
+        private SqlBuffer buffer;
+        /** TRUE if the group is negated */
+        private boolean negated;
+
+        /**
+         * Create a new filter group.
+         *
+         * @param db			database being queried
+         * @param delimiter		operator connecting the filters in the group
+         * @param negated		TRUE if the group is negated
+         */
+        private FilterGroup(DbConnection db, String delimiter, boolean negated) {
+            this.buffer = new SqlBuffer(db).startList(delimiter);
+            this.negated = negated;
+        }
+
+    }
+
+    /**
+     * This object describes a join in the query path.
+     */
+    private static class Join {
+
+        /** table spec of the joined table */
+        private String spec;
+        /** descriptor of the joined table */
+        private DbTable descriptor;
+        /** join operator text */
+        private String joinType;
+        /** table spec of the table from which the join is made */
+        private String source;
+        /** link from the source table to the joined table */
+        private DbTable.Link link;
+
+        /**
+         * Create a join descriptor.
+         *
+         * @param spec			table spec of the joined table
+         * @param descriptor	descriptor of the joined table
+         * @param joinType		join operator text
+         * @param source		table spec of the table from which the join is made
+         * @param link			link from the source table to the joined table
+         */
+        private Join(String spec, DbTable descriptor, String joinType, String source, DbTable.Link link) {
+            this.spec = spec;
+            this.descriptor = descriptor;
+            this.joinType = joinType;
+            this.source = source;
+            this.link = link;
+        }
+
+        /**
+         * @return TRUE if this is an inner join
+         */
+        private boolean isInner() {
+            return this.joinType.contentEquals(JOIN_TYPES.get(""));
+        }
+
+    }
+
+    /**
+     * This object describes a join that is resolved in memory from a pinned table.
+     */
+    private static class PinnedJoin {
+
+        /** pinned table */
+        private DbPinnedTable pinned;
+        /** TRUE if a row with no matching pinned record should be dropped */
+        private boolean inner;
+        /** position of the foreign key in the database record */
+        private int keyPos;
+
+    }
+
+    /**
+     * This object describes how to assemble the query records when some joins are resolved in memory.
+     */
+    private static class PinPlan {
+
+        /** set of table specs whose joins are resolved in memory */
+        private Set<String> elided;
+        /** field specs retrieved from the database */
+        private List<String> sqlNames;
+        /** field types retrieved from the database */
+        private List<DbType> sqlTypes;
+        /** joins resolved in memory */
+        private List<PinnedJoin> pinnedJoins;
+        /** for each returned field, the index of its pinned join, or -1 if it comes from the database */
+        private int[] sources;
+        /** for each returned field, its position in the database record or its field spec in the pinned record */
+        private Object[] locators;
+
+        /**
+         * @return TRUE if all the joins are resolved in the database
+         */
+        private boolean isTrivial() {
+            return this.pinnedJoins.isEmpty();
+        }
+
+        /**
+         * @return TRUE if every pinned table in this plan is still pinned by the specified connection
+         *
+         * @param db	connection to check
+         */
+        private boolean isCurrent(DbConnection db) {
+            boolean retVal = true;
+            for (int i = 0; retVal && i < this.pinnedJoins.size(); i++) {
+                DbPinnedTable pinned = this.pinnedJoins.get(i).pinned;
+                retVal = (db.getPinnedTable(pinned.getTableData().getName()) == pinned);
+            }
+            return retVal;
+        }
+
+        /**
+         * @return a list of the current record maps for the pinned tables in this plan
+         *
+         * @throws SQLException
+         */
+        private List<Map<String, DbRecord>> getSnapshots() throws SQLException {
+            List<Map<String, DbRecord>> retVal = new ArrayList<>(this.pinnedJoins.size());
+            for (PinnedJoin pinnedJoin : this.pinnedJoins)
+                retVal.add(pinnedJoin.pinned.getRecords());
+            return retVal;
+        }
+
+        /**
+         * Assemble a query record from a database record and the pinned tables.
+         *
+         * @param raw			record read from the database
+         * @param snapshots		record maps for the pinned tables
+         * @param fieldNames	field specs for the query record
+         * @param fieldTypes	field types for the query record
+         *
+         * @return the query record, or NULL if an inner join to a pinned table found no match
+         *
+         * @throws SQLException
+         */
+        private DbRecord assemble(DbRecord raw, List<Map<String, DbRecord>> snapshots, List<String> fieldNames,
+                List<DbType> fieldTypes) throws SQLException {
+            DbRecord retVal = null;
+            // Find the pinned record for each join.
+            final int p = this.pinnedJoins.size();
+            DbRecord[] matches = new DbRecord[p];
+            boolean keep = true;
+            for (int j = 0; keep && j < p; j++) {
+                PinnedJoin pinnedJoin = this.pinnedJoins.get(j);
+                DbValue key = raw.getValue(pinnedJoin.keyPos);
+                if (! key.isNull())
+                    matches[j] = snapshots.get(j).get(key.getString());
+                keep = (matches[j] != null || ! pinnedJoin.inner);
+            }
+            if (keep) {
+                final int n = this.sources.length;
+                List<DbValue> values = new ArrayList<>(n);
+                for (int i = 0; i < n; i++) {
+                    int j = this.sources[i];
+                    if (j < 0)
+                        values.add(raw.getValue((Integer) this.locators[i]));
+                    else if (matches[j] != null)
+                        values.add(matches[j].getValue((String) this.locators[i]));
+                    else {
+                        // Here we have a left join with no match.
+                        DbValue value = fieldTypes.get(i).create();
+                        value.setNull();
+                        values.add(value);
+                    }
+                }
+                retVal = new DbRecord(fieldNames, values);
+            }
+            return retVal;
+        }
+
+    }
+
+    /**
+     * This object describes how to extract the records of an entity-cached table from the query results.
+     */
+    private static class EntityFeed {
+
+        /** entity cache for the table */
+        private DbEntityCache cache;
+        /** position in the query record of each of the table's fields */
+        private int[] positions;
+        /** field specs for the extracted records */
+        private List<String> names;
+        /** position in the query record of the table's primary key */
+        private int keyPos;
+
+        /**
+         * Extract the table's record from a query record and add it to the entity cache.
+         *
+         * @param record	query record to process
+         *
+         * @throws SQLException
+         */
+        private void feed(DbRecord record) throws SQLException {
+            DbValue key = record.getValue(this.keyPos);
+            // A left join can produce a record with no entity.
+            if (! key.isNull()) {
+                List<DbValue> values = new ArrayList<>(this.positions.length);
+                for (int pos : this.positions)
+                    values.add(record.getValue(pos));
+                this.cache.put(key.getString(), new DbRecord(this.names, values));
+            }
+        }
+
+    }
+
     /**
      * Construct a database query.
      *
@@ -107,6 +376,73 @@ public class DbQuery implements AutoCloseable, Iterable<DbRecord> {
         this.parsePath(tablePath);
     }
 
+    /**
+     * Construct an executable instance of a compiled query.  The new query shares the table path, select list,
+     * filters, and ordering of the original, and has its own parameter values, which are initialized to copies
+     * of the original's.  It uses the connection's shared prepared statement for the query's SQL text.
+     *
+     * @param qdb			database to query
+     * @param original		compiled query to copy
+     *
+     * @throws SQLException
+     */
+    protected DbQuery(DbConnection qdb, DbQuery original) throws SQLException {
+        if (! original.frozen)
+            throw new SQLException("Cannot create an instance of a query that has not been compiled.");
+        this.db = qdb;
+        this.stmt = null;
+        this.countStmt = null;
+        this.existsStmt = null;
+        this.tableMap = original.tableMap;
+        this.firstSpec = original.firstSpec;
+        this.firstTable = original.firstTable;
+        this.joins = original.joins;
+        this.filterSpecs = original.filterSpecs;
+        this.whereClause = original.whereClause;
+        this.orderByClause = original.orderByClause;
+        this.orderFields = original.orderFields;
+        this.limit = original.limit;
+        this.offset = original.offset;
+        this.fieldTypes = original.fieldTypes;
+        this.fieldNames = original.fieldNames;
+        this.fieldsUsed = original.fieldsUsed;
+        this.tableCount = original.tableCount;
+        // The pin plan is checked against the new connection before the query executes.
+        this.pinPlan = original.pinPlan;
+        this.sqlText = original.sqlText;
+        this.parms = new ArrayList<>(original.parms.size());
+        for (DbValue parm : original.parms)
+            this.parms.add(parm.copy());
+        this.frozen = true;
+        this.sharedStmt = true;
+        // The temporary tables belong to the original query.
+        this.tempTables = new ArrayList<>(0);
+        this.groups = new ArrayDeque<>();
+        this.outerFields = original.outerFields;
+        this.subTables = original.subTables;
+    }
+
+    /**
+     * Compile this query so that it can be used as a template.  The SQL text is built, and the query
+     * structure can no longer be modified.
+     *
+     * @throws SQLException
+     */
+    protected synchronized void freeze() throws SQLException {
+        this.getSql();
+        this.frozen = true;
+    }
+
+    /**
+     * Insure this query's structure can still be modified.
+     *
+     * @throws SQLException
+     */
+    private void checkMutable() throws SQLException {
+        if (this.frozen)
+            throw new SQLException("Cannot modify a compiled query.");
+    }
+
     /**
      * Initialize the query for the specified database.
      *
@@ -116,12 +452,25 @@ public class DbQuery implements AutoCloseable, Iterable<DbRecord> {
         this.db = qdb;
         // Denote that so far we have no statement prepared.
         this.stmt = null;
+        this.countStmt = null;
+        this.existsStmt = null;
+        this.frozen = false;
+        this.sharedStmt = false;
+        this.tempTables = new ArrayList<>();
+        this.groups = new ArrayDeque<>();
+        this.outerFields = new ArrayList<>();
+        this.subTables = new TreeSet<>();
         // Set up the list for the parameter value holders.
         this.parms = new ArrayList<>();
         // Create the buffers for the various statement clauses.
         this.orderByClause = new SqlBuffer(db);
+        this.orderFields = new ArrayList<>();
+        this.limit = 0;
+        this.offset = 0;
         this.whereClause = new SqlBuffer(db).startList(" AND ");
-        this.fromClause = new SqlBuffer(db);
+        this.joins = new ArrayList<>();
+        this.filterSpecs = new TreeSet<>();
+        this.pinPlan = null;
         // We maintain two parallel lists for the returned fields.  These enable us to construct the
         // select clause and the field map / holder list for the prepared query statement.
         this.fieldTypes = new ArrayList<>();
@@ -131,6 +480,8 @@ public class DbQuery implements AutoCloseable, Iterable<DbRecord> {
         // Create the table map.  This enables us to get the table descriptors for all the table names
         // and aliases.
         this.tableMap = new TreeMap<>();
+        this.tableCount = 0;
+        this.sqlText = null;
     }
 
     /**
@@ -149,7 +500,9 @@ public class DbQuery implements AutoCloseable, Iterable<DbRecord> {
             throw new SQLException("No tables found in path \"" + tablePath + "\".");
         String oldTable = m.group();
         DbTable oldDescriptor = this.findTable(oldTable);
-        this.addTable(oldTable, oldDescriptor);
+        this.firstSpec = oldTable;
+        this.firstTable = oldDescriptor;
+        this.tableCount++;
         // Switch to tables preceded by delimiters.
         m.usePattern(JOINED_TABLE);
         // Loop through the rest of the path.
@@ -160,15 +513,13 @@ public class DbQuery implements AutoCloseable, Iterable<DbRecord> {
             DbTable newDescriptor = this.findTable(newTable);
             // Check for the special ampersand case.
             if (! delim.contentEquals("&")) {
-                // Store the join connector in the FROM clause and put in the target table.
-                this.fromClause.append(JOIN_TYPES.get(delim));
-                this.addTable(newTable, newDescriptor);
-                // Get the WHERE sub-clause from the descriptor.  Note we use "getName" to get the
+                // Get the join condition from the descriptor.  Note we use "getName" to get the
                 // real table name.
                 DbTable.Link joinLink = oldDescriptor.getLink(newDescriptor.getName());
                 if (joinLink == null)
                     throw new SQLException("No path from " + oldTable + " to " + newTable + ".");
-                joinLink.store(this.fromClause.append(" ON "), oldTable, newTable);
+                this.joins.add(new Join(newTable, newDescriptor, JOIN_TYPES.get(delim), oldTable, joinLink));
+                this.tableCount++;
             }
             // Set up for the next join.
             oldTable = newTable;
@@ -202,17 +553,117 @@ public class DbQuery implements AutoCloseable, Iterable<DbRecord> {
     }
 
     /**
-     * Add a table to the WHERE clause.  The table is stored in the WHERE clause
-     * and assigned the specified alias.
+     * Add a table to a FROM clause.  The table is assigned the specified alias.
      *
+     * @param fromClause		FROM clause being built
      * @param tableSpec			alias name of this table
      * @param descriptor		table descriptor containing the real name
      */
-    private void addTable(String tableSpec, DbTable descriptor) {
+    private static void addTable(SqlBuffer fromClause, String tableSpec, DbTable descriptor) {
         String realName = descriptor.getName();
-        this.fromClause.append(" ").quote(realName);
+        fromClause.append(" ").quote(realName);
         if (! realName.contentEquals(tableSpec))
-            this.fromClause.append(" AS ").quote(tableSpec);
+            fromClause.append(" AS ").quote(tableSpec);
+    }
+
+    /**
+     * Build the FROM clause for this query.
+     *
+     * @param elided	set of table specs whose joins are resolved in memory
+     *
+     * @return an SQL buffer containing the FROM clause (without the FROM keyword)
+     */
+    private SqlBuffer buildFrom(Set<String> elided) {
+        SqlBuffer retVal = new SqlBuffer(this.db);
+        addTable(retVal, this.firstSpec, this.firstTable);
+        for (Join join : this.joins) {
+            if (! elided.contains(join.spec)) {
+                retVal.append(join.joinType);
+                addTable(retVal, join.spec, join.descriptor);
+                join.link.store(retVal.append(" ON "), join.source, join.spec);
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * @return TRUE if a join can be resolved in memory
+     *
+     * @param join		join to check
+     */
+    private boolean isPinnable(Join join) {
+        boolean retVal = false;
+        DbTable descriptor = join.descriptor;
+        if (this.db.getPinnedTable(descriptor.getName()) != null && ! this.filterSpecs.contains(join.spec)) {
+            // The join must go from a foreign key to the pinned table's primary key.
+            retVal = join.link.isImported() && join.link.getOtherField().equals(descriptor.getKeyName());
+            // No other table can be joined from the pinned table.
+            for (int i = 0; retVal && i < this.joins.size(); i++)
+                retVal = ! this.joins.get(i).source.equals(join.spec);
+            // An inner join can drop rows, which would make a limit return too few records.
+            if (retVal && join.isInner() && this.isLimited())
+                retVal = false;
+        }
+        return retVal;
+    }
+
+    /**
+     * Plan the resolution of this query's joins.  Joins that can be resolved from pinned tables are removed
+     * from the database query and replaced by their foreign keys.
+     *
+     * @throws SQLException
+     */
+    private void planQuery() throws SQLException {
+        PinPlan plan = new PinPlan();
+        plan.elided = new TreeSet<>();
+        plan.pinnedJoins = new ArrayList<>();
+        plan.sqlNames = new ArrayList<>(this.fieldNames.size());
+        plan.sqlTypes = new ArrayList<>(this.fieldNames.size());
+        Map<String, Integer> joinIndex = new TreeMap<>();
+        for (Join join : this.joins) {
+            if (this.isPinnable(join)) {
+                PinnedJoin pinnedJoin = new PinnedJoin();
+                pinnedJoin.pinned = this.db.getPinnedTable(join.descriptor.getName());
+                pinnedJoin.inner = join.isInner();
+                joinIndex.put(join.spec, plan.pinnedJoins.size());
+                plan.pinnedJoins.add(pinnedJoin);
+                plan.elided.add(join.spec);
+            }
+        }
+        // Sort the returned fields into database fields and pinned fields.
+        final int n = this.fieldNames.size();
+        plan.sources = new int[n];
+        plan.locators = new Object[n];
+        for (int i = 0; i < n; i++) {
+            String fieldSpec = this.fieldNames.get(i);
+            String spec = StringUtils.substringBefore(fieldSpec, ".");
+            Integer pinIdx = joinIndex.get(spec);
+            if (pinIdx == null) {
+                plan.sources[i] = -1;
+                plan.locators[i] = plan.sqlNames.size();
+                plan.sqlNames.add(fieldSpec);
+                plan.sqlTypes.add(this.fieldTypes.get(i));
+            } else {
+                plan.sources[i] = pinIdx;
+                DbPinnedTable pinned = plan.pinnedJoins.get(pinIdx).pinned;
+                plan.locators[i] = pinned.getTableData().getName() + "." + StringUtils.substringAfter(fieldSpec, ".");
+            }
+        }
+        // Make sure the foreign key for each pinned join is retrieved.
+        for (Join join : this.joins) {
+            Integer pinIdx = joinIndex.get(join.spec);
+            if (pinIdx != null) {
+                String keySpec = join.source + "." + join.link.getLocalField();
+                int keyPos = plan.sqlNames.indexOf(keySpec);
+                if (keyPos < 0) {
+                    keyPos = plan.sqlNames.size();
+                    plan.sqlNames.add(keySpec);
+                    plan.sqlTypes.add(this.getSpecTable(join.source).getType(join.link.getLocalField()));
+                }
+                plan.pinnedJoins.get(pinIdx).keyPos = keyPos;
+            }
+        }
+        this.pinPlan = plan;
     }
 
     /**
@@ -227,12 +678,43 @@ public class DbQuery implements AutoCloseable, Iterable<DbRecord> {
     @Override
     public Iterator<DbRecord> iterator() {
         try {
-            return this.new Iter();
+            Iterator<DbRecord> retVal;
+            DbResultCache cache = this.db.getResultCache();
+            if (cache == null)
+                retVal = this.new Iter();
+            else {
+                String key = this.getCacheKey();
+                List<DbRecord> cached = cache.get(key);
+                if (cached != null)
+                    retVal = cached.iterator();
+                else
+                    retVal = this.new Iter(cache, key);
+            }
+            return retVal;
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * @return the key for this query's current result in the result cache
+     *
+     * @throws SQLException
+     */
+    private String getCacheKey() throws SQLException {
+        StringBuilder retVal = new StringBuilder(this.getSql());
+        for (DbValue parm : this.parms) {
+            // Each value is prefixed by its length, so no value can be confused with a delimiter.
+            if (parm.isNull())
+                retVal.append("|-");
+            else {
+                String value = parm.getString();
+                retVal.append('|').append(value.length()).append(':').append(value);
+            }
+        }
+        return retVal.toString();
+    }
+
     /**
      * This is the iterator through the results of the query.  Creating it starts the query.
      *
@@ -244,12 +726,51 @@ public class DbQuery implements AutoCloseable, Iterable<DbRecord> {
         private ResultSet results;
         /** next record to return */
         private DbRecord nextRecord;
+        /** result cache in which to save the records, or NULL if they are not being saved */
+        private DbResultCache cache;
+        /** key for the saved records in the result cache */
+        private String cacheKey;
+        /** cache generation when the query started */
+        private long generation;
+        /** list of the records read so far */
+        private List<DbRecord> saved;
+        /** approximate size of the records read so far */
+        private long savedBytes;
+        /** list of entity caches to be fed from the records, or NULL if there are none */
+        private List<EntityFeed> feeds;
+        /** record maps for the pinned tables joined in memory, or NULL if there are none */
+        private List<Map<String, DbRecord>> snapshots;
 
         private Iter() throws SQLException {
             // Insure the query is started.
             this.results = DbQuery.this.startQuery();
             // Denote we have no next record.
             this.nextRecord = null;
+            this.cache = null;
+            this.saved = null;
+            this.feeds = DbQuery.this.getEntityFeeds();
+            this.snapshots = DbQuery.this.getPinSnapshots();
+        }
+
+        /**
+         * Start the query and save the records read in the result cache.
+         *
+         * @param cache		result cache to receive the records
+         * @param key		key for the records in the cache
+         *
+         * @throws SQLException
+         */
+        private Iter(DbResultCache cache, String key) throws SQLException {
+            // We must get the generation before the query starts, so that we can detect concurrent changes.
+            this.generation = cache.getGeneration();
+            this.results = DbQuery.this.startQuery();
+            this.nextRecord = null;
+            this.cache = cache;
+            this.cacheKey = key;
+            this.saved = new ArrayList<>();
+            this.savedBytes = 0;
+            this.feeds = DbQuery.this.getEntityFeeds();
+            this.snapshots = DbQuery.this.getPinSnapshots();
         }
 
         @Override
@@ -278,13 +799,43 @@ public class DbQuery implements AutoCloseable, Iterable<DbRecord> {
          */
         private void getNextRecord() {
             try {
-                if (this.results.next()) {
+                // Another instance executing a shared statement closes this instance's result set.
+                if (DbQuery.this.sharedStmt && this.results.isClosed())
+                    throw new SQLException("Results of a shared query statement were closed by another execution.");
+                boolean found = this.results.next();
+                if (this.snapshots != null) {
+                    // Here some of the joins are resolved in memory, and rows can be rejected.
+                    PinPlan plan = DbQuery.this.pinPlan;
+                    while (found && this.nextRecord == null) {
+                        DbRecord raw = new DbRecord(this.results, plan.sqlNames, plan.sqlTypes);
+                        this.nextRecord = plan.assemble(raw, this.snapshots, DbQuery.this.fieldNames,
+                                DbQuery.this.fieldTypes);
+                        if (this.nextRecord == null)
+                            found = this.results.next();
+                    }
+                } else if (found)
+                    this.nextRecord = new DbRecord(this.results, DbQuery.this.fieldNames, DbQuery.this.fieldTypes);
+                if (found) {
                     // Here we have another record to return.
-                    this.nextRecord = new DbRecord(this.results, DbQuery.this.fieldNames,
-                            DbQuery.this.fieldTypes);
+                    if (this.feeds != null) {
+                        for (EntityFeed feed : this.feeds)
+                            feed.feed(this.nextRecord);
+                    }
+                    if (this.saved != null) {
+                        this.saved.add(this.nextRecord);
+                        this.savedBytes += DbResultCache.sizeOf(this.nextRecord);
+                        // Stop saving if the result is too big to cache.
+                        if (this.savedBytes > this.cache.getMaxBytes())
+                            this.saved = null;
+                    }
                 } else {
                     this.results.close();
                     this.results = null;
+                    if (this.saved != null) {
+                        this.cache.put(this.cacheKey, DbQuery.this.getTableNames(), this.saved, this.savedBytes,
+                                this.generation);
+                        this.saved = null;
+                    }
                 }
             } catch (SQLException e) {
                 throw new RuntimeException(e);
@@ -323,31 +874,182 @@ public class DbQuery implements AutoCloseable, Iterable<DbRecord> {
      * @throws SQLException
      */
     private synchronized ResultSet startQuery() throws SQLException {
+        this.prepare();
+        ResultSet retVal;
+        // A shared statement can be used by other queries, so the parameters and execution must be atomic.
+        synchronized (this.stmt) {
+            // Update the parameters.
+            final int n = this.parms.size();
+            for (int i = 0; i < n; i++)
+                this.parms.get(i).store(this.stmt, i+1);
+            // Get the result set.
+            retVal = this.stmt.executeQuery();
+        }
+        return retVal;
+    }
+
+    /**
+     * Insure the prepared statement for this query exists.
+     *
+     * @throws SQLException
+     */
+    protected synchronized void prepare() throws SQLException {
+        if (this.pinPlan != null && ! this.pinPlan.isCurrent(this.db)) {
+            // A table used in the plan has been unpinned, so we must plan the query again.
+            if (this.stmt != null && ! this.sharedStmt)
+                this.stmt.close();
+            this.stmt = null;
+            this.sqlText = null;
+        }
+        // The connection closes its shared statements when the tables are cleared, so we may need a new one.
+        if (this.sharedStmt && this.stmt != null && this.stmt.isClosed())
+            this.stmt = null;
         if (this.stmt == null) {
+            if (this.sharedStmt)
+                this.stmt = this.db.getSharedStatement(this.getSql());
+            else
+                this.stmt = this.db.createStatement(this.getSql());
+        }
+    }
+
+    /**
+     * @return the text of the SQL statement for this query
+     *
+     * @throws SQLException
+     */
+    protected String getSql() throws SQLException {
+        if (this.sqlText == null) {
             // Assemble the SQL.
             SqlBuffer stmtBuffer = new SqlBuffer(this.db);
             if (this.fieldNames.isEmpty())
                 throw new SQLException("Query does not have fields to select.");
+            this.checkGroups();
+            this.planQuery();
             // Form the select clause.
-            stmtBuffer.append("SELECT ").quoteSpec(this.fieldNames.get(0));
-            final int n = this.fieldNames.size();
-            this.fieldNames.subList(1, n).stream().forEach(x -> stmtBuffer.append(", ").quoteSpec(x));
+            List<String> sqlNames = this.pinPlan.sqlNames;
+            stmtBuffer.append("SELECT ").quoteSpec(sqlNames.get(0));
+            final int n = sqlNames.size();
+            sqlNames.subList(1, n).stream().forEach(x -> stmtBuffer.append(", ").quoteSpec(x));
             // Add the FROM clause.
-            stmtBuffer.append(" FROM ").append(this.fromClause);
+            stmtBuffer.append(" FROM ").append(this.buildFrom(this.pinPlan.elided));
             // Add the optional filter and ordering clauses.
             if (! this.whereClause.isEmpty())
                 stmtBuffer.append(" WHERE ").append(this.whereClause);
             if (! this.orderByClause.isEmpty())
                 stmtBuffer.append(" ORDER BY ").append(this.orderByClause);
-            // Create the statement.
-            this.stmt = this.db.createStatement(stmtBuffer);
+            if (this.limit > 0 || this.offset > 0)
+                this.db.appendLimit(stmtBuffer, this.limit, this.offset);
+            this.sqlText = stmtBuffer.toString();
         }
-        // Update the parameters.
-        final int n = this.parms.size();
-        for (int i = 0; i < n; i++)
-            this.parms.get(i).store(this.stmt, i+1);
-        // Get the result set.
-        ResultSet retVal = this.stmt.executeQuery();
+        return this.sqlText;
+    }
+
+    /**
+     * @return the record maps for the pinned tables joined in memory, or NULL if all the joins are in the database
+     *
+     * @throws SQLException
+     */
+    private List<Map<String, DbRecord>> getPinSnapshots() throws SQLException {
+        List<Map<String, DbRecord>> retVal = null;
+        if (! this.pinPlan.isTrivial())
+            retVal = this.pinPlan.getSnapshots();
+        return retVal;
+    }
+
+    /**
+     * @return the list of field specs for the returned fields
+     */
+    protected List<String> getFieldNames() {
+        return this.fieldNames;
+    }
+
+    /**
+     * @return the list of types for the returned fields
+     */
+    protected List<DbType> getFieldTypes() {
+        return this.fieldTypes;
+    }
+
+    /**
+     * @return the list of field specs in the ORDER BY clause
+     */
+    protected List<String> getOrderFields() {
+        return this.orderFields;
+    }
+
+    /**
+     * @return the number of parameters in this query
+     */
+    protected int getParmCount() {
+        return this.parms.size();
+    }
+
+    /**
+     * @return TRUE if this query has filters
+     */
+    protected boolean hasFilters() {
+        return ! this.whereClause.isEmpty();
+    }
+
+    /**
+     * Append the ORDER BY clause of this query (if any) to an SQL statement being built.
+     *
+     * @param buffer	buffer containing the statement being built
+     */
+    protected void appendOrderBy(SqlBuffer buffer) {
+        if (! this.orderByClause.isEmpty())
+            buffer.append(" ORDER BY ").append(this.orderByClause);
+    }
+
+    /**
+     * @return a list of the entity caches that can be fed from this query's records, or NULL if there are none
+     */
+    private List<EntityFeed> getEntityFeeds() {
+        List<EntityFeed> retVal = null;
+        for (Map.Entry<String, DbTable> tableEntry : this.tableMap.entrySet()) {
+            DbTable descriptor = tableEntry.getValue();
+            DbEntityCache cache = this.db.getEntityCache(descriptor.getName());
+            if (cache != null) {
+                // Find all the table's fields in the select list.
+                String spec = tableEntry.getKey();
+                Collection<DbTable.Field> fields = descriptor.getFields();
+                int[] positions = new int[fields.size()];
+                List<String> names = new ArrayList<>(fields.size());
+                int keyPos = -1;
+                boolean found = true;
+                int i = 0;
+                for (DbTable.Field field : fields) {
+                    if (found) {
+                        positions[i] = this.fieldNames.indexOf(spec + "." + field.getName());
+                        found = (positions[i] >= 0);
+                        names.add(cache.getTable() + "." + field.getName());
+                        if (field.getName().equals(descriptor.getKeyName()))
+                            keyPos = positions[i];
+                        i++;
+                    }
+                }
+                if (found && keyPos >= 0) {
+                    EntityFeed feed = new EntityFeed();
+                    feed.cache = cache;
+                    feed.positions = positions;
+                    feed.names = names;
+                    feed.keyPos = keyPos;
+                    if (retVal == null)
+                        retVal = new ArrayList<>();
+                    retVal.add(feed);
+                }
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the set of real names of the tables read by this query, including its subqueries
+     */
+    protected Set<String> getTableNames() {
+        Set<String> retVal = new TreeSet<>(this.subTables);
+        for (DbTable table : this.tableMap.values())
+            retVal.add(table.getName());
         return retVal;
     }
 
@@ -361,11 +1063,329 @@ public class DbQuery implements AutoCloseable, Iterable<DbRecord> {
         return StreamSupport.stream(this.spliterator(), false);
     }
 
+    /**
+     * Create an aggregation over the records selected by this query's table path and filters.  The
+     * aggregation uses this query's parameter values at the time it is executed.  The SELECT, ORDER BY,
+     * and LIMIT clauses of this query are ignored.
+     *
+     * @return an aggregation object for specifying and executing the aggregate query
+     */
+    public DbAggregation aggregate() {
+        return new DbAggregation(this);
+    }
+
+    /**
+     * Execute this query once for each of several sets of parameter values.  Rather than making one round trip
+     * per parameter set, the executions are combined into a small number of UNION ALL statements in which each
+     * branch is tagged with the index of its parameter set.  The records are passed to the consumer grouped by
+     * parameter set, in the order of the parameter sets, and within each set in the query's ordering.
+     *
+     * If the query has a limit or offset, if it is ordered by a field that is not in the select list, or if it
+     * filters against a temporary table (which MySQL cannot open more than once in a statement), the executions
+     * cannot be combined, and the query is simply run once per parameter set.  In either case, the
+     * query's parameter values afterward are unpredictable.
+     *
+     * @param paramSets		list of parameter value sets, each containing one value per query parameter
+     * @param action		consumer to receive the index of each record's parameter set and the record itself
+     *
+     * @throws SQLException
+     */
+    public void executeForEach(List<Object[]> paramSets, BiConsumer<Integer, DbRecord> action) throws SQLException {
+        final int p = this.parms.size();
+        for (Object[] paramSet : paramSets) {
+            if (paramSet.length != p)
+                throw new SQLException("Query has " + p + " parameters, but a parameter set has " + paramSet.length
+                        + " values.");
+        }
+        if (p == 0 || this.isLimited() || ! this.fieldNames.containsAll(this.orderFields)
+                || ! this.tempTables.isEmpty()) {
+            // Here we must execute the query once per parameter set.
+            final int n = paramSets.size();
+            for (int i = 0; i < n; i++) {
+                this.setParms(paramSets.get(i));
+                for (DbRecord record : this)
+                    action.accept(i, record);
+            }
+        } else {
+            // Here we can combine the executions.  We must keep each statement within the parameter limit.
+            final int chunkSize = Math.max(1, Math.min(MAX_UNION_BRANCHES, this.db.maxParameters() / p));
+            // Create scratch value holders for the parameters.
+            List<DbValue> holders = new ArrayList<>(p);
+            for (DbValue parm : this.parms)
+                holders.add(parm.copy());
+            // We keep the statement for full chunks, since it is used repeatedly.
+            PreparedStatement chunkStmt = null;
+            try {
+                final int n = paramSets.size();
+                for (int start = 0; start < n; start += chunkSize) {
+                    final int branches = Math.min(chunkSize, n - start);
+                    PreparedStatement unionStmt;
+                    if (branches < chunkSize)
+                        unionStmt = this.db.createStatement(this.buildUnion(branches));
+                    else {
+                        if (chunkStmt == null)
+                            chunkStmt = this.db.createStatement(this.buildUnion(chunkSize));
+                        unionStmt = chunkStmt;
+                    }
+                    try {
+                        int idx = 1;
+                        for (int i = 0; i < branches; i++) {
+                            Object[] paramSet = paramSets.get(start + i);
+                            for (int j = 0; j < p; j++) {
+                                DbValue holder = holders.get(j);
+                                holder.setObject(paramSet[j]);
+                                holder.store(unionStmt, idx++);
+                            }
+                        }
+                        final int tagCol = this.fieldNames.size() + 1;
+                        try (ResultSet results = unionStmt.executeQuery()) {
+                            while (results.next()) {
+                                DbRecord record = new DbRecord(results, this.fieldNames, this.fieldTypes);
+                                action.accept(start + results.getInt(tagCol), record);
+                            }
+                        }
+                    } finally {
+                        if (unionStmt != chunkStmt)
+                            unionStmt.close();
+                    }
+                }
+            } finally {
+                if (chunkStmt != null)
+                    chunkStmt.close();
+            }
+        }
+    }
+
+    /**
+     * Build a tagged UNION ALL statement that executes this query for multiple parameter sets.  Each branch
+     * returns the selected fields followed by the index of the branch.  The records are sorted by branch index
+     * and then by the query's ordering fields.
+     *
+     * @param branches		number of parameter sets in the statement
+     *
+     * @return the SQL text for the statement
+     *
+     * @throws SQLException
+     */
+    private String buildUnion(int branches) throws SQLException {
+        SqlBuffer buffer = new SqlBuffer(this.db);
+        final int n = this.fieldNames.size();
+        for (int i = 0; i < branches; i++) {
+            if (i > 0)
+                buffer.append(" UNION ALL ");
+            buffer.append("SELECT ").startList();
+            for (String field : this.fieldNames)
+                buffer.appendDelim().quoteSpec(field);
+            buffer.appendDelim().append(Integer.toString(i)).append(" AS ").quote("_tag");
+            this.appendFromWhere(buffer);
+        }
+        // A compound query can only be sorted by result columns, so we use column positions.
+        buffer.append(" ORDER BY ").append(Integer.toString(n + 1));
+        for (String field : this.orderFields)
+            buffer.append(", ").append(Integer.toString(this.fieldNames.indexOf(field) + 1));
+        return buffer.toString();
+    }
+
+    /**
+     * Count the records that satisfy this query's filters, using the current parameter values.  The count is
+     * performed entirely in the database and no fields are retrieved.  If the query has a limit or offset,
+     * the count reflects it.
+     *
+     * @return the number of records this query would return
+     *
+     * @throws SQLException
+     */
+    public synchronized long count() throws SQLException {
+        if (this.countStmt == null) {
+            SqlBuffer buffer = new SqlBuffer(this.db);
+            if (this.isLimited()) {
+                // The limit applies to the records, not the count, so we must count a derived table.
+                buffer.append("SELECT COUNT(*) FROM (SELECT 1 AS ").quote("_one");
+                this.appendFromWhere(buffer);
+                this.db.appendLimit(buffer, this.limit, this.offset);
+                buffer.append(") AS ").quote("_cnt");
+            } else {
+                buffer.append("SELECT COUNT(*)");
+                this.appendFromWhere(buffer);
+            }
+            this.countStmt = this.db.createStatement(buffer);
+        }
+        return this.runScalar(this.countStmt);
+    }
+
+    /**
+     * Determine whether any records satisfy this query's filters, using the current parameter values.  The
+     * database can stop at the first matching record, and no fields are retrieved.  If the query has an offset,
+     * the check reflects it.
+     *
+     * @return TRUE if this query would return at least one record, else FALSE
+     *
+     * @throws SQLException
+     */
+    public synchronized boolean exists() throws SQLException {
+        if (this.existsStmt == null) {
+            SqlBuffer buffer = new SqlBuffer(this.db).append("SELECT EXISTS (SELECT 1");
+            this.appendFromWhere(buffer);
+            if (this.offset > 0)
+                this.db.appendLimit(buffer, 1, this.offset);
+            buffer.append(")");
+            this.existsStmt = this.db.createStatement(buffer);
+        }
+        return (this.runScalar(this.existsStmt) != 0);
+    }
+
+    /**
+     * Execute a statement that returns a single integer using this query's parameter values.
+     *
+     * @param target	statement to execute
+     *
+     * @return the integer returned
+     *
+     * @throws SQLException
+     */
+    private long runScalar(PreparedStatement target) throws SQLException {
+        long retVal = 0;
+        this.storeParms(target);
+        try (ResultSet results = target.executeQuery()) {
+            if (results.next())
+                retVal = results.getLong(1);
+        }
+        return retVal;
+    }
+
+    /**
+     * Close the count and existence statements for this query.
+     *
+     * @throws SQLException
+     */
+    private void closeScalarStatements() throws SQLException {
+        if (this.countStmt != null) {
+            this.countStmt.close();
+            this.countStmt = null;
+        }
+        if (this.existsStmt != null) {
+            this.existsStmt.close();
+            this.existsStmt = null;
+        }
+    }
+
+    /**
+     * Append the FROM and WHERE clauses of this query to an SQL statement being built.  All the joins in the
+     * table path are performed in the database.
+     *
+     * @param buffer	buffer containing the statement being built
+     *
+     * @throws SQLException
+     */
+    protected void appendFromWhere(SqlBuffer buffer) throws SQLException {
+        this.checkGroups();
+        buffer.append(" FROM ").append(this.buildFrom(Set.of()));
+        if (! this.whereClause.isEmpty())
+            buffer.append(" WHERE ").append(this.whereClause);
+    }
+
+    /**
+     * Store this query's current parameter values in a prepared statement built using
+     * {@link #appendFromWhere(SqlBuffer)}.
+     *
+     * @param target	prepared statement to receive the values
+     *
+     * @throws SQLException
+     */
+    protected void storeParms(PreparedStatement target) throws SQLException {
+        final int n = this.parms.size();
+        for (int i = 0; i < n; i++)
+            this.parms.get(i).store(target, i+1);
+    }
+
+    /**
+     * @return the descriptor for a field in one of this query's tables
+     *
+     * @param field		field specification (table.field)
+     *
+     * @throws SQLException
+     */
+    protected DbTable.Field getQueryField(String field) throws SQLException {
+        String[] parts = StringUtils.split(field, ".");
+        if (parts.length != 2)
+            throw new SQLException("Invalid field specification \"" + field + "\".");
+        DbTable.Field retVal = this.getSpecTable(parts[0]).getField(parts[1]);
+        if (retVal == null)
+            throw new SQLException("Field \"" + parts[1] + "\" not found in table " + parts[0] + ".");
+        return retVal;
+    }
+
+    /**
+     * @return the database connection for this query
+     */
+    protected DbConnection getDb() {
+        return this.db;
+    }
+
+    /**
+     * Delete the records in the specified table that satisfy this query's filters.  The delete is performed
+     * entirely in the database using the current parameter values.  If the query contains only the target
+     * table, a direct DELETE is used.  Otherwise, the query's joins and filters are used in a subquery to
+     * select the primary keys of the records to delete, which requires the target table to have a primary key.
+     * The SELECT, ORDER BY, and LIMIT clauses of the query are ignored.
+     *
+     * @param table		table specification for the records to delete
+     *
+     * @return the number of records deleted
+     *
+     * @throws SQLException
+     */
+    protected int executeDelete(String table) throws SQLException {
+        this.checkGroups();
+        DbTable descriptor = this.getSpecTable(table);
+        String realName = descriptor.getName();
+        SqlBuffer stmtBuffer = new SqlBuffer(this.db);
+        stmtBuffer.append("DELETE FROM ").quote(realName);
+        if (this.tableCount == 1 && realName.contentEquals(table)) {
+            if (! this.whereClause.isEmpty())
+                stmtBuffer.append(" WHERE ").append(this.whereClause);
+        } else {
+            String keyName = descriptor.getKeyName();
+            if (keyName == null)
+                throw new SQLException("Cannot do a joined delete on table " + realName + ", which has no primary key.");
+            // The derived table forces the subquery to be materialized, which is required by engines that do
+            // not allow a subquery to read from the table being deleted.
+            stmtBuffer.append(" WHERE ").quote(keyName).append(" IN (SELECT ").quote("_del", "_key")
+                    .append(" FROM (SELECT ").quote(table, keyName).append(" AS ").quote("_key")
+                    .append(" FROM ").append(this.buildFrom(Set.of()));
+            if (! this.whereClause.isEmpty())
+                stmtBuffer.append(" WHERE ").append(this.whereClause);
+            stmtBuffer.append(") AS ").quote("_del").append(")");
+        }
+        try (PreparedStatement deleteStmt = this.db.createStatement(stmtBuffer)) {
+            final int n = this.parms.size();
+            for (int i = 0; i < n; i++)
+                this.parms.get(i).store(deleteStmt, i+1);
+            return deleteStmt.executeUpdate();
+        }
+    }
+
+    /**
+     * @return the real table name for a table specification in this query
+     *
+     * @param table		table specification (name or alias)
+     *
+     * @throws SQLException
+     */
+    protected String getTableName(String table) throws SQLException {
+        return this.getSpecTable(table).getName();
+    }
+
     @Override
     public void close() throws SQLException {
-        // If we have a statement, close it.
-        if (this.stmt != null)
+        // If we have a private statement, close it.  Shared statements belong to the connection.
+        if (this.stmt != null && ! this.sharedStmt)
             this.stmt.close();
+        this.closeScalarStatements();
+        // Drop the temporary tables for collection filters.
+        for (String tempTable : this.tempTables)
+            this.db.dropTempTable(tempTable);
+        this.tempTables.clear();
     }
 
     /**
@@ -438,6 +1458,7 @@ public class DbQuery implements AutoCloseable, Iterable<DbRecord> {
      * @throws SQLException
      */
     private void selectField(String table, Field field) throws SQLException {
+        this.checkMutable();
         // Create the field reference name.
         String refName = table + "." + field.getName();
         // Verify that this field is new.
@@ -461,9 +1482,87 @@ public class DbQuery implements AutoCloseable, Iterable<DbRecord> {
     public DbQuery orderBy(String field) throws SQLException {
         this.findComparableField(field);
         this.orderByClause.appendDelim().quoteSpec(field);
+        this.orderFields.add(field);
+        return this;
+    }
+
+    /**
+     * Specify the maximum number of records to return.  The limit can be changed between executions.
+     * Without an ordering, the records returned are unpredictable.
+     *
+     * @param limit		maximum number of records to return, or 0 for no limit
+     *
+     * @return this object, for fluent invocation
+     *
+     * @throws SQLException
+     */
+    public DbQuery limit(int limit) throws SQLException {
+        if (limit < 0)
+            throw new SQLException("Invalid query limit " + limit + ".");
+        if (limit != this.limit) {
+            this.limit = limit;
+            this.resetStatement();
+        }
         return this;
     }
 
+    /**
+     * Specify the number of records to skip before returning results.  The offset can be changed between
+     * executions.  Note that the database must still read the skipped records, so for deep pages a
+     * {@link DbKeysetPager} is much faster.
+     *
+     * @param offset	number of records to skip
+     *
+     * @return this object, for fluent invocation
+     *
+     * @throws SQLException
+     */
+    public DbQuery offset(int offset) throws SQLException {
+        if (offset < 0)
+            throw new SQLException("Invalid query offset " + offset + ".");
+        if (offset != this.offset) {
+            this.offset = offset;
+            this.resetStatement();
+        }
+        return this;
+    }
+
+    /**
+     * @return TRUE if this query has a limit or an offset
+     */
+    protected boolean isLimited() {
+        return (this.limit > 0 || this.offset > 0);
+    }
+
+    /**
+     * Discard the SQL text and statement for this query so they are rebuilt on the next execution.  A query
+     * whose SQL text no longer matches its template switches to a private statement.
+     *
+     * @throws SQLException
+     */
+    private synchronized void resetStatement() throws SQLException {
+        if (this.stmt != null && ! this.sharedStmt)
+            this.stmt.close();
+        this.stmt = null;
+        this.closeScalarStatements();
+        this.sqlText = null;
+        this.sharedStmt = false;
+    }
+
+    /**
+     * Create a keyset pager for this query.  The query must have an ordering, and the ordering fields must
+     * uniquely identify each record.
+     *
+     * @param pageSize	number of records per page
+     *
+     * @return a pager that returns successive pages of this query's results
+     *
+     * @throws SQLException
+     */
+    public DbKeysetPager pager(int pageSize) throws SQLException {
+        return new DbKeysetPager(this, pageSize);
+    }
+
     /**
      * This locates the descriptor for a field based on the field spec, and fails if
      * the field is not found or it is not comparable.
@@ -489,9 +1588,12 @@ public class DbQuery implements AutoCloseable, Iterable<DbRecord> {
      * @throws SQLException
      */
     private DbTable.Field findField(String field) throws SQLException {
+        this.checkMutable();
         String[] parts = StringUtils.split(field, ".");
         if (parts.length < 2)
             throw new SQLException("Unqualified field \"" + field + "\" specified in query.");
+        // A table used in a filter or ordering must be joined in the database.
+        this.filterSpecs.add(parts[0]);
         DbTable table = this.findTable(parts[0]);
         DbTable.Field retVal = table.getField(parts[1]);
         if (retVal == null)
@@ -532,7 +1634,7 @@ public class DbQuery implements AutoCloseable, Iterable<DbRecord> {
         // Create the holders.
         this.addHolders(field, 1);
         // Update the WHERE clause.
-        this.whereClause.appendDelim().quoteSpec(field).append(op.text()).appendMark();
+        this.filters().appendDelim().quoteSpec(field).append(op.text()).appendMark();
         return this;
     }
 
@@ -551,7 +1653,7 @@ public class DbQuery implements AutoCloseable, Iterable<DbRecord> {
         // Create the holders.
         this.addHolders(field, 2);
         // Update the WHERE clause.
-        this.whereClause.appendDelim().quoteSpec(field).append(" BETWEEN ").appendMark()
+        this.filters().appendDelim().quoteSpec(field).append(" BETWEEN ").appendMark()
                 .append(" AND ").appendMark();
         return this;
     }
@@ -574,7 +1676,258 @@ public class DbQuery implements AutoCloseable, Iterable<DbRecord> {
         // Create the holders.
         this.addHolders(field, count);
         // Update the WHERE clause.
-        this.whereClause.appendDelim().quoteSpec(field).append(" IN ").addMarkList(count);
+        this.filters().appendDelim().quoteSpec(field).append(" IN ").addMarkList(count);
+        return this;
+    }
+
+    /**
+     * Add a filter requiring a field to have one of the values in a collection.  The values are stored
+     * immediately.  If the collection is small, this is an ordinary IN filter with one parameter per value,
+     * and the values occupy the next parameter positions.  If the collection is larger than
+     * {@link #IN_TABLE_THRESHOLD} or the database's parameter limit, the values are loaded into an indexed
+     * temporary table and the filter becomes an EXISTS semi-join against it, which uses no parameters.
+     * To keep the parameter numbering simple, collection filters should be added after all other filters.
+     *
+     * The temporary table is dropped when the query is closed.
+     *
+     * @param field		field spec (table.field) for field being filtered
+     * @param values	collection of permissible values
+     *
+     * @return this object, for fluent invocation
+     *
+     * @throws SQLException
+     */
+    public DbQuery inCollection(String field, Collection<?> values) throws SQLException {
+        return this.inCollection(field, values, IN_TABLE_THRESHOLD);
+    }
+
+    /**
+     * Add a filter requiring a field to have one of the values in a collection, using a temporary table
+     * if the collection is larger than the specified threshold.
+     *
+     * @param field			field spec (table.field) for field being filtered
+     * @param values		collection of permissible values
+     * @param threshold		maximum number of values to pass as parameters
+     *
+     * @return this object, for fluent invocation
+     *
+     * @throws SQLException
+     *
+     * @see #inCollection(String, Collection)
+     */
+    public DbQuery inCollection(String field, Collection<?> values, int threshold) throws SQLException {
+        final int n = values.size();
+        if (n == 0)
+            throw new SQLException("Empty value collection specified for field " + field + ".");
+        if (n <= Math.min(threshold, this.db.maxParameters())) {
+            int idx = this.parms.size();
+            this.in(field, n);
+            for (Object value : values)
+                this.parms.get(idx++).setObject(value);
+        } else {
+            DbTable.Field fieldDescriptor = this.findComparableField(field);
+            String spec = StringUtils.substringBefore(field, ".");
+            String fieldName = fieldDescriptor.getName();
+            String realName = this.getSpecTable(spec).getName();
+            List<String> columns = List.of(fieldName);
+            String tempTable = this.db.createTempTable(realName, columns, columns);
+            this.tempTables.add(tempTable);
+            // Load the values in batches.
+            SqlBuffer buffer = new SqlBuffer(this.db).append("INSERT INTO ").quote(tempTable).addFields(new String[] { fieldName })
+                    .append(" VALUES ").addMarkList(1);
+            DbValue holder = fieldDescriptor.getType().create();
+            try (PreparedStatement insertStmt = this.db.createStatement(buffer)) {
+                int batched = 0;
+                for (Object value : values) {
+                    holder.setObject(value);
+                    holder.store(insertStmt, 1);
+                    insertStmt.addBatch();
+                    batched++;
+                    if (batched >= IN_TABLE_BATCH) {
+                        insertStmt.executeBatch();
+                        batched = 0;
+                    }
+                }
+                if (batched > 0)
+                    insertStmt.executeBatch();
+            }
+            this.filters().appendDelim().append("EXISTS (SELECT 1 FROM ").quote(tempTable).append(" WHERE ")
+                    .quote(tempTable, fieldName).append(" = ").quoteSpec(field).append(")");
+        }
+        return this;
+    }
+
+    /**
+     * @return the buffer to receive new filters, which is the innermost open group or the WHERE clause
+     */
+    private SqlBuffer filters() {
+        SqlBuffer retVal;
+        if (this.groups.isEmpty())
+            retVal = this.whereClause;
+        else
+            retVal = this.groups.peek().buffer;
+        return retVal;
+    }
+
+    /**
+     * Insure there are no unclosed filter groups.
+     *
+     * @throws SQLException
+     */
+    private void checkGroups() throws SQLException {
+        if (! this.groups.isEmpty())
+            throw new SQLException("Query has " + this.groups.size() + " unclosed filter group(s).");
+    }
+
+    /**
+     * Start a group of filters, any one of which must be satisfied.  Subsequent filters are added to the group
+     * until {@link #end()} is called.  Groups can be nested.
+     *
+     * @return this object, for fluent invocation
+     *
+     * @throws SQLException
+     */
+    public DbQuery anyOf() throws SQLException {
+        return this.startGroup(" OR ", false);
+    }
+
+    /**
+     * Start a group of filters, all of which must be satisfied.  This is only necessary inside an
+     * {@link #anyOf()} group, since the top-level filters are already combined this way.
+     *
+     * @return this object, for fluent invocation
+     *
+     * @throws SQLException
+     */
+    public DbQuery allOf() throws SQLException {
+        return this.startGroup(" AND ", false);
+    }
+
+    /**
+     * Start a group of filters that must not all be satisfied.  The filters in the group are combined with
+     * AND, and the result is negated.
+     *
+     * @return this object, for fluent invocation
+     *
+     * @throws SQLException
+     */
+    public DbQuery not() throws SQLException {
+        return this.startGroup(" AND ", true);
+    }
+
+    /**
+     * Start a new filter group.
+     *
+     * @param delimiter		operator connecting the filters in the group
+     * @param negated		TRUE if the group is negated
+     *
+     * @return this object, for fluent invocation
+     *
+     * @throws SQLException
+     */
+    private DbQuery startGroup(String delimiter, boolean negated) throws SQLException {
+        this.checkMutable();
+        this.groups.push(new FilterGroup(this.db, delimiter, negated));
+        return this;
+    }
+
+    /**
+     * Close the innermost filter group and add it to the enclosing group or the WHERE clause.
+     *
+     * @return this object, for fluent invocation
+     *
+     * @throws SQLException
+     */
+    public DbQuery end() throws SQLException {
+        if (this.groups.isEmpty())
+            throw new SQLException("No filter group to end.");
+        FilterGroup group = this.groups.pop();
+        if (group.buffer.isEmpty())
+            throw new SQLException("Filter group has no filters.");
+        SqlBuffer filter = this.filters().appendDelim();
+        if (group.negated)
+            filter.append("NOT ");
+        filter.append("(").append(group.buffer).append(")");
+        return this;
+    }
+
+    /**
+     * Add a filter that requires a subquery to have at least one record.  The subquery is normally correlated
+     * to this query using {@link #correlate(String, String)}.  Its table path and filters are copied when this
+     * method is called, and its parameters become parameters of this query, in order, at this point in the
+     * parameter list.  Its select list, ordering, and limit are ignored.  Tables in the subquery that are also
+     * in this query should be given distinct table specifications, using a numeric suffix.
+     *
+     * @param subQuery	subquery to check
+     *
+     * @return this object, for fluent invocation
+     *
+     * @throws SQLException
+     */
+    public DbQuery exists(DbQuery subQuery) throws SQLException {
+        return this.addSubQuery("EXISTS", subQuery);
+    }
+
+    /**
+     * Add a filter that requires a subquery to have no records.
+     *
+     * @param subQuery	subquery to check
+     *
+     * @return this object, for fluent invocation
+     *
+     * @throws SQLException
+     *
+     * @see #exists(DbQuery)
+     */
+    public DbQuery notExists(DbQuery subQuery) throws SQLException {
+        return this.addSubQuery("NOT EXISTS", subQuery);
+    }
+
+    /**
+     * Add a subquery filter.
+     *
+     * @param operator		operator to apply to the subquery
+     * @param subQuery		subquery to add
+     *
+     * @return this object, for fluent invocation
+     *
+     * @throws SQLException
+     */
+    private DbQuery addSubQuery(String operator, DbQuery subQuery) throws SQLException {
+        if (subQuery == this)
+            throw new SQLException("A query cannot be its own subquery.");
+        if (subQuery.db != this.db)
+            throw new SQLException("A subquery must use the same database connection as its parent.");
+        // Validate the fields from this query referenced by the subquery.
+        for (String outerField : subQuery.outerFields)
+            this.findComparableField(outerField);
+        SqlBuffer filter = this.filters().appendDelim().append(operator).append(" (SELECT 1");
+        subQuery.appendFromWhere(filter);
+        filter.append(")");
+        this.parms.addAll(subQuery.parms);
+        this.subTables.addAll(subQuery.getTableNames());
+        // This query now owns the subquery's temporary tables.
+        this.tempTables.addAll(subQuery.tempTables);
+        subQuery.tempTables.clear();
+        return this;
+    }
+
+    /**
+     * Add a filter to this query that correlates it with an outer query.  The filter requires a field in this
+     * query to equal a field in the outer query.  The outer field is validated when this query is added to the
+     * outer query using {@link #exists(DbQuery)} or {@link #notExists(DbQuery)}.
+     *
+     * @param field			field spec (table.field) in this query
+     * @param outerField	field spec (table.field) in the outer query
+     *
+     * @return this object, for fluent invocation
+     *
+     * @throws SQLException
+     */
+    public DbQuery correlate(String field, String outerField) throws SQLException {
+        this.findComparableField(field);
+        this.filters().appendDelim().quoteSpec(field).append(" = ").quoteSpec(outerField);
+        this.outerFields.add(outerField);
         return this;
     }
 
@@ -593,14 +1946,34 @@ public class DbQuery implements AutoCloseable, Iterable<DbRecord> {
         DbTable.Field fieldDescriptor = this.findComparableField(field);
         if (! fieldDescriptor.isNullable())
             throw new SQLException("Field " + field + " is not nullable.");
-        this.whereClause.appendDelim().quoteSpec(field).append(" IS");
+        SqlBuffer filter = this.filters();
+        filter.appendDelim().quoteSpec(field).append(" IS");
         if (! flag)
-            this.whereClause.append(" NOT");
-        this.whereClause.append(" NULL");
+            filter.append(" NOT");
+        filter.append(" NULL");
         return this;
 
     }
 
+    /**
+     * Store values in all of the parameters, in order.  Each value must be compatible with the type of the
+     * field to which its parameter is compared, and a NULL stores a null value.
+     *
+     * @param values	values to store, one per parameter
+     *
+     * @return this object, for fluent invocation
+     *
+     * @throws SQLException
+     */
+    public DbQuery setParms(Object... values) throws SQLException {
+        if (values.length != this.parms.size())
+            throw new SQLException("Query has " + this.parms.size() + " parameters, but " + values.length
+                    + " values were specified.");
+        for (int i = 0; i < values.length; i++)
+            this.parms.get(i).setObject(values[i]);
+        return this;
+    }
+
     /**
      * Insure there is room for the specified number of parameter values.
      *
@@ -0,0 +1,227 @@
+/**
+ *
+ */
+package org.theseed.java.erdb;
+
+import java.sql.SQLException;
+
+/**
+ * This object is a compiled database query that can be used to create any number of executable query instances.
+ * The template is built once from a table path plus select, filter, and ordering calls, just like a
+ * {@link DbQuery}.  The first time an instance is requested, the template is compiled:  the SQL text is built
+ * and the template can no longer be modified.
+ *
+ * Each instance shares the template's parsed table path, field lists, and SQL text, and only has its own
+ * parameter values, so creating one is very cheap.  All the instances on the same connection share a single
+ * prepared statement, which is owned by the connection.  As with a single query, a statement can only have one
+ * open result set, so an iteration through an instance's results should be finished before another instance
+ * of the same template is executed on the same connection; otherwise the unfinished iteration fails.
+ *
+ * After compilation the template is immutable, so it can be stored and used by multiple threads.  A thread
+ * can create instances on its own connection, which must be to the same database as the template's.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class DbQueryTemplate {
+
+    // FIELDS
+    /** prototype query containing the template's structure */
+    private DbQuery prototype;
+    /** connection used to build the template */
+    private DbConnection db;
+    /** TRUE if the template has been compiled */
+    private volatile boolean compiled;
+
+    /**
+     * Create a new query template.
+     *
+     * @param db			database to query
+     * @param tablePath		path through the database tables (see {@link DbQuery})
+     *
+     * @throws SQLException
+     */
+    public DbQueryTemplate(DbConnection db, String tablePath) throws SQLException {
+        this.db = db;
+        this.prototype = new DbQuery(db, tablePath);
+        this.compiled = false;
+    }
+
+    /**
+     * Add fields from a table to the SELECT clause.
+     *
+     * @param table		table specification for the fields
+     * @param fields	array of the fields to add
+     *
+     * @return this object, for fluent invocation
+     *
+     * @throws SQLException
+     */
+    public DbQueryTemplate select(String table, String... fields) throws SQLException {
+        this.prototype.select(table, fields);
+        return this;
+    }
+
+    /**
+     * Add all fields for a table to the SELECT clause.
+     *
+     * @param table		table specification for the fields
+     *
+     * @return this object, for fluent invocation
+     *
+     * @throws SQLException
+     */
+    public DbQueryTemplate selectAll(String table) throws SQLException {
+        this.prototype.selectAll(table);
+        return this;
+    }
+
+    /**
+     * Add an ordering criterion to the query.
+     *
+     * @param field		field spec for the ordering (table.field)
+     *
+     * @return this object, for fluent invocation
+     *
+     * @throws SQLException
+     */
+    public DbQueryTemplate orderBy(String field) throws SQLException {
+        this.prototype.orderBy(field);
+        return this;
+    }
+
+    /**
+     * Add a relational filter to the query.
+     *
+     * @param field		field spec (table.field) for field being filtered
+     * @param op		relational operator
+     *
+     * @return this object, for fluent invocation
+     *
+     * @throws SQLException
+     */
+    public DbQueryTemplate rel(String field, Relop op) throws SQLException {
+        this.prototype.rel(field, op);
+        return this;
+    }
+
+    /**
+     * Add a BETWEEN filter to the query.
+     *
+     * @param field		field spec (table.field) for field being filtered
+     *
+     * @return this object, for fluent invocation
+     *
+     * @throws SQLException
+     */
+    public DbQueryTemplate between(String field) throws SQLException {
+        this.prototype.between(field);
+        return this;
+    }
+
+    /**
+     * Add an IN filter to the query.
+     *
+     * @param field		field spec (table.field) for field being filtered
+     * @param count		number of parameter marks to use
+     *
+     * @return this object, for fluent invocation
+     *
+     * @throws SQLException
+     */
+    public DbQueryTemplate in(String field, int count) throws SQLException {
+        this.prototype.in(field, count);
+        return this;
+    }
+
+    /**
+     * Add an IS NULL or IS NOT NULL filter to the query.
+     *
+     * @param field		field spec (table.field) for the field being filtered
+     * @param flag		TRUE for is-null, FALSE for is-not-null
+     *
+     * @return this object, for fluent invocation
+     *
+     * @throws SQLException
+     */
+    public DbQueryTemplate isNull(String field, boolean flag) throws SQLException {
+        this.prototype.isNull(field, flag);
+        return this;
+    }
+
+    /**
+     * Specify the maximum number of records to return.  The limit can be changed on the individual instances,
+     * but an instance with a different limit uses its own prepared statement.
+     *
+     * @param limit		maximum number of records to return, or 0 for no limit
+     *
+     * @return this object, for fluent invocation
+     *
+     * @throws SQLException
+     */
+    public DbQueryTemplate limit(int limit) throws SQLException {
+        if (this.compiled)
+            throw new SQLException("Cannot modify a compiled query.");
+        this.prototype.limit(limit);
+        return this;
+    }
+
+    /**
+     * Compile the template.  This happens automatically when the first instance is created, but it can be
+     * done in advance to detect errors early.  Once the template is compiled, it can no longer be modified.
+     *
+     * @return this object, for fluent invocation
+     *
+     * @throws SQLException
+     */
+    public DbQueryTemplate compile() throws SQLException {
+        if (! this.compiled) {
+            synchronized (this) {
+                if (! this.compiled) {
+                    this.prototype.freeze();
+                    this.compiled = true;
+                }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * @return a new executable instance of this query on the template's connection
+     *
+     * @throws SQLException
+     */
+    public DbQuery instance() throws SQLException {
+        return this.instance(this.db);
+    }
+
+    /**
+     * @return a new executable instance of this query
+     *
+     * @param qdb	connection to the database to query, which must be the template's database
+     *
+     * @throws SQLException
+     */
+    public DbQuery instance(DbConnection qdb) throws SQLException {
+        this.compile();
+        return new DbQuery(qdb, this.prototype);
+    }
+
+    /**
+     * @return the SQL text of the compiled query
+     *
+     * @throws SQLException
+     */
+    public String getSql() throws SQLException {
+        this.compile();
+        return this.prototype.getSql();
+    }
+
+    /**
+     * @return TRUE if the template has been compiled
+     */
+    public boolean isCompiled() {
+        return this.compiled;
+    }
+
+}
@@ -53,6 +53,20 @@ public class DbRecord {
         }
     }
 
+    /**
+     * Create a record from existing value holders.
+     *
+     * @param fieldNames	list of field specs in order
+     * @param values		list of value holders in the same order
+     */
+    protected DbRecord(List<String> fieldNames, List<DbValue> values) {
+        final int n = fieldNames.size();
+        this.valueList = values;
+        this.valueMap = new HashMap<>(n * 4 / 3 + 1);
+        for (int i = 0; i < n; i++)
+            this.valueMap.put(fieldNames.get(i), values.get(i));
+    }
+
     /**
      * Find the specified field's holder and throw an error if it is not there.
      *
@@ -141,6 +155,22 @@ public class DbRecord {
         return this.getField(field);
     }
 
+    /**
+     * @return the value holder at the specified position in the record
+     *
+     * @param idx		index (0-based) of the field in the record
+     */
+    public DbValue getValue(int idx) {
+        return this.valueList.get(idx);
+    }
+
+    /**
+     * @return the number of fields in this record
+     */
+    public int size() {
+        return this.valueList.size();
+    }
+
     /**
      * @return the specified field value as a date
      *
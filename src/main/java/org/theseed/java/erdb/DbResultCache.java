@@ -0,0 +1,284 @@
+/**
+ *
+ */
+package org.theseed.java.erdb;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This object caches the results of database queries.  Each result is keyed by the text of the query's SQL
+ * statement plus its parameter values, and is stored along with the names of the tables the query reads.
+ * The cache is bounded by the approximate number of bytes in the cached records, and when it is full the least
+ * recently used results are evicted.
+ *
+ * The owning connection invalidates the results for a table whenever the table is changed.  Each invalidation
+ * also advances a generation counter.  A result is only stored if the generation has not changed since the
+ * query started, so a result that was being read while a table changed is never cached.
+ *
+ * The cached records are shared by all the clients that receive them, and must not be modified.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class DbResultCache {
+
+    // FIELDS
+    /** map of cache keys to cached results, in least-recently-used order */
+    private LinkedHashMap<String, Entry> entries;
+    /** map of lower-case table names to the keys of the results that read them */
+    private Map<String, Set<String>> tableIndex;
+    /** maximum approximate number of bytes to cache */
+    private long maxBytes;
+    /** approximate number of bytes currently cached */
+    private long bytes;
+    /** number of invalidations performed */
+    private long generation;
+    /** number of requests satisfied from the cache */
+    private long hits;
+    /** number of requests not satisfied from the cache */
+    private long misses;
+    /** number of results evicted to make room */
+    private long evictions;
+    /** number of results removed because a table changed */
+    private long invalidations;
+    /** approximate overhead of a cached result, in bytes */
+    private static final int ENTRY_OVERHEAD = 128;
+    /** approximate overhead of a cached record, in bytes */
+    private static final int RECORD_OVERHEAD = 48;
+
+    /**
+     * This object describes a cached result.
+     */
+    private static class Entry {
+
+        /** records in the result */
+        private List<DbRecord> records;
+        /** lower-case names of the tables read by the query */
+        private Set<String> tables;
+        /** approximate size of the result, in bytes */
+        private long bytes;
+
+        /**
+         * Create a cached result.
+         *
+         * @param records	records in the result
+         * @param tables	lower-case names of the tables read
+         * @param bytes		approximate size of the result
+         */
+        private Entry(List<DbRecord> records, Set<String> tables, long bytes) {
+            this.records = records;
+            this.tables = tables;
+            this.bytes = bytes;
+        }
+
+    }
+
+    /**
+     * Create an empty result cache.
+     *
+     * @param maxBytes		maximum approximate number of bytes to cache
+     */
+    public DbResultCache(long maxBytes) {
+        if (maxBytes <= 0)
+            throw new IllegalArgumentException("Result cache size must be positive.");
+        this.maxBytes = maxBytes;
+        this.entries = new LinkedHashMap<>(64, 0.75f, true);
+        this.tableIndex = new HashMap<>();
+        this.bytes = 0;
+        this.generation = 0;
+        this.hits = 0;
+        this.misses = 0;
+        this.evictions = 0;
+        this.invalidations = 0;
+    }
+
+    /**
+     * @return the cached records for a query, or NULL if the query's result is not cached
+     *
+     * @param key	cache key for the query
+     */
+    public synchronized List<DbRecord> get(String key) {
+        List<DbRecord> retVal = null;
+        Entry entry = this.entries.get(key);
+        if (entry == null)
+            this.misses++;
+        else {
+            this.hits++;
+            retVal = entry.records;
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the current generation number, which changes every time a table is invalidated
+     */
+    public synchronized long getGeneration() {
+        return this.generation;
+    }
+
+    /**
+     * Store the result of a query in the cache.  The result is not stored if a table has been invalidated
+     * since the specified generation, or if the result is too big for the cache.
+     *
+     * @param key			cache key for the query
+     * @param tables		names of the tables read by the query
+     * @param records		records in the result
+     * @param recordBytes	approximate size of the records, in bytes (see {@link #sizeOf(DbRecord)})
+     * @param generation	generation number when the query was started
+     *
+     * @return TRUE if the result was stored, else FALSE
+     */
+    public synchronized boolean put(String key, Collection<String> tables, List<DbRecord> records,
+            long recordBytes, long generation) {
+        long size = recordBytes + ENTRY_OVERHEAD + key.length() * 2L;
+        boolean retVal = (generation == this.generation && size <= this.maxBytes);
+        if (retVal) {
+            this.remove(key);
+            // Make room for the new result.
+            Iterator<Map.Entry<String, Entry>> iter = this.entries.entrySet().iterator();
+            while (this.bytes + size > this.maxBytes && iter.hasNext()) {
+                Map.Entry<String, Entry> eldest = iter.next();
+                iter.remove();
+                this.unindex(eldest.getKey(), eldest.getValue());
+                this.evictions++;
+            }
+            // Store the result and index it by table.
+            Set<String> tableSet = new HashSet<>(tables.size() * 4 / 3 + 1);
+            for (String table : tables)
+                tableSet.add(table.toLowerCase());
+            Entry entry = new Entry(Collections.unmodifiableList(records), tableSet, size);
+            this.entries.put(key, entry);
+            for (String table : tableSet)
+                this.tableIndex.computeIfAbsent(table, x -> new HashSet<>()).add(key);
+            this.bytes += size;
+        }
+        return retVal;
+    }
+
+    /**
+     * Remove a result from the cache.
+     *
+     * @param key	cache key of the result to remove
+     */
+    private void remove(String key) {
+        Entry entry = this.entries.remove(key);
+        if (entry != null)
+            this.unindex(key, entry);
+    }
+
+    /**
+     * Remove a result that is no longer in the entry map from the table index and the byte count.
+     *
+     * @param key		cache key of the result
+     * @param entry		descriptor of the result
+     */
+    private void unindex(String key, Entry entry) {
+        this.bytes -= entry.bytes;
+        for (String table : entry.tables) {
+            Set<String> keys = this.tableIndex.get(table);
+            if (keys != null) {
+                keys.remove(key);
+                if (keys.isEmpty())
+                    this.tableIndex.remove(table);
+            }
+        }
+    }
+
+    /**
+     * Remove all the results that read a table.
+     *
+     * @param table		name of the table that changed
+     */
+    public synchronized void invalidate(String table) {
+        this.generation++;
+        Set<String> keys = this.tableIndex.remove(table.toLowerCase());
+        if (keys != null) {
+            for (String key : keys) {
+                this.remove(key);
+                this.invalidations++;
+            }
+        }
+    }
+
+    /**
+     * Remove all the results from the cache.
+     */
+    public synchronized void clear() {
+        this.generation++;
+        this.invalidations += this.entries.size();
+        this.entries.clear();
+        this.tableIndex.clear();
+        this.bytes = 0;
+    }
+
+    /**
+     * @return the approximate size of a record, in bytes
+     *
+     * @param record	record to measure
+     */
+    public static long sizeOf(DbRecord record) {
+        long retVal = RECORD_OVERHEAD;
+        final int n = record.size();
+        for (int i = 0; i < n; i++)
+            retVal += record.getValue(i).getSizeEstimate();
+        return retVal;
+    }
+
+    /**
+     * @return the maximum approximate number of bytes to cache
+     */
+    public long getMaxBytes() {
+        return this.maxBytes;
+    }
+
+    /**
+     * @return the approximate number of bytes currently cached
+     */
+    public synchronized long getByteSize() {
+        return this.bytes;
+    }
+
+    /**
+     * @return the number of results in the cache
+     */
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * @return the number of requests satisfied from the cache
+     */
+    public synchronized long getHits() {
+        return this.hits;
+    }
+
+    /**
+     * @return the number of requests not satisfied from the cache
+     */
+    public synchronized long getMisses() {
+        return this.misses;
+    }
+
+    /**
+     * @return the number of results evicted to make room for new ones
+     */
+    public synchronized long getEvictions() {
+        return this.evictions;
+    }
+
+    /**
+     * @return the number of results removed because a table changed
+     */
+    public synchronized long getInvalidations() {
+        return this.invalidations;
+    }
+
+}
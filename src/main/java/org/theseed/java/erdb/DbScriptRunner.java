@@ -0,0 +1,228 @@
+/**
+ *
+ */
+package org.theseed.java.erdb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This object executes an SQL script against a database.  The script is parsed incrementally by a
+ * {@link SqlScriptReader}, so arbitrarily large data dumps can be processed without holding them in memory.
+ *
+ * The statements are executed in batches of a specified chunk size, and the work is committed after each chunk.
+ * If the chunk size is 0, the entire script is executed as a single transaction, and nothing is committed unless
+ * every statement succeeds.  When a chunked run fails, the work for the failing chunk is rolled back, and a
+ * {@link ScriptException} is thrown that contains the number of statements committed, whether the failure came
+ * from the database or from reading the script.  Passing that number as the start offset of a new run resumes
+ * the script where it stopped.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class DbScriptRunner {
+
+    // FIELDS
+    /** logging facility */
+    private static final Logger log = LoggerFactory.getLogger(DbScriptRunner.class);
+    /** target database */
+    private DbConnection db;
+    /** number of statements per commit, or 0 for a single transaction */
+    private int chunkSize;
+    /** number of statements to skip at the start of the script */
+    private long startOffset;
+    /** progress listener, or NULL if none */
+    private IProgressListener listener;
+    /** number of statements committed in the current run, including the skipped ones */
+    private long committed;
+
+    /**
+     * This interface is used to report progress during a script run.
+     */
+    public interface IProgressListener {
+
+        /**
+         * Report that a chunk of statements has been committed.
+         *
+         * @param committed		number of statements committed, including any skipped at the start
+         * 						(this is the offset at which to resume the script)
+         */
+        public void progress(long committed);
+
+    }
+
+    /**
+     * This exception is thrown when a chunked script run fails.  It contains the number of statements
+     * committed, which is the offset at which to resume the script.  The cause is the original
+     * SQLException or IOException.
+     */
+    public static class ScriptException extends SQLException {
+
+        /** serialization version */
+        private static final long serialVersionUID = 3307715846427316410L;
+        /** number of statements committed, including any skipped at the start */
+        private final long committed;
+
+        /**
+         * Create a script-failure exception.
+         *
+         * @param inFile		script file that failed
+         * @param committed		number of statements committed before the failure
+         * @param cause			original exception
+         */
+        public ScriptException(File inFile, long committed, Exception cause) {
+            super("Script " + inFile + " failed after " + committed + " statements were committed: "
+                    + cause.getMessage(), cause);
+            this.committed = committed;
+        }
+
+        /**
+         * @return the number of statements committed before the failure (the offset at which to resume)
+         */
+        public long getCommitted() {
+            return this.committed;
+        }
+
+    }
+
+    /**
+     * Create a script runner for a database.  By default, the whole script is run as a single transaction.
+     *
+     * @param db		target database
+     */
+    public DbScriptRunner(DbConnection db) {
+        this.db = db;
+        this.chunkSize = 0;
+        this.startOffset = 0;
+        this.listener = null;
+        this.committed = 0;
+    }
+
+    /**
+     * Specify the number of statements to execute per commit.
+     *
+     * @param chunkSize		number of statements per commit, or 0 to run the script in one transaction
+     *
+     * @return this object, for fluent invocation
+     */
+    public DbScriptRunner setChunkSize(int chunkSize) {
+        if (chunkSize < 0)
+            throw new IllegalArgumentException("Chunk size cannot be negative.");
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    /**
+     * Specify the number of statements to skip at the start of the script.
+     *
+     * @param startOffset	number of statements already committed by a previous run
+     *
+     * @return this object, for fluent invocation
+     */
+    public DbScriptRunner setStartOffset(long startOffset) {
+        this.startOffset = startOffset;
+        return this;
+    }
+
+    /**
+     * Specify a listener to receive progress reports.
+     *
+     * @param listener		progress listener to use
+     *
+     * @return this object, for fluent invocation
+     */
+    public DbScriptRunner setListener(IProgressListener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * Execute an SQL script.
+     *
+     * @param inFile	file containing the script
+     *
+     * @return the total number of statements committed, including any skipped at the start
+     *
+     * @throws SQLException
+     * @throws IOException
+     * @throws ScriptException if a chunked run fails (this includes read errors)
+     */
+    public long run(File inFile) throws SQLException, IOException {
+        this.committed = 0;
+        long total = 0;
+        // The script can change any table, so the key filters must be rebuilt and the cached results discarded.
+        this.db.keyFilterStale(null);
+        this.db.allTablesChanged();
+        Connection conn = this.db.getConnection();
+        try (SqlScriptReader sqlStream = new SqlScriptReader(inFile, this.db.backslashEscapes(),
+                    this.db.bracketQuotes(), this.db.dashCommentSpace());
+                Statement stmt = conn.createStatement();
+                DbConnection.Transaction xact = this.db.new Transaction()) {
+            int pending = 0;
+            long lastLog = System.currentTimeMillis();
+            try {
+                // Skip the statements already processed.
+                while (sqlStream.hasNext() && sqlStream.getCount() < this.startOffset)
+                    sqlStream.next();
+                this.committed = sqlStream.getCount();
+                if (this.startOffset > 0)
+                    log.info("Resuming script {} at statement {}.", inFile, this.committed);
+                while (sqlStream.hasNext()) {
+                    stmt.addBatch(sqlStream.next());
+                    pending++;
+                    if (this.chunkSize > 0 && pending >= this.chunkSize) {
+                        stmt.executeBatch();
+                        conn.commit();
+                        this.chunkCommitted(sqlStream.getCount());
+                        pending = 0;
+                        if (System.currentTimeMillis() - lastLog >= 5000) {
+                            log.info("{} statements committed from {}.", this.committed, inFile);
+                            lastLog = System.currentTimeMillis();
+                        }
+                    }
+                }
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            // Execute the residual batch and commit everything left.
+            if (pending > 0)
+                stmt.executeBatch();
+            xact.commit();
+            total = sqlStream.getCount();
+        } catch (SQLException | IOException e) {
+            if (this.chunkSize > 0)
+                throw new ScriptException(inFile, this.committed, e);
+            throw e;
+        }
+        // The final commit happens when the transaction closes.
+        this.chunkCommitted(total);
+        log.info("Script {} completed: {} statements committed.", inFile, this.committed);
+        return this.committed;
+    }
+
+    /**
+     * Record that a chunk has been committed.
+     *
+     * @param count		number of statements committed
+     */
+    private void chunkCommitted(long count) {
+        this.committed = count;
+        if (this.listener != null)
+            this.listener.progress(count);
+    }
+
+    /**
+     * @return the number of statements committed by the current or most recent run
+     */
+    public long getCommitted() {
+        return this.committed;
+    }
+
+}
@@ -94,16 +94,21 @@ public class DbTable {
         private String localField;
         /** field name in the target table */
         private String otherField;
+        /** TRUE if the field in this table is a foreign key referencing the other table */
+        private boolean imported;
 
         /**
          * Specify a link from this table to another.
          *
          * @param local		field name for this table
          * @param other		equivalent field in the other table
+         * @param imported	TRUE if the local field is a foreign key referencing the other table, FALSE if
+         * 					the other table's field is a foreign key referencing this table
          */
-        protected Link(String local, String other) {
+        protected Link(String local, String other, boolean imported) {
             this.localField = local;
             this.otherField = other;
+            this.imported = imported;
         }
 
         /**
@@ -131,6 +136,14 @@ public class DbTable {
             return this.otherField;
         }
 
+        /**
+         * @return TRUE if this table refers to the other table (so the other table is a parent that must be loaded
+         * 		   first), FALSE if the other table refers to this one
+         */
+        public boolean isImported() {
+            return this.imported;
+        }
+
     }
 
     /**
@@ -338,10 +351,10 @@ public class DbTable {
         // Determine which table is not us.  That is the target table.
         if (link1Name.contentEquals(this.name.toLowerCase())) {
             // Here we are linking out.
-            this.links.put(link2Name, new Link(link1Col, link2Col));
+            this.links.put(link2Name, new Link(link1Col, link2Col, false));
         } else {
             // Here we are linking in.
-            this.links.put(link1Name, new Link(link2Col, link1Col));
+            this.links.put(link1Name, new Link(link2Col, link1Col, true));
         }
     }
 
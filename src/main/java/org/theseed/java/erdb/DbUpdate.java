@@ -4,27 +4,46 @@
 package org.theseed.java.erdb;
 
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.Set;
 import java.util.TreeSet;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 /**
  * This object manages an SQL UPDATE statement.  The updates are batched automatically, but the
  * capabilities are limited to an identity filter on one or more fields.  For more complicated updates,
  * use native JDBC statements without batching.
  *
+ * In bulk mode, the new values are not applied row by row.  Instead, they are inserted into a temporary
+ * table using batched inserts, and then copied into the target table by a single set-based UPDATE that
+ * joins the temporary table on the filter fields.  The staged values are applied when the update is
+ * flushed (which happens on close and at each commit of an auto-chunking transaction).  Note that if
+ * several staged rows match the same target row, it is undefined which one wins.
+ *
  * @author Bruce Parrello
  *
  */
 public class DbUpdate extends DbBaseUpdate {
 
     // FIELDS
+    /** logging facility */
+    private static final Logger log = LoggerFactory.getLogger(DbUpdate.class);
     /** name of the filtering field */
     private Set<String> filterFields;
     /** list of fields to set (in order) */
     private Set<String> setFields;
     /** TRUE if we have created the statement */
     private boolean stmtCreated;
+    /** TRUE if updates are staged in a temporary table */
+    private boolean bulk;
+    /** name of the staging table in bulk mode, or NULL if it has not been created */
+    private String tempTable;
+    /** number of staged rows not yet applied */
+    private int stagedRows;
 
     /**
      * Create an update statement.
@@ -67,12 +86,46 @@ public class DbUpdate extends DbBaseUpdate {
         return retVal;
     }
 
+    /**
+     * Construct an update for the specified table whose batch size is tuned online.
+     *
+     * @param db		database connection
+     * @param table		name of table to update
+     *
+     * @throws SQLException
+     */
+    public static DbUpdate adaptive(DbConnection db, String table) throws SQLException {
+        DbUpdate retVal = new DbUpdate(db, table, MAX_BATCH_SIZE);
+        retVal.initialize(db, table);
+        retVal.setAdaptive();
+        return retVal;
+    }
+
+    /**
+     * Create an update that stages the new values in a temporary table and applies them with a single
+     * set-based statement.
+     *
+     * @param db		database being updated
+     * @param table		table being updated
+     *
+     * @throws SQLException
+     */
+    public static DbUpdate bulk(DbConnection db, String table) throws SQLException {
+        DbUpdate retVal = new DbUpdate(db, table, DbBaseUpdate.MAX_BATCH_SIZE);
+        retVal.initialize(db, table);
+        retVal.bulk = true;
+        return retVal;
+    }
+
     @Override
     protected void initCommand(DbConnection db, String table) throws SQLException {
         // Denote the statement is currently empty.
         this.filterFields = new TreeSet<>();
         this.setFields = new TreeSet<>();
         this.stmtCreated = false;
+        this.bulk = false;
+        this.tempTable = null;
+        this.stagedRows = 0;
     }
 
     /**
@@ -125,6 +178,9 @@ public class DbUpdate extends DbBaseUpdate {
     public void update() throws SQLException {
         if (! this.stmtCreated)
             throw new SQLException("Cannot do an update on an uncreated update statement.");
+        // Count the staged row first, since submitting it can trigger a checkpoint that applies the staged rows.
+        if (this.bulk)
+            this.stagedRows++;
         // Execute the update.
         this.submit();
     }
@@ -135,6 +191,33 @@ public class DbUpdate extends DbBaseUpdate {
      * @throws SQLException
      */
     public void createStatement() throws SQLException {
+        // If we are changing primary keys, the table's key filter can no longer track them.
+        DbTable tableDesc = this.getTableData();
+        String keyName = tableDesc.getKeyName();
+        if (keyName != null && this.setFields.contains(keyName))
+            this.getDb().keyFilterStale(tableDesc.getName());
+        if (this.bulk)
+            this.createStagingStatement();
+        else
+            this.createUpdateStatement();
+        this.stmtCreated = true;
+    }
+
+    @Override
+    protected boolean identifiesRows() {
+        // Each row identifies the record it changes if the only filter is the primary key and the key
+        // itself is not being changed.
+        String keyName = this.getTableData().getKeyName();
+        return (keyName != null && this.filterFields.size() == 1 && this.filterFields.contains(keyName)
+                && ! this.setFields.contains(keyName));
+    }
+
+    /**
+     * Build the normal row-by-row update statement.
+     *
+     * @throws SQLException
+     */
+    private void createUpdateStatement() throws SQLException {
         // Here we have to build the statement itself.
         DbTable tableDesc = this.getTableData();
         String table = tableDesc.getName();
@@ -156,7 +239,67 @@ public class DbUpdate extends DbBaseUpdate {
         }
         // Now create the statement.
         this.createStatement(buffer);
-        this.stmtCreated = true;
+    }
+
+    /**
+     * Create the staging table for bulk mode and build the statement that inserts into it.
+     *
+     * @throws SQLException
+     */
+    private void createStagingStatement() throws SQLException {
+        if (this.filterFields.isEmpty())
+            throw new SQLException("A bulk update requires at least one filter field.");
+        DbConnection db = this.getDb();
+        // The staging table holds each changed field and each filter field once.
+        Set<String> columns = new LinkedHashSet<>(this.setFields);
+        columns.addAll(this.filterFields);
+        this.tempTable = db.createTempTable(this.getTableData().getName(), columns, this.filterFields);
+        SqlBuffer buffer = new SqlBuffer(db).append("INSERT INTO ").quote(this.tempTable)
+                .addFields(columns.toArray(new String[columns.size()])).append(" VALUES ")
+                .addMarkList(columns.size());
+        for (String field : columns)
+            this.addParm(field);
+        this.createStatement(buffer);
+    }
+
+    /**
+     * Apply the staged updates to the target table and empty the staging table.
+     *
+     * @throws SQLException
+     */
+    private void applyStaged() throws SQLException {
+        DbConnection db = this.getDb();
+        String table = this.getTableData().getName();
+        SqlBuffer buffer = new SqlBuffer(db);
+        db.buildJoinUpdate(buffer, table, this.tempTable, this.setFields, this.filterFields);
+        try (Statement stmt = db.getConnection().createStatement()) {
+            int count = stmt.executeUpdate(buffer.toString());
+            buffer.start("DELETE FROM ").quote(this.tempTable);
+            stmt.execute(buffer.toString());
+            log.debug("{} staged rows applied to {} rows in {}.", this.stagedRows, count, table);
+        }
+        db.tableChanged(table, false);
+        db.entitiesChanged(table, null);
+        this.stagedRows = 0;
+    }
+
+    @Override
+    protected void flush() throws SQLException {
+        super.flush();
+        if (this.bulk && this.stagedRows > 0)
+            this.applyStaged();
+    }
+
+    @Override
+    public void close() throws SQLException {
+        try {
+            super.close();
+        } finally {
+            if (this.tempTable != null) {
+                this.getDb().dropTempTable(this.tempTable);
+                this.tempTable = null;
+            }
+        }
     }
 
 
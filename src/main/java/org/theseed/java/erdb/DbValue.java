@@ -106,6 +106,30 @@ public abstract class DbValue {
      */
     public abstract String getString() throws SQLException;
 
+    /**
+     * Store an arbitrary object in this value holder.  A NULL object stores a null value.
+     *
+     * @param value		object to store
+     *
+     * @throws SQLException
+     */
+    public void setObject(Object value) throws SQLException {
+        if (value == null)
+            this.setNull();
+        else
+            this.setObjectValue(value);
+    }
+
+    /**
+     * Store a (non-null) arbitrary object in this value holder.  If the object is not of a compatible
+     * type, an error will be thrown.
+     *
+     * @param value		object to store
+     *
+     * @throws SQLException
+     */
+    protected abstract void setObjectValue(Object value) throws SQLException;
+
     /**
      * Store a null in this value holder.
      */
@@ -127,6 +151,33 @@ public abstract class DbValue {
         return this.nullFlag;
     }
 
+    /**
+     * Copy the null status of another value holder into this one.
+     *
+     * @param other		value holder whose null status should be copied
+     */
+    protected void copyNullFlag(DbValue other) {
+        this.nullFlag = other.nullFlag;
+    }
+
+    /**
+     * @return the approximate number of bytes this value occupies when transmitted to the database
+     */
+    public abstract int getSizeEstimate();
+
+    /**
+     * @return an independent copy of this value holder, containing the same value and null status
+     */
+    public abstract DbValue copy();
+
+    /**
+     * Pre-compute the form in which this value is transmitted to the database, so that storing it in a
+     * statement is cheap.  This allows expensive conversions to be done on a different thread from the one
+     * talking to the database.  The value must not be modified in place after this method is called,
+     * although storing a new value is allowed.  The default is to do nothing.
+     */
+    public void encode() { }
+
     /**
      * This can be called immediately after a fetch to indicate whether the value fetched was null.
      *
@@ -0,0 +1,336 @@
+/**
+ *
+ */
+package org.theseed.java.erdb;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This object serializes database writes from multiple threads.  Producers on any thread submit commands
+ * to a queue, and a single writer thread drains the queue and executes them.  The writer uses group commit:
+ * all the commands waiting in the queue (up to a specified group size) are executed inside a single physical
+ * transaction.  Each command runs under its own savepoint, so a failing command is rolled back without
+ * affecting the others in its group.
+ *
+ * Each submission returns a future.  The future completes normally after the group containing the command
+ * has been committed, and exceptionally if the command or the commit fails.
+ *
+ * While the queue is active, the parent database connection belongs to the writer thread.  Other threads
+ * should not use the connection directly until the queue is closed.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class DbWriteQueue implements AutoCloseable {
+
+    // FIELDS
+    /** logging facility */
+    private static final Logger log = LoggerFactory.getLogger(DbWriteQueue.class);
+    /** parent database connection */
+    private DbConnection db;
+    /** queue of pending requests */
+    private BlockingQueue<Request> queue;
+    /** maximum number of commands per physical transaction */
+    private int groupSize;
+    /** writer thread */
+    private Thread writer;
+    /** TRUE if the queue has been closed to new commands */
+    private volatile boolean closed;
+    /** map of table names to cached single-row loaders (used only by the writer thread) */
+    private Map<String, DbLoader> loaderMap;
+    /** number of commands committed */
+    private volatile long commandCount;
+    /** number of physical commits performed */
+    private volatile long commitCount;
+    /** sentinel request used to stop the writer thread */
+    private static final Request STOP = new Request(null);
+
+    /**
+     * This interface describes a logical write command.  The command is executed on the writer thread.
+     */
+    public interface ICommand {
+
+        /**
+         * Execute this command.
+         *
+         * @param db	database connection to update
+         *
+         * @throws SQLException
+         */
+        public void execute(DbConnection db) throws SQLException;
+
+    }
+
+    /**
+     * This object represents a command waiting in the queue along with its future.
+     */
+    private static class Request {
+
+        /** command to execute */
+        private ICommand command;
+        /** future to complete when the command is durable */
+        private CompletableFuture<Void> future;
+
+        /**
+         * Create a request for a command.
+         *
+         * @param command	command to execute
+         */
+        private Request(ICommand command) {
+            this.command = command;
+            this.future = new CompletableFuture<>();
+        }
+
+    }
+
+    /**
+     * Create a write queue and start its writer thread.
+     *
+     * @param db			database connection to update
+     * @param groupSize		maximum number of commands per physical transaction
+     */
+    protected DbWriteQueue(DbConnection db, int groupSize) {
+        if (groupSize < 1)
+            throw new IllegalArgumentException("Group size must be at least 1.");
+        this.db = db;
+        this.groupSize = groupSize;
+        this.queue = new LinkedBlockingQueue<>();
+        this.loaderMap = new HashMap<>();
+        this.closed = false;
+        this.commandCount = 0;
+        this.commitCount = 0;
+        this.writer = new Thread(this::runWriter, "DbWriter-" + db.getName());
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Submit a command to the queue.
+     *
+     * @param command	command to execute on the writer thread
+     *
+     * @return a future that completes when the command has been committed
+     */
+    public synchronized CompletableFuture<Void> submit(ICommand command) {
+        if (this.closed)
+            throw new IllegalStateException("Cannot submit to a closed write queue.");
+        Request request = new Request(command);
+        this.queue.add(request);
+        return request.future;
+    }
+
+    /**
+     * Submit an insert to the queue.
+     *
+     * @param table		name of the target table
+     * @param values	map of field names to values for the new record
+     *
+     * @return a future that completes when the insert has been committed
+     */
+    public CompletableFuture<Void> insert(String table, Map<String, Object> values) {
+        // Copy the map, since the caller may reuse it before the command executes.
+        final Map<String, Object> row = new HashMap<>(values);
+        return this.submit(x -> {
+            DbLoader loader = this.getLoader(table);
+            // The loader is shared by all inserts into the table, so fields not in this row must be nulled.
+            loader.clearValues();
+            for (Map.Entry<String, Object> valueEntry : row.entrySet())
+                loader.setValue(valueEntry.getKey(), valueEntry.getValue());
+            loader.insert();
+        });
+    }
+
+    /**
+     * Submit a primary-key update to the queue.  The primary key itself cannot be changed, so if the key field
+     * is in the change map, its value must be the same as the key.
+     *
+     * @param table		name of the target table
+     * @param key		primary key value of the record to update
+     * @param changes	map of field names to new values
+     *
+     * @return a future that completes when the update has been committed
+     */
+    public CompletableFuture<Void> update(String table, Object key, Map<String, Object> changes) {
+        final Map<String, Object> row = new HashMap<>(changes);
+        return this.submit(x -> {
+            try (DbUpdate updater = DbUpdate.single(x, table)) {
+                String keyName = updater.primaryKey().getTableData().getKeyName();
+                // The key field is used in the filter, so it cannot also be in the SET clause.
+                if (row.containsKey(keyName)) {
+                    Object newKey = row.remove(keyName);
+                    if (newKey == null || ! newKey.toString().equals(key.toString()))
+                        throw new SQLException("Cannot change the primary key of a record in " + table
+                                + " through the write queue.");
+                }
+                if (! row.isEmpty()) {
+                    updater.change(row.keySet().toArray(new String[row.size()])).createStatement();
+                    for (Map.Entry<String, Object> valueEntry : row.entrySet())
+                        updater.setValue(valueEntry.getKey(), valueEntry.getValue());
+                    updater.setValue(keyName, key);
+                    updater.update();
+                }
+            }
+        });
+    }
+
+    /**
+     * Submit a primary-key delete to the queue.
+     *
+     * @param table		name of the target table
+     * @param key		primary key value of the record to delete (a string or an integer)
+     *
+     * @return a future that completes when the delete has been committed
+     */
+    public CompletableFuture<Void> delete(String table, Object key) {
+        return this.submit(x -> x.deleteRecords(table, List.of(key)));
+    }
+
+    /**
+     * @return a single-row loader for the specified table
+     *
+     * @param table		name of the target table
+     *
+     * @throws SQLException
+     */
+    private DbLoader getLoader(String table) throws SQLException {
+        DbLoader retVal = this.loaderMap.get(table);
+        if (retVal == null) {
+            retVal = DbLoader.single(this.db, table);
+            this.loaderMap.put(table, retVal);
+        }
+        return retVal;
+    }
+
+    /**
+     * Main loop of the writer thread.  We wait for a request, then drain everything else waiting up
+     * to the group size, and process the whole group in one transaction.
+     */
+    private void runWriter() {
+        boolean done = false;
+        List<Request> group = new ArrayList<>(this.groupSize);
+        try {
+            while (! done) {
+                group.add(this.queue.take());
+                this.queue.drainTo(group, this.groupSize - 1);
+                // Check for the stop request.  Everything queued ahead of it is still processed.
+                int stopIdx = group.indexOf(STOP);
+                if (stopIdx >= 0) {
+                    done = true;
+                    group.subList(stopIdx, group.size()).clear();
+                }
+                if (! group.isEmpty())
+                    this.processGroup(group);
+                group.clear();
+            }
+        } catch (InterruptedException e) {
+            log.warn("Writer thread for {} interrupted.", this.db.getName());
+            Thread.currentThread().interrupt();
+        } finally {
+            // Fail anything left over.
+            group.addAll(this.queue);
+            SQLException abandoned = new SQLException("Write queue closed before command was executed.");
+            for (Request request : group) {
+                if (request != STOP)
+                    request.future.completeExceptionally(abandoned);
+            }
+            // Release the loaders.
+            for (DbLoader loader : this.loaderMap.values()) {
+                try {
+                    loader.close();
+                } catch (SQLException e) {
+                    log.error("Error closing loader: {}", e.getMessage());
+                }
+            }
+            this.loaderMap.clear();
+        }
+    }
+
+    /**
+     * Execute a group of commands in a single physical transaction.
+     *
+     * @param group		list of requests to process
+     */
+    private void processGroup(List<Request> group) {
+        Connection conn = this.db.getConnection();
+        List<Request> succeeded = new ArrayList<>(group.size());
+        boolean committed = false;
+        try {
+            try (DbConnection.Transaction xact = this.db.new Transaction()) {
+                for (Request request : group) {
+                    Savepoint savepoint = conn.setSavepoint();
+                    try {
+                        request.command.execute(this.db);
+                        conn.releaseSavepoint(savepoint);
+                        succeeded.add(request);
+                    } catch (Exception e) {
+                        conn.rollback(savepoint);
+                        request.future.completeExceptionally(e);
+                    }
+                }
+                xact.commit();
+            }
+            // The physical commit happens when the transaction closes, so only now do we know it worked.
+            committed = true;
+        } catch (SQLException e) {
+            // The commit failed, so none of the commands are durable.
+            log.error("Group commit failed in {}: {}", this.db.getName(), e.getMessage());
+            for (Request request : group) {
+                if (! request.future.isDone())
+                    request.future.completeExceptionally(e);
+            }
+            succeeded.clear();
+        }
+        // Everything left is durable.
+        if (committed)
+            this.commitCount++;
+        this.commandCount += succeeded.size();
+        for (Request request : succeeded)
+            request.future.complete(null);
+    }
+
+    /**
+     * @return the number of commands committed so far
+     */
+    public long getCommandCount() {
+        return this.commandCount;
+    }
+
+    /**
+     * @return the number of physical commits performed so far
+     */
+    public long getCommitCount() {
+        return this.commitCount;
+    }
+
+    /**
+     * Stop accepting commands, wait for the queued commands to be processed, and stop the writer thread.
+     */
+    @Override
+    public synchronized void close() {
+        if (! this.closed) {
+            this.closed = true;
+            this.queue.add(STOP);
+            try {
+                this.writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            this.db.writeQueueClosed(this);
+            log.info("Write queue for {} closed after {} commands in {} commits.", this.db.getName(),
+                    this.commandCount, this.commitCount);
+        }
+    }
+
+}
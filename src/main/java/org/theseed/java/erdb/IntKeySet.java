@@ -0,0 +1,189 @@
+/**
+ *
+ */
+package org.theseed.java.erdb;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * This is a compact hash set of integer keys.  The keys are stored unboxed in a single open-addressing
+ * table with linear probing, so the set uses a few bytes per key instead of the dozens needed by a
+ * hash set of boxed integers.  The set only grows; keys cannot be removed.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class IntKeySet {
+
+    // FIELDS
+    /** hash table of keys */
+    private int[] table;
+    /** number of distinct keys in the set */
+    private int size;
+    /** TRUE if the set contains the value used to mark empty slots */
+    private boolean hasEmptyValue;
+    /** value used to mark empty slots in the table */
+    private static final int EMPTY = Integer.MIN_VALUE;
+    /** default initial capacity */
+    private static final int DEFAULT_CAPACITY = 16;
+
+    /**
+     * Create an empty key set.
+     */
+    public IntKeySet() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create an empty key set with room for the specified number of keys.
+     *
+     * @param expected		expected number of keys
+     */
+    public IntKeySet(int expected) {
+        // We keep the load factor at or below one half.
+        int capacity = Integer.highestOneBit(Math.max(expected, DEFAULT_CAPACITY / 2) * 2 - 1) << 1;
+        this.table = new int[capacity];
+        Arrays.fill(this.table, EMPTY);
+        this.size = 0;
+        this.hasEmptyValue = false;
+    }
+
+    /**
+     * @return the slot index at which to start searching for a key
+     *
+     * @param key		key of interest
+     * @param mask		mask for the current table size
+     */
+    private static int hash(int key, int mask) {
+        // This mixing step spreads sequential keys over the table.
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * Add a key to the set.
+     *
+     * @param key		key to add
+     *
+     * @return TRUE if the key was added, FALSE if it was already present
+     */
+    public boolean add(int key) {
+        boolean retVal;
+        if (key == EMPTY) {
+            retVal = ! this.hasEmptyValue;
+            this.hasEmptyValue = true;
+            if (retVal)
+                this.size++;
+        } else {
+            if ((this.size + 1) * 2 > this.table.length)
+                this.rehash(this.table.length * 2);
+            retVal = insert(this.table, key);
+            if (retVal)
+                this.size++;
+        }
+        return retVal;
+    }
+
+    /**
+     * Store a key in a hash table.
+     *
+     * @param table		target hash table
+     * @param key		key to store (cannot be the empty marker)
+     *
+     * @return TRUE if the key was stored, FALSE if it was already present
+     */
+    private static boolean insert(int[] table, int key) {
+        final int mask = table.length - 1;
+        int i = hash(key, mask);
+        boolean retVal = true;
+        while (table[i] != EMPTY && retVal) {
+            if (table[i] == key)
+                retVal = false;
+            else
+                i = (i + 1) & mask;
+        }
+        if (retVal)
+            table[i] = key;
+        return retVal;
+    }
+
+    /**
+     * Move the keys to a new hash table of the specified capacity.
+     *
+     * @param capacity	new table capacity (a power of 2)
+     */
+    private void rehash(int capacity) {
+        int[] newTable = new int[capacity];
+        Arrays.fill(newTable, EMPTY);
+        for (int key : this.table) {
+            if (key != EMPTY)
+                insert(newTable, key);
+        }
+        this.table = newTable;
+    }
+
+    /**
+     * @return TRUE if the specified key is in the set
+     *
+     * @param key		key to check
+     */
+    public boolean contains(int key) {
+        boolean retVal;
+        if (key == EMPTY)
+            retVal = this.hasEmptyValue;
+        else {
+            final int mask = this.table.length - 1;
+            int i = hash(key, mask);
+            while (this.table[i] != EMPTY && this.table[i] != key)
+                i = (i + 1) & mask;
+            retVal = (this.table[i] == key);
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the number of keys in the set
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @return TRUE if the set is empty
+     */
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * Perform an action on each key in the set.  The keys are presented in no particular order.
+     *
+     * @param action	action to perform
+     */
+    public void forEach(IntConsumer action) {
+        if (this.hasEmptyValue)
+            action.accept(EMPTY);
+        for (int key : this.table) {
+            if (key != EMPTY)
+                action.accept(key);
+        }
+    }
+
+    /**
+     * @return an array of the keys in the set, in ascending order
+     */
+    public int[] toArray() {
+        int[] retVal = new int[this.size];
+        int i = 0;
+        if (this.hasEmptyValue)
+            retVal[i++] = EMPTY;
+        for (int key : this.table) {
+            if (key != EMPTY)
+                retVal[i++] = key;
+        }
+        Arrays.sort(retVal);
+        return retVal;
+    }
+
+}
@@ -0,0 +1,199 @@
+/**
+ *
+ */
+package org.theseed.java.erdb;
+
+/**
+ * This is a Bloom filter for the primary keys of a database table.  It answers the question "might this key be
+ * in the table?"  A negative answer is always correct, but a positive answer is wrong with a probability close to
+ * the false-positive rate specified when the filter is built.
+ *
+ * Keys cannot be removed from a Bloom filter, so deleted keys remain as extra false positives.  The filter
+ * tracks the number of deletions and additions so the owning connection can decide when to rebuild it.  A
+ * filter can also be marked stale, which forces a rebuild before its next use.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class KeyFilter {
+
+    // FIELDS
+    /** bit array */
+    private long[] bits;
+    /** number of bits in the array */
+    private long bitCount;
+    /** number of hash functions */
+    private int hashCount;
+    /** number of keys the filter was sized for */
+    private long capacity;
+    /** target false-positive rate */
+    private double fpp;
+    /** number of keys added */
+    private long keyCount;
+    /** number of keys deleted since the filter was built */
+    private long deleteCount;
+    /** TRUE if the filter no longer reflects the table and must be rebuilt */
+    private boolean stale;
+    /** number of membership queries */
+    private long queries;
+    /** number of queries answered with a definite negative */
+    private long negatives;
+
+    /**
+     * Create an empty key filter.
+     *
+     * @param capacity		number of keys for which to size the filter
+     * @param fpp			desired false-positive rate at capacity
+     */
+    public KeyFilter(long capacity, double fpp) {
+        if (fpp <= 0.0 || fpp >= 1.0)
+            throw new IllegalArgumentException("False-positive rate must be between 0 and 1.");
+        this.capacity = Math.max(capacity, 1);
+        this.fpp = fpp;
+        double ln2 = Math.log(2.0);
+        long m = (long) Math.ceil(-this.capacity * Math.log(fpp) / (ln2 * ln2));
+        // Round up to a whole number of words.
+        int words = (int) Math.min((m + 63) / 64, Integer.MAX_VALUE - 8);
+        this.bits = new long[Math.max(words, 1)];
+        this.bitCount = this.bits.length * 64L;
+        this.hashCount = Math.max(1, (int) Math.round((double) this.bitCount / this.capacity * ln2));
+        this.keyCount = 0;
+        this.deleteCount = 0;
+        this.stale = false;
+        this.queries = 0;
+        this.negatives = 0;
+    }
+
+    /**
+     * @return a 64-bit hash of a key string
+     *
+     * @param key	key to hash
+     */
+    private static long hash(String key) {
+        // FNV-1a over the characters, followed by a finalization mix to spread the bits.
+        long h = 0xcbf29ce484222325L;
+        final int n = key.length();
+        for (int i = 0; i < n; i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Add a key to the filter.
+     *
+     * @param key	key to add
+     */
+    public void add(String key) {
+        long h = hash(key);
+        long h1 = h;
+        long h2 = (h >>> 32) | 1L;
+        for (int i = 0; i < this.hashCount; i++) {
+            long bit = Math.floorMod(h1 + i * h2, this.bitCount);
+            this.bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+        this.keyCount++;
+    }
+
+    /**
+     * @return FALSE if the key is definitely not in the filter, TRUE if it might be
+     *
+     * @param key	key to check
+     */
+    public boolean mightContain(String key) {
+        long h = hash(key);
+        long h1 = h;
+        long h2 = (h >>> 32) | 1L;
+        boolean retVal = true;
+        for (int i = 0; retVal && i < this.hashCount; i++) {
+            long bit = Math.floorMod(h1 + i * h2, this.bitCount);
+            retVal = (this.bits[(int) (bit >>> 6)] & (1L << bit)) != 0;
+        }
+        this.queries++;
+        if (! retVal)
+            this.negatives++;
+        return retVal;
+    }
+
+    /**
+     * Record that a key has been deleted from the table.
+     */
+    public void recordDelete() {
+        this.deleteCount++;
+    }
+
+    /**
+     * Record that a number of keys have been deleted from the table.
+     *
+     * @param count		number of keys deleted
+     */
+    public void recordDeletes(long count) {
+        this.deleteCount += count;
+    }
+
+    /**
+     * Denote that this filter no longer reflects the table.
+     */
+    public void setStale() {
+        this.stale = true;
+    }
+
+    /**
+     * @return TRUE if this filter should be rebuilt
+     *
+     * @param deleteFraction	maximum fraction of the keys that can be deleted before a rebuild is needed
+     */
+    public boolean needsRebuild(double deleteFraction) {
+        return this.stale || this.keyCount > this.capacity
+                || this.deleteCount > deleteFraction * Math.max(this.keyCount, 1);
+    }
+
+    /**
+     * @return the target false-positive rate
+     */
+    public double getFpp() {
+        return this.fpp;
+    }
+
+    /**
+     * @return the number of keys added
+     */
+    public long getKeyCount() {
+        return this.keyCount;
+    }
+
+    /**
+     * @return the number of keys the filter was sized for
+     */
+    public long getCapacity() {
+        return this.capacity;
+    }
+
+    /**
+     * @return the number of membership queries
+     */
+    public long getQueries() {
+        return this.queries;
+    }
+
+    /**
+     * @return the number of membership queries answered with a definite negative
+     */
+    public long getNegatives() {
+        return this.negatives;
+    }
+
+    /**
+     * @return the approximate memory used by the filter's bit array, in bytes
+     */
+    public long getByteSize() {
+        return this.bits.length * 8L;
+    }
+
+}
@@ -0,0 +1,331 @@
+/**
+ *
+ */
+package org.theseed.java.erdb;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * This object reads an SQL script one statement at a time.  The script is parsed incrementally, so only the
+ * current statement is held in memory.
+ *
+ * A statement ends at a semicolon that is not inside a quoted string, a quoted identifier, or a comment.
+ * Single quotes, double quotes, and backticks are recognized as quoting constructs, and a doubled quote
+ * character inside a quoted string is treated as an escaped quote.  Both line comments ("--") and block
+ * comments are removed from the returned statements, but line breaks are preserved so that error messages
+ * from the database remain readable.  Statements that are empty or contain only comments are skipped.
+ *
+ * Some rules depend on the database engine.  Square brackets can be recognized as identifier quotes (as in
+ * SQLite), a backslash inside a string literal can be treated as an escape character (as in MySQL), and a
+ * line comment can be required to have whitespace after the two dashes (also as in MySQL).  By default,
+ * square brackets are identifier quotes and the other two rules are off.
+ *
+ * A final statement with no terminating semicolon is returned if it is not empty.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class SqlScriptReader implements Iterator<String>, AutoCloseable {
+
+    // FIELDS
+    /** input character stream */
+    private Reader reader;
+    /** TRUE if backslash is an escape character inside string literals */
+    private boolean backslashEscapes;
+    /** TRUE if square brackets quote identifiers */
+    private boolean bracketQuotes;
+    /** TRUE if a line comment must have whitespace after the two dashes */
+    private boolean dashCommentSpace;
+    /** next statement to return, or NULL if we are at end-of-file */
+    private String nextStatement;
+    /** one character of pushback (-2 if none) */
+    private int pushback;
+    /** number of statements returned so far */
+    private long count;
+    /** current line number in the input */
+    private int lineNumber;
+    /** line number on which the next statement begins */
+    private int nextLine;
+    /** line number on which the last statement returned begins */
+    private int statementLine;
+    /** buffer for the statement being parsed */
+    private StringBuilder buffer;
+    /** marker for an empty pushback */
+    private static final int NO_CHAR = -2;
+
+    /**
+     * Open an SQL script file for reading.
+     *
+     * @param inFile			script file to read
+     * @param backslashEscapes	TRUE if backslash is an escape character inside string literals
+     *
+     * @throws IOException
+     */
+    public SqlScriptReader(File inFile, boolean backslashEscapes) throws IOException {
+        this(inFile, backslashEscapes, true, false);
+    }
+
+    /**
+     * Open an SQL script file for reading with the specified engine rules.
+     *
+     * @param inFile			script file to read
+     * @param backslashEscapes	TRUE if backslash is an escape character inside string literals
+     * @param bracketQuotes		TRUE if square brackets quote identifiers
+     * @param dashCommentSpace	TRUE if a line comment must have whitespace after the two dashes
+     *
+     * @throws IOException
+     */
+    public SqlScriptReader(File inFile, boolean backslashEscapes, boolean bracketQuotes, boolean dashCommentSpace)
+            throws IOException {
+        this(Files.newBufferedReader(inFile.toPath(), StandardCharsets.UTF_8), backslashEscapes, bracketQuotes,
+                dashCommentSpace);
+    }
+
+    /**
+     * Read an SQL script from a character stream.
+     *
+     * @param reader			input character stream
+     * @param backslashEscapes	TRUE if backslash is an escape character inside string literals
+     *
+     * @throws IOException
+     */
+    public SqlScriptReader(Reader reader, boolean backslashEscapes) throws IOException {
+        this(reader, backslashEscapes, true, false);
+    }
+
+    /**
+     * Read an SQL script from a character stream with the specified engine rules.
+     *
+     * @param reader			input character stream
+     * @param backslashEscapes	TRUE if backslash is an escape character inside string literals
+     * @param bracketQuotes		TRUE if square brackets quote identifiers
+     * @param dashCommentSpace	TRUE if a line comment must have whitespace after the two dashes
+     *
+     * @throws IOException
+     */
+    public SqlScriptReader(Reader reader, boolean backslashEscapes, boolean bracketQuotes, boolean dashCommentSpace)
+            throws IOException {
+        this.reader = (reader instanceof BufferedReader ? reader : new BufferedReader(reader));
+        this.backslashEscapes = backslashEscapes;
+        this.bracketQuotes = bracketQuotes;
+        this.dashCommentSpace = dashCommentSpace;
+        this.pushback = NO_CHAR;
+        this.count = 0;
+        this.lineNumber = 1;
+        this.statementLine = 0;
+        this.buffer = new StringBuilder(200);
+        this.nextStatement = this.readStatement();
+    }
+
+    @Override
+    public boolean hasNext() {
+        return this.nextStatement != null;
+    }
+
+    @Override
+    public String next() {
+        if (this.nextStatement == null)
+            throw new NoSuchElementException("Attempt to read past end of SQL script.");
+        String retVal = this.nextStatement;
+        this.statementLine = this.nextLine;
+        this.count++;
+        try {
+            this.nextStatement = this.readStatement();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the number of statements returned so far
+     */
+    public long getCount() {
+        return this.count;
+    }
+
+    /**
+     * @return the line number on which the last statement returned begins
+     */
+    public int getStatementLine() {
+        return this.statementLine;
+    }
+
+    /**
+     * @return the next input character, or -1 at end-of-file
+     *
+     * @throws IOException
+     */
+    private int read() throws IOException {
+        int retVal;
+        if (this.pushback != NO_CHAR) {
+            retVal = this.pushback;
+            this.pushback = NO_CHAR;
+        } else {
+            retVal = this.reader.read();
+            if (retVal == '\n')
+                this.lineNumber++;
+        }
+        return retVal;
+    }
+
+    /**
+     * Read the next non-empty statement from the input.
+     *
+     * @return the next statement (without its terminating semicolon), or NULL at end-of-file
+     *
+     * @throws IOException
+     */
+    private String readStatement() throws IOException {
+        String retVal = null;
+        boolean eof = false;
+        while (retVal == null && ! eof) {
+            this.buffer.setLength(0);
+            // This will be set to TRUE if the statement has any non-comment, non-space content.
+            boolean content = false;
+            boolean done = false;
+            while (! done) {
+                int c = this.read();
+                switch (c) {
+                case -1 :
+                    eof = true;
+                    done = true;
+                    break;
+                case ';' :
+                    done = true;
+                    break;
+                case '\'' :
+                case '"' :
+                case '`' :
+                    this.markStart(content);
+                    content = true;
+                    this.readQuoted(c, c);
+                    break;
+                case '[' :
+                    this.markStart(content);
+                    content = true;
+                    if (this.bracketQuotes)
+                        this.readQuoted(c, ']');
+                    else
+                        this.buffer.append('[');
+                    break;
+                case '-' :
+                    int c2 = this.read();
+                    int c3 = (c2 == '-' ? this.read() : NO_CHAR);
+                    if (c2 == '-' && this.dashCommentSpace && c3 != -1 && ! Character.isWhitespace(c3)) {
+                        // Here the two dashes are not a comment.
+                        this.markStart(content);
+                        content = true;
+                        this.buffer.append("--");
+                        this.pushback = c3;
+                    } else if (c2 == '-') {
+                        // Line comment.  Skip to end of line and keep the line break.
+                        while (c3 != '\n' && c3 != -1)
+                            c3 = this.read();
+                        if (c3 == '\n')
+                            this.buffer.append('\n');
+                        else
+                            this.pushback = c3;
+                    } else {
+                        this.markStart(content);
+                        content = true;
+                        this.buffer.append('-');
+                        this.pushback = c2;
+                    }
+                    break;
+                case '/' :
+                    int c4 = this.read();
+                    if (c4 == '*') {
+                        // Block comment.  Skip to the closing delimiter, keeping line breaks.
+                        int prev = 0;
+                        int c5 = this.read();
+                        while (c5 != -1 && ! (prev == '*' && c5 == '/')) {
+                            if (c5 == '\n')
+                                this.buffer.append('\n');
+                            prev = c5;
+                            c5 = this.read();
+                        }
+                        // A block comment separates tokens.
+                        this.buffer.append(' ');
+                    } else {
+                        this.markStart(content);
+                        content = true;
+                        this.buffer.append('/');
+                        this.pushback = c4;
+                    }
+                    break;
+                default :
+                    if (! Character.isWhitespace(c)) {
+                        this.markStart(content);
+                        content = true;
+                    }
+                    this.buffer.append((char) c);
+                }
+            }
+            if (content)
+                retVal = this.buffer.toString().strip();
+        }
+        return retVal;
+    }
+
+    /**
+     * Record the starting line of a statement if this is its first content character.
+     *
+     * @param content	TRUE if the statement already has content
+     */
+    private void markStart(boolean content) {
+        if (! content)
+            this.nextLine = this.lineNumber;
+    }
+
+    /**
+     * Copy a quoted string or identifier to the statement buffer.  The opening quote has already been
+     * read.
+     *
+     * @param open		opening quote character
+     * @param close		closing quote character
+     *
+     * @throws IOException
+     */
+    private void readQuoted(int open, int close) throws IOException {
+        this.buffer.append((char) open);
+        boolean done = false;
+        while (! done) {
+            int c = this.read();
+            if (c == -1)
+                done = true;
+            else {
+                this.buffer.append((char) c);
+                if (c == '\\' && this.backslashEscapes && (open == '\'' || open == '"')) {
+                    // Copy the escaped character without interpreting it.
+                    int c2 = this.read();
+                    if (c2 != -1)
+                        this.buffer.append((char) c2);
+                } else if (c == close) {
+                    // Check for a doubled quote, which is an escaped quote character.
+                    int c2 = this.read();
+                    if (c2 == close && close != ']')
+                        this.buffer.append((char) c2);
+                    else {
+                        this.pushback = c2;
+                        done = true;
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.reader.close();
+    }
+
+}
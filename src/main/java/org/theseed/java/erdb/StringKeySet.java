@@ -0,0 +1,253 @@
+/**
+ *
+ */
+package org.theseed.java.erdb;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+
+/**
+ * This is a compact, sorted set of string keys.  All the characters of all the keys are stored in a single
+ * pooled character array, and the keys are located by an array of offsets into the pool.  This avoids the
+ * per-string and per-entry object overhead of a hash set of strings.
+ *
+ * Keys are added in any order.  The first time the set is queried, the keys are sorted, duplicates are
+ * removed, and the pool is compacted.  Membership tests are then done by binary search.  Adding more keys
+ * after a query is allowed, but forces another sort on the next query.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class StringKeySet implements Iterable<String> {
+
+    // FIELDS
+    /** pooled characters of all the keys */
+    private char[] pool;
+    /** number of characters used in the pool */
+    private int poolLen;
+    /** start offset of each key in the pool; the key ends where the next one starts */
+    private int[] starts;
+    /** number of keys (including duplicates, if the set is unsorted) */
+    private int count;
+    /** TRUE if the keys are sorted and distinct */
+    private boolean sorted;
+    /** default initial key capacity */
+    private static final int DEFAULT_CAPACITY = 16;
+
+    /**
+     * Create an empty key set.
+     */
+    public StringKeySet() {
+        this(DEFAULT_CAPACITY, DEFAULT_CAPACITY * 8);
+    }
+
+    /**
+     * Create an empty key set with the specified initial capacities.
+     *
+     * @param keys		expected number of keys
+     * @param chars		expected total number of characters
+     */
+    public StringKeySet(int keys, int chars) {
+        this.pool = new char[Math.max(chars, 1)];
+        this.poolLen = 0;
+        this.starts = new int[Math.max(keys, 1) + 1];
+        this.count = 0;
+        this.sorted = true;
+    }
+
+    /**
+     * Add a key to the set.
+     *
+     * @param key		key to add
+     */
+    public void add(String key) {
+        final int len = key.length();
+        if (this.poolLen + len > this.pool.length)
+            this.pool = Arrays.copyOf(this.pool, Math.max(this.pool.length * 2, this.poolLen + len));
+        if (this.count + 2 > this.starts.length)
+            this.starts = Arrays.copyOf(this.starts, this.starts.length * 2);
+        key.getChars(0, len, this.pool, this.poolLen);
+        this.starts[this.count] = this.poolLen;
+        this.poolLen += len;
+        this.count++;
+        this.starts[this.count] = this.poolLen;
+        this.sorted = false;
+    }
+
+    /**
+     * Compare two pooled keys.
+     *
+     * @param s1		pool offset of the start of the first key
+     * @param e1		pool offset past the end of the first key
+     * @param s2		pool offset of the start of the second key
+     * @param e2		pool offset past the end of the second key
+     *
+     * @return a negative number, zero, or a positive number depending on whether the first key is less than,
+     * 		   equal to, or greater than the second
+     */
+    private int compare(int s1, int e1, int s2, int e2) {
+        return Arrays.compare(this.pool, s1, e1, this.pool, s2, e2);
+    }
+
+    /**
+     * Sort the keys, remove duplicates, and compact the pool.
+     */
+    private void sort() {
+        if (! this.sorted) {
+            final int n = this.count;
+            // Compute the key positions as an index array and sort it.
+            int[] idx = new int[n];
+            for (int i = 0; i < n; i++)
+                idx[i] = i;
+            this.mergeSort(idx, new int[n], 0, n);
+            // Build the compacted pool.
+            char[] newPool = new char[this.poolLen];
+            int[] newStarts = new int[n + 1];
+            int newLen = 0;
+            int newCount = 0;
+            for (int i = 0; i < n; i++) {
+                int k = idx[i];
+                int s = this.starts[k];
+                int e = this.starts[k + 1];
+                boolean dup = (newCount > 0 && Arrays.compare(newPool, newStarts[newCount - 1], newLen,
+                        this.pool, s, e) == 0);
+                if (! dup) {
+                    newStarts[newCount] = newLen;
+                    System.arraycopy(this.pool, s, newPool, newLen, e - s);
+                    newLen += e - s;
+                    newCount++;
+                }
+            }
+            newStarts[newCount] = newLen;
+            this.pool = (newLen == newPool.length ? newPool : Arrays.copyOf(newPool, Math.max(newLen, 1)));
+            this.poolLen = newLen;
+            this.starts = (newCount == n ? newStarts : Arrays.copyOf(newStarts, newCount + 1));
+            this.count = newCount;
+            this.sorted = true;
+        }
+    }
+
+    /**
+     * Sort a section of the key index array.
+     *
+     * @param idx		key index array
+     * @param work		work array of the same size
+     * @param lo		first position to sort
+     * @param hi		position past the last to sort
+     */
+    private void mergeSort(int[] idx, int[] work, int lo, int hi) {
+        if (hi - lo > 1) {
+            int mid = (lo + hi) >>> 1;
+            this.mergeSort(idx, work, lo, mid);
+            this.mergeSort(idx, work, mid, hi);
+            System.arraycopy(idx, lo, work, lo, hi - lo);
+            int i = lo;
+            int j = mid;
+            for (int k = lo; k < hi; k++) {
+                if (j >= hi || i < mid && this.compare(this.starts[work[i]], this.starts[work[i] + 1],
+                        this.starts[work[j]], this.starts[work[j] + 1]) <= 0)
+                    idx[k] = work[i++];
+                else
+                    idx[k] = work[j++];
+            }
+        }
+    }
+
+    /**
+     * @return TRUE if the specified key is in the set
+     *
+     * @param key		key to check
+     */
+    public boolean contains(String key) {
+        this.sort();
+        char[] target = key.toCharArray();
+        int lo = 0;
+        int hi = this.count - 1;
+        boolean retVal = false;
+        while (lo <= hi && ! retVal) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = Arrays.compare(this.pool, this.starts[mid], this.starts[mid + 1], target, 0, target.length);
+            if (cmp < 0)
+                lo = mid + 1;
+            else if (cmp > 0)
+                hi = mid - 1;
+            else
+                retVal = true;
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the number of distinct keys in the set
+     */
+    public int size() {
+        this.sort();
+        return this.count;
+    }
+
+    /**
+     * @return TRUE if the set is empty
+     */
+    public boolean isEmpty() {
+        return this.count == 0;
+    }
+
+    /**
+     * @return the key at the specified position in sort order
+     *
+     * @param i		index (0-based) of the desired key
+     */
+    public String get(int i) {
+        this.sort();
+        if (i < 0 || i >= this.count)
+            throw new IndexOutOfBoundsException("Key index " + i + " is out of range for a set of size " + this.count + ".");
+        return new String(this.pool, this.starts[i], this.starts[i + 1] - this.starts[i]);
+    }
+
+    /**
+     * This iterator returns the keys in sorted order.
+     */
+    private class Iter implements Iterator<String> {
+
+        /** position of the next key to return */
+        private int pos;
+
+        /**
+         * Create an iterator positioned at the first key.
+         */
+        private Iter() {
+            StringKeySet.this.sort();
+            this.pos = 0;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.pos < StringKeySet.this.count;
+        }
+
+        @Override
+        public String next() {
+            if (this.pos >= StringKeySet.this.count)
+                throw new NoSuchElementException("Attempt to iterate past end of key set.");
+            String retVal = StringKeySet.this.get(this.pos);
+            this.pos++;
+            return retVal;
+        }
+
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return this.new Iter();
+    }
+
+    @Override
+    public void forEach(Consumer<? super String> action) {
+        this.sort();
+        for (int i = 0; i < this.count; i++)
+            action.accept(this.get(i));
+    }
+
+}
@@ -3,7 +3,10 @@
  */
 package org.theseed.java.erdb.mysql;
 
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
 import java.util.Properties;
 
 import org.apache.commons.lang3.StringUtils;
@@ -118,6 +121,85 @@ public class MysqlDbConnection extends DbConnection {
 
     }
 
+    @Override
+    protected boolean setForeignKeyChecks(Statement stmt, boolean enabled) throws SQLException {
+        boolean retVal;
+        try (ResultSet results = stmt.executeQuery("SELECT @@SESSION.FOREIGN_KEY_CHECKS")) {
+            retVal = (results.next() && results.getInt(1) != 0);
+        }
+        stmt.execute("SET FOREIGN_KEY_CHECKS = " + (enabled ? "1" : "0"));
+        return retVal;
+    }
+
+    @Override
+    protected void buildTempTable(Statement stmt, String name, String source, Collection<String> fields,
+            Collection<String> indexFields) throws SQLException {
+        // The index is declared inline, since a separate CREATE INDEX would force an implicit commit.
+        SqlBuffer buffer = new SqlBuffer(this).append("CREATE TEMPORARY TABLE ").quote(name);
+        if (! indexFields.isEmpty())
+            buffer.append(" (INDEX ").addFields(indexFields.toArray(new String[indexFields.size()])).append(")");
+        buffer.append(" AS SELECT ").startList();
+        for (String field : fields)
+            buffer.appendDelim().quote(field);
+        buffer.append(" FROM ").quote(source).append(" WHERE 1 = 0");
+        stmt.execute(buffer.toString());
+    }
+
+    @Override
+    protected String dropTempCommand() {
+        return "DROP TEMPORARY TABLE ";
+    }
+
+    @Override
+    protected void buildJoinUpdate(SqlBuffer buffer, String table, String source, Collection<String> setFields,
+            Collection<String> keyFields) {
+        buffer.append("UPDATE ").quote(table).append(" INNER JOIN ").quote(source).append(" ON ").startList(" AND ");
+        for (String field : keyFields)
+            buffer.appendDelim().quote(table, field).append(" = ").quote(source, field);
+        buffer.append(" SET ").startList();
+        for (String field : setFields)
+            buffer.appendDelim().quote(table, field).append(" = ").quote(source, field);
+    }
+
+    @Override
+    protected int maxParameters() {
+        // the protocol limits a prepared statement to 65535 parameters
+        return 65535;
+    }
+
+    @Override
+    protected int streamingFetchSize() {
+        // Connector/J ignores a positive fetch size unless cursor fetch is on, and buffers the whole result.
+        // This special value makes it stream rows one at a time instead.  While the stream is open, no other
+        // statement can be executed on the connection.
+        return Integer.MIN_VALUE;
+    }
+
+    @Override
+    protected String insertIgnoreCommand() {
+        return "INSERT IGNORE INTO ";
+    }
+
+    @Override
+    protected String truncateCommand() {
+        return "TRUNCATE TABLE ";
+    }
+
+    @Override
+    protected boolean backslashEscapes() {
+        return true;
+    }
+
+    @Override
+    protected boolean bracketQuotes() {
+        return false;
+    }
+
+    @Override
+    protected boolean dashCommentSpace() {
+        return true;
+    }
+
     @Override
     protected String getCatalog() {
         return null;
@@ -4,7 +4,10 @@
 package org.theseed.java.erdb.sqlite;
 
 import java.io.File;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
 import java.util.Properties;
 
 import org.sqlite.SQLiteConfig;
@@ -75,6 +78,69 @@ public class SqliteDbConnection extends DbConnection {
         return config.toProperties();
     }
 
+    @Override
+    protected boolean setForeignKeyChecks(Statement stmt, boolean enabled) throws SQLException {
+        // This pragma is a no-op inside a transaction, so we cannot allow one to be active.
+        if (! this.getConnection().getAutoCommit())
+            throw new SQLException("Cannot change foreign-key checking inside a transaction in an SQLite database.");
+        boolean retVal;
+        try (ResultSet results = stmt.executeQuery("PRAGMA foreign_keys")) {
+            retVal = (results.next() && results.getInt(1) != 0);
+        }
+        stmt.execute("PRAGMA foreign_keys = " + (enabled ? "ON" : "OFF"));
+        return retVal;
+    }
+
+    @Override
+    protected void buildTempTable(Statement stmt, String name, String source, Collection<String> fields,
+            Collection<String> indexFields) throws SQLException {
+        SqlBuffer buffer = new SqlBuffer(this).append("CREATE TEMP TABLE ").quote(name).append(" AS SELECT ")
+                .startList();
+        for (String field : fields)
+            buffer.appendDelim().quote(field);
+        buffer.append(" FROM ").quote(source).append(" WHERE 1 = 0");
+        stmt.execute(buffer.toString());
+        if (! indexFields.isEmpty()) {
+            buffer.start("CREATE INDEX ").quote("idx" + name).append(" ON ").quote(name)
+                    .addFields(indexFields.toArray(new String[indexFields.size()]));
+            stmt.execute(buffer.toString());
+        }
+    }
+
+    @Override
+    protected String dropTempCommand() {
+        // Temporary tables hide permanent tables with the same name, so no special syntax is needed.
+        return "DROP TABLE ";
+    }
+
+    @Override
+    protected void buildJoinUpdate(SqlBuffer buffer, String table, String source, Collection<String> setFields,
+            Collection<String> keyFields) {
+        buffer.append("UPDATE ").quote(table).append(" SET ").startList();
+        for (String field : setFields)
+            buffer.appendDelim().quote(field).append(" = ").quote(source, field);
+        buffer.append(" FROM ").quote(source).append(" WHERE ").startList(" AND ");
+        for (String field : keyFields)
+            buffer.appendDelim().quote(table, field).append(" = ").quote(source, field);
+    }
+
+    @Override
+    protected int maxParameters() {
+        // this is the compile-time default for older SQLite libraries
+        return 999;
+    }
+
+    @Override
+    protected String insertIgnoreCommand() {
+        return "INSERT OR IGNORE INTO ";
+    }
+
+    @Override
+    protected String truncateCommand() {
+        // SQLite optimizes an unqualified delete into a truncate.
+        return "DELETE FROM ";
+    }
+
     @Override
     public String getName() {
         return this.dbFile.getAbsolutePath();
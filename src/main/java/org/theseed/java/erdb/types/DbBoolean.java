@@ -83,6 +83,29 @@ public class DbBoolean extends DbValue {
      */
     public void set(boolean b) {
         this.value = b;
+        this.setNotNull();
+    }
+
+    @Override
+    protected void setObjectValue(Object value) throws SQLException {
+        if (value instanceof Boolean)
+            this.set((Boolean) value);
+        else if (value instanceof Number)
+            this.set(((Number) value).intValue() != 0);
+        else
+            throw new SQLException("Cannot store a " + value.getClass().getSimpleName() + " in a BOOLEAN value.");
+    }
+
+    @Override
+    public int getSizeEstimate() {
+        return 1;
+    }
+
+    @Override
+    public DbValue copy() {
+        DbBoolean retVal = new DbBoolean(this.value);
+        retVal.copyNullFlag(this);
+        return retVal;
     }
 
 }
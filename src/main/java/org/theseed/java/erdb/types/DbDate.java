@@ -24,6 +24,8 @@ public class DbDate extends DbValue {
     // FIELDS
     /** value of this object */
     private Instant value;
+    /** pre-computed julian fraction for the value, or NULL if it has not been encoded */
+    private Double encoded;
     /** default date */
     private static final Instant DEFAULT = Instant.EPOCH;
     /** conversion factor */
@@ -52,8 +54,8 @@ public class DbDate extends DbValue {
 
     @Override
     protected void storeValue(PreparedStatement stmt, int idx) throws SQLException {
-        // Convert the date to a julian fraction.
-        double julian = this.value.getEpochSecond() / (double) SECONDS_PER_DAY;
+        // Convert the date to a julian fraction, unless it has already been done.
+        double julian = (this.encoded != null ? this.encoded : this.getDouble());
         stmt.setDouble(idx, julian);
     }
 
@@ -63,6 +65,7 @@ public class DbDate extends DbValue {
         double julian = results.getDouble(idx);
         long seconds = (long) (julian * SECONDS_PER_DAY);
         this.value = Instant.ofEpochSecond(seconds);
+        this.encoded = null;
     }
 
     @Override
@@ -92,6 +95,7 @@ public class DbDate extends DbValue {
      */
     public void set(Instant date) {
         this.value = date;
+        this.encoded = null;
         this.setNotNull();
     }
 
@@ -104,6 +108,7 @@ public class DbDate extends DbValue {
         Instant instant = instantOf(date);
         // Store it in this object.
         this.value = instant;
+        this.encoded = null;
         this.setNotNull();
     }
 
@@ -128,4 +133,34 @@ public class DbDate extends DbValue {
     public static Instant instantOf(int year, int month, int day) {
         return instantOf(LocalDate.of(year, month, day));
     }
+
+    @Override
+    protected void setObjectValue(Object value) throws SQLException {
+        if (value instanceof Instant)
+            this.set((Instant) value);
+        else if (value instanceof LocalDate)
+            this.set((LocalDate) value);
+        else
+            throw new SQLException("Cannot store a " + value.getClass().getSimpleName() + " in a DATE value.");
+    }
+
+    @Override
+    public int getSizeEstimate() {
+        return Double.BYTES;
+    }
+
+    @Override
+    public DbValue copy() {
+        DbDate retVal = new DbDate(this.value);
+        retVal.copyNullFlag(this);
+        retVal.encoded = this.encoded;
+        return retVal;
+    }
+
+    @Override
+    public void encode() {
+        if (! this.isNull() && this.encoded == null)
+            this.encoded = this.getDouble();
+    }
+
 }
@@ -83,4 +83,24 @@ public class DbDouble extends DbValue {
         this.setNotNull();
     }
 
+    @Override
+    protected void setObjectValue(Object value) throws SQLException {
+        if (value instanceof Number)
+            this.set(((Number) value).doubleValue());
+        else
+            throw new SQLException("Cannot store a " + value.getClass().getSimpleName() + " in a DOUBLE value.");
+    }
+
+    @Override
+    public int getSizeEstimate() {
+        return Double.BYTES;
+    }
+
+    @Override
+    public DbValue copy() {
+        DbDouble retVal = new DbDouble(this.value);
+        retVal.copyNullFlag(this);
+        return retVal;
+    }
+
 }
@@ -9,7 +9,6 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Types;
-import java.util.Arrays;
 
 import org.theseed.java.erdb.DbValue;
 
@@ -26,6 +25,8 @@ public class DbDoubleArray extends DbValue {
     // FIELDS
     /** value of this object */
     private double[] value;
+    /** pre-computed blob for the value, or NULL if it has not been encoded */
+    private byte[] encoded;
     /** default value */
     private static final double[] DEFAULT = new double[0];
 
@@ -60,8 +61,8 @@ public class DbDoubleArray extends DbValue {
     protected static byte[] doubleToBytes(double[] val) {
         // Create a buffer for the array.
         ByteBuffer bytes = ByteBuffer.allocate(Double.BYTES * val.length);
-        // Store the values in the buffer.
-        Arrays.stream(val).forEach(x -> bytes.putDouble(x));
+        // Store the values in the buffer with a single bulk copy.
+        bytes.asDoubleBuffer().put(val);
         // Return the result as a byte array.
         return bytes.array();
     }
@@ -85,8 +86,8 @@ public class DbDoubleArray extends DbValue {
 
     @Override
     protected void storeValue(PreparedStatement stmt, int idx) throws SQLException {
-        // Convert the array to a byte buffer.
-        byte[] buffer = doubleToBytes(this.value);
+        // Convert the array to a byte buffer, unless it has already been done.
+        byte[] buffer = (this.encoded != null ? this.encoded : doubleToBytes(this.value));
         // Store it as a blob.
         stmt.setBytes(idx, buffer);
     }
@@ -96,6 +97,7 @@ public class DbDoubleArray extends DbValue {
         // Get the blob from the database.
         byte[] blob = results.getBytes(idx);
         this.value = bytesToDouble(blob);
+        this.encoded = null;
     }
 
     @Override
@@ -125,7 +127,35 @@ public class DbDoubleArray extends DbValue {
      */
     public void set(double[] array) {
         this.value = array;
+        this.encoded = null;
         this.setNotNull();
     }
 
+    @Override
+    protected void setObjectValue(Object value) throws SQLException {
+        if (value instanceof double[])
+            this.set((double[]) value);
+        else
+            throw new SQLException("Cannot store a " + value.getClass().getSimpleName() + " in a DOUBLE_ARRAY value.");
+    }
+
+    @Override
+    public int getSizeEstimate() {
+        return (this.value == null ? 0 : this.value.length * Double.BYTES);
+    }
+
+    @Override
+    public DbValue copy() {
+        DbDoubleArray retVal = new DbDoubleArray(this.value == null ? null : this.value.clone());
+        retVal.copyNullFlag(this);
+        retVal.encoded = this.encoded;
+        return retVal;
+    }
+
+    @Override
+    public void encode() {
+        if (! this.isNull() && this.encoded == null)
+            this.encoded = doubleToBytes(this.value);
+    }
+
 }
@@ -84,4 +84,24 @@ public class DbInteger extends DbValue {
         return Types.INTEGER;
     }
 
+    @Override
+    protected void setObjectValue(Object value) throws SQLException {
+        if (value instanceof Number)
+            this.set(((Number) value).intValue());
+        else
+            throw new SQLException("Cannot store a " + value.getClass().getSimpleName() + " in an INTEGER value.");
+    }
+
+    @Override
+    public int getSizeEstimate() {
+        return Integer.BYTES;
+    }
+
+    @Override
+    public DbValue copy() {
+        DbInteger retVal = new DbInteger(this.value);
+        retVal.copyNullFlag(this);
+        return retVal;
+    }
+
 }
@@ -26,8 +26,12 @@ public class DbLocation extends DbValue {
     // FIELDS
     /** value of this object */
     private Location value;
+    /** pre-computed string form of the value, or NULL if it has not been encoded */
+    private String encoded;
     /** default location value */
     private static final Location DEFAULT = Location.create("", 0, 0);
+    /** length of the comparable string representation */
+    private static final int LOCATION_STRING_LENGTH = 62;
 
     /**
      * Create a blank location value.
@@ -54,8 +58,8 @@ public class DbLocation extends DbValue {
 
     @Override
     protected void storeValue(PreparedStatement stmt, int idx) throws SQLException {
-        // Format the location as a string.
-        String locString = locToString(this.value);
+        // Format the location as a string, unless it has already been done.
+        String locString = (this.encoded != null ? this.encoded : locToString(this.value));
         stmt.setString(idx, locString);
     }
 
@@ -63,6 +67,7 @@ public class DbLocation extends DbValue {
     protected void fetchValue(ResultSet results, int idx) throws SQLException {
         String locString = results.getString(idx);
         this.value = stringToLoc(locString);
+        this.encoded = null;
     }
 
     /**
@@ -112,6 +117,7 @@ public class DbLocation extends DbValue {
      */
     public void set(Location loc) {
         this.value = loc;
+        this.encoded = null;
         this.setNotNull();
     }
 
@@ -120,4 +126,31 @@ public class DbLocation extends DbValue {
         return Types.VARCHAR;
     }
 
+    @Override
+    protected void setObjectValue(Object value) throws SQLException {
+        if (value instanceof Location)
+            this.set((Location) value);
+        else
+            throw new SQLException("Cannot store a " + value.getClass().getSimpleName() + " in a LOCATION value.");
+    }
+
+    @Override
+    public int getSizeEstimate() {
+        return LOCATION_STRING_LENGTH;
+    }
+
+    @Override
+    public DbValue copy() {
+        DbLocation retVal = new DbLocation(this.value);
+        retVal.copyNullFlag(this);
+        retVal.encoded = this.encoded;
+        return retVal;
+    }
+
+    @Override
+    public void encode() {
+        if (! this.isNull() && this.encoded == null)
+            this.encoded = locToString(this.value);
+    }
+
 }
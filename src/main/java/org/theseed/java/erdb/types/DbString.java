@@ -86,4 +86,24 @@ public class DbString extends DbValue {
         return Types.VARCHAR;
     }
 
+    @Override
+    protected void setObjectValue(Object value) throws SQLException {
+        if (value instanceof CharSequence)
+            this.set(value.toString());
+        else
+            throw new SQLException("Cannot store a " + value.getClass().getSimpleName() + " in a STRING value.");
+    }
+
+    @Override
+    public int getSizeEstimate() {
+        return (this.value == null ? 0 : this.value.length());
+    }
+
+    @Override
+    public DbValue copy() {
+        DbString retVal = new DbString(this.value);
+        retVal.copyNullFlag(this);
+        return retVal;
+    }
+
 }
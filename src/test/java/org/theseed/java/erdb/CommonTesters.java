@@ -286,16 +286,70 @@ public class CommonTesters {
             assertThat(record.getInt("RnaSample.base_count"), equalTo(2005));
             assertThat("Too many records returned.", ! iter.hasNext());
         }
-        // Now try some existence checks.
+        // Now use a staged bulk update.
+        try (DbUpdate updater = DbUpdate.bulk(db, "RnaSample")) {
+            updater.change("base_count").primaryKey().createStatement();
+            updater.set("base_count", 1202);
+            updater.set("sample_id", "sample3");
+            updater.update();
+            updater.set("base_count", 1203);
+            updater.set("sample_id", "sample4");
+            updater.update();
+        }
+        try (DbQuery query = new DbQuery(db, "RnaSample")) {
+            query.select("RnaSample", "sample_id", "base_count").orderBy("RnaSample.sample_id");
+            int[] expected = new int[] { 1100, 1101, 1202, 1203, 2005 };
+            int i = 0;
+            for (DbRecord record : query) {
+                assertThat(record.getString("RnaSample.sample_id"), equalTo("sample" + (i + 1)));
+                assertThat(record.getInt("RnaSample.base_count"), equalTo(expected[i]));
+                i++;
+            }
+            assertThat(i, equalTo(5));
+        }
+        // Now try some existence checks, using a key filter.
+        KeyFilter filter = db.enableKeyFilter("RnaSample");
+        assertThat(filter.getKeyCount(), equalTo(5L));
         assertThat("sample1 not found", db.checkForRecord("RnaSample", "sample1"));
         assertThat("sample6 found", ! db.checkForRecord("RnaSample", "sample6"));
+        assertThat(filter.getQueries(), equalTo(2L));
         // Delete some samples.
         List<String> samples = Arrays.asList("sample1", "sample3", "sample5");
-        db.deleteRecords("RnaSample", samples);
+        assertThat(db.deleteRecords("RnaSample", samples), equalTo(3));
         assertThat("wrong sample deleted", db.checkForRecord("RnaSample", "sample2"));
         assertThat("delete failed", ! db.checkForRecord("RnaSample", "sample1"));
         assertThat("delete failed", ! db.checkForRecord("RnaSample", "sample3"));
         assertThat("delete failed", ! db.checkForRecord("RnaSample", "sample5"));
+        // Delete using keys of the wrong type for the key field.
+        try (DbLoader loader = DbLoader.batch(db, "Genome")) {
+            for (int i = 1000; i <= 1002; i++) {
+                loader.set("genome_id", Integer.toString(i));
+                loader.set("genome_name", "numbered genome " + i);
+                loader.insert();
+            }
+        }
+        assertThat(db.deleteRecords("Genome", List.of(1000, 1002)), equalTo(2));
+        assertThat("integer delete failed", ! db.checkForRecord("Genome", "1000"));
+        assertThat("wrong genome deleted", db.checkForRecord("Genome", "1001"));
+        db.scriptUpdate(new File("data", "keytest.sql"));
+        try (DbLoader loader = DbLoader.batch(db, "KeyTest")) {
+            for (int i = 1; i <= 4; i++) {
+                loader.set("key_id", i);
+                loader.set("key_name", "key " + i);
+                loader.insert();
+            }
+        }
+        assertThat(db.deleteRecords("KeyTest", List.of("1", 3L, " 4")), equalTo(3));
+        assertThat(db.getKeys("KeyTest"), contains("2"));
+        assertThat(db.deleteRecords("Genome", List.of("1001")), equalTo(1));
+        // Delete a sample using a joined filter.
+        try (DbQuery query = new DbQuery(db, "Genome RnaSample")) {
+            query.rel("Genome.genome_id", Relop.EQ).rel("RnaSample.sample_id", Relop.EQ);
+            query.setParm(1, "511145.183").setParm(2, "sample4");
+            assertThat(db.deleteWhere(query, "RnaSample"), equalTo(1));
+        }
+        assertThat("delete-where failed", ! db.checkForRecord("RnaSample", "sample4"));
+        assertThat("wrong sample deleted", db.checkForRecord("RnaSample", "sample2"));
         // Delete the genome.
         db.deleteRecord("Genome", "511145.183");
         // Verify the genome is gone, along with all the features and samples.
@@ -0,0 +1,73 @@
+/**
+ *
+ */
+package org.theseed.java.erdb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Bruce Parrello
+ *
+ */
+class TestKeySets {
+
+    @Test
+    void testIntKeySet() {
+        IntKeySet keys = new IntKeySet();
+        for (int i = 0; i < 1000; i += 3)
+            assertThat(keys.add(i), equalTo(true));
+        assertThat(keys.add(Integer.MIN_VALUE), equalTo(true));
+        assertThat(keys.add(300), equalTo(false));
+        assertThat(keys.size(), equalTo(335));
+        for (int i = 0; i < 1000; i++)
+            assertThat("Key " + i, keys.contains(i) == (i % 3 == 0));
+        assertThat("Empty marker not found", keys.contains(Integer.MIN_VALUE));
+        int[] array = keys.toArray();
+        assertThat(array.length, equalTo(335));
+        assertThat(array[0], equalTo(Integer.MIN_VALUE));
+        assertThat(array[334], equalTo(999));
+    }
+
+    @Test
+    void testStringKeySet() {
+        StringKeySet keys = new StringKeySet(2, 4);
+        for (String key : new String[] { "fig|83333.1.peg.10", "fig|83333.1.peg.2", "", "abc", "fig|83333.1.peg.2", "ab" })
+            keys.add(key);
+        assertThat(keys.size(), equalTo(5));
+        assertThat("Missing key", keys.contains("fig|83333.1.peg.2"));
+        assertThat("Missing empty key", keys.contains(""));
+        assertThat("Prefix found", ! keys.contains("a"));
+        assertThat("Bad key found", ! keys.contains("fig|83333.1.peg.3"));
+        List<String> sorted = new ArrayList<>();
+        keys.forEach(x -> sorted.add(x));
+        assertThat(sorted, contains("", "ab", "abc", "fig|83333.1.peg.10", "fig|83333.1.peg.2"));
+        keys.add("b");
+        assertThat(keys.get(3), equalTo("b"));
+    }
+
+    @Test
+    void testKeyFilter() {
+        KeyFilter filter = new KeyFilter(2000, 0.01);
+        for (int i = 0; i < 1000; i++)
+            filter.add("fig|83333.1.peg." + i);
+        for (int i = 0; i < 1000; i++)
+            assertThat("Key " + i + " not found", filter.mightContain("fig|83333.1.peg." + i));
+        int falsePositives = 0;
+        for (int i = 1000; i < 11000; i++) {
+            if (filter.mightContain("fig|83333.1.peg." + i))
+                falsePositives++;
+        }
+        assertThat("Too many false positives", falsePositives < 200);
+        assertThat("Rebuild needed too soon", ! filter.needsRebuild(0.25));
+        filter.recordDeletes(300);
+        assertThat("Rebuild not needed", filter.needsRebuild(0.25));
+    }
+
+}
@@ -0,0 +1,60 @@
+/**
+ *
+ */
+package org.theseed.java.erdb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Bruce Parrello
+ *
+ */
+class TestSqlScriptReader {
+
+    @Test
+    void testStatementParsing() throws IOException {
+        String script = "-- header comment; with a semicolon\n" +
+                "CREATE TABLE [a;b] (x VARCHAR(10));\n" +
+                "INSERT INTO t VALUES ('it''s; fine', \"q;\", `c;d`); /* block; comment */\n" +
+                "/* only a comment */;\n" +
+                "UPDATE t SET x = 5 - 2 WHERE y = 'a--b';\n" +
+                "SELECT 1 / 2\n";
+        List<String> statements = new ArrayList<>();
+        try (SqlScriptReader reader = new SqlScriptReader(new StringReader(script), false)) {
+            while (reader.hasNext())
+                statements.add(reader.next());
+            assertThat(reader.getCount(), equalTo(4L));
+            assertThat(reader.getStatementLine(), equalTo(6));
+        }
+        assertThat(statements, contains("CREATE TABLE [a;b] (x VARCHAR(10))",
+                "INSERT INTO t VALUES ('it''s; fine', \"q;\", `c;d`)",
+                "UPDATE t SET x = 5 - 2 WHERE y = 'a--b'",
+                "SELECT 1 / 2"));
+        // Test backslash escapes.
+        script = "INSERT INTO t VALUES ('a\\';b');\nSELECT 2;";
+        statements.clear();
+        try (SqlScriptReader reader = new SqlScriptReader(new StringReader(script), true)) {
+            while (reader.hasNext())
+                statements.add(reader.next());
+        }
+        assertThat(statements, contains("INSERT INTO t VALUES ('a\\';b')", "SELECT 2"));
+        // Test the MySQL bracket and comment rules.
+        script = "SELECT a[1] FROM t WHERE x = 5--3;\nSELECT 3 -- a comment; here\n;\nSELECT b]\n--\n;";
+        statements.clear();
+        try (SqlScriptReader reader = new SqlScriptReader(new StringReader(script), true, false, true)) {
+            while (reader.hasNext())
+                statements.add(reader.next());
+        }
+        assertThat(statements, contains("SELECT a[1] FROM t WHERE x = 5--3", "SELECT 3", "SELECT b]"));
+    }
+
+}
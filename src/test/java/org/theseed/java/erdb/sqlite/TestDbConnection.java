@@ -4,23 +4,46 @@
 package org.theseed.java.erdb.sqlite;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasItem;
 import static org.hamcrest.Matchers.not;
 import static org.hamcrest.Matchers.nullValue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 import java.io.File;
 import java.io.IOException;
 import java.sql.DatabaseMetaData;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 import org.apache.commons.io.FileUtils;
 import org.junit.jupiter.api.Test;
+import org.theseed.java.erdb.DbAggregation;
 import org.theseed.java.erdb.DbConnection;
+import org.theseed.java.erdb.DbEntityCache;
+import org.theseed.java.erdb.DbKeysetPager;
+import org.theseed.java.erdb.DbLoader;
+import org.theseed.java.erdb.DbPinnedTable;
+import org.theseed.java.erdb.DbQuery;
+import org.theseed.java.erdb.DbQueryTemplate;
+import org.theseed.java.erdb.DbRecord;
+import org.theseed.java.erdb.DbResultCache;
 import org.theseed.java.erdb.DbTable;
 import org.theseed.java.erdb.DbType;
+import org.theseed.java.erdb.DbUpdate;
+import org.theseed.java.erdb.DbValue;
+import org.theseed.java.erdb.Relop;
+import org.theseed.locations.Location;
 
 /**
  * @author Bruce Parrello
@@ -93,6 +116,31 @@ public class TestDbConnection {
             List<String> tables = db.getTableNames();
             assertThat(tables, containsInAnyOrder("FeatureGroup", "Genome", "Feature", "FeatureToGroup", "RnaSample",
                     "SampleCluster", "Measurement"));
+            // Empty the tables and verify the schema survives.
+            try (DbLoader loader = DbLoader.batch(db, "Genome")) {
+                loader.set("genome_id", "83333.1");
+                loader.set("genome_name", "Escherichia coli K-12");
+                loader.insert();
+            }
+            assertThat(db.getKeys("Genome").size(), equalTo(1));
+            db.truncateTables();
+            assertThat(db.getKeys("Genome").size(), equalTo(0));
+            assertThat(db.getTableNames().size(), equalTo(7));
+            // Foreign-key checking must be restored afterward.
+            try (DbLoader loader = DbLoader.single(db, "Feature")) {
+                loader.set("fig_id", "fig|999.9.peg.1");
+                loader.set("genome_id", "999.9");
+                loader.setNull("alias");
+                loader.setNull("gene_name");
+                loader.set("seq_no", 1);
+                loader.set("assignment", "hypothetical protein");
+                loader.set("location", Location.create("999.9:con1", 100, 200));
+                assertThrows(SQLException.class, () -> loader.insert());
+            }
+            // Foreign-key checking cannot be suspended inside a transaction.
+            try (DbConnection.Transaction xact = db.new Transaction()) {
+                assertThrows(SQLException.class, () -> db.truncateTables());
+            }
             // Delete all the tables.
             db.clearTables();
             assertThat(db.getTableNames().size(), equalTo(0));
@@ -100,4 +148,543 @@ public class TestDbConnection {
         }
     }
 
+    @Test
+    public void testResultCache() throws SQLException, IOException {
+        File dbFile = new File("data", "temp.ser");
+        if (dbFile.exists())
+            FileUtils.forceDelete(dbFile);
+        try (DbConnection db = new SqliteDbConnection(dbFile)) {
+            db.scriptUpdate(new File("data", "rnaseqdb.sql"));
+            try (DbLoader loader = DbLoader.batch(db, "Genome")) {
+                loader.set("genome_id", "83333.1");
+                loader.set("genome_name", "Escherichia coli K-12");
+                loader.insert();
+            }
+            try (DbLoader loader = DbLoader.batch(db, "Feature")) {
+                for (int i = 1; i <= 3; i++) {
+                    loader.set("fig_id", "fig|83333.1.peg." + i);
+                    loader.set("genome_id", "83333.1");
+                    loader.setNull("alias");
+                    loader.setNull("gene_name");
+                    loader.set("seq_no", i);
+                    loader.set("assignment", "hypothetical protein");
+                    loader.set("location", Location.create("83333.1.con.1", i * 100, i * 100 + 50));
+                    loader.insert();
+                }
+            }
+            DbResultCache cache = db.enableResultCache(1000000);
+            try (DbQuery query = new DbQuery(db, "Genome Feature")) {
+                query.select("Feature", "fig_id").rel("Genome.genome_id", Relop.EQ);
+                query.setParm(1, "83333.1");
+                assertThat(query.stream().count(), equalTo(3L));
+                assertThat(cache.size(), equalTo(1));
+                assertThat(query.stream().count(), equalTo(3L));
+                assertThat(cache.getHits(), equalTo(1L));
+                // A different parameter value is a different result.
+                query.setParm(1, "83333.2");
+                assertThat(query.stream().count(), equalTo(0L));
+                assertThat(cache.size(), equalTo(2));
+                // Loading a feature invalidates both results.
+                try (DbLoader loader = DbLoader.batch(db, "Feature")) {
+                    loader.set("fig_id", "fig|83333.1.peg.4");
+                    loader.set("genome_id", "83333.1");
+                    loader.setNull("alias");
+                    loader.setNull("gene_name");
+                    loader.set("seq_no", 4);
+                    loader.set("assignment", "hypothetical protein");
+                    loader.set("location", Location.create("83333.1.con.1", 400, 450));
+                    loader.insert();
+                }
+                assertThat(cache.size(), equalTo(0));
+                query.setParm(1, "83333.1");
+                assertThat(query.stream().count(), equalTo(4L));
+                assertThat(cache.size(), equalTo(1));
+            }
+            // A feature-only query is invalidated by a cascading genome delete.
+            try (DbQuery query = new DbQuery(db, "Feature")) {
+                query.select("Feature", "fig_id");
+                assertThat(query.stream().count(), equalTo(4L));
+                assertThat(cache.size(), equalTo(2));
+                db.deleteRecord("Genome", "83333.1");
+                assertThat(cache.size(), equalTo(0));
+                assertThat(query.stream().count(), equalTo(0L));
+            }
+        }
+    }
+
+    @Test
+    public void testEntityCache() throws SQLException, IOException {
+        File dbFile = new File("data", "temp.ser");
+        if (dbFile.exists())
+            FileUtils.forceDelete(dbFile);
+        try (DbConnection db = new SqliteDbConnection(dbFile)) {
+            db.scriptUpdate(new File("data", "rnaseqdb.sql"));
+            try (DbLoader loader = DbLoader.batch(db, "Genome")) {
+                for (int i = 1; i <= 5; i++) {
+                    loader.set("genome_id", "83333." + i);
+                    loader.set("genome_name", "genome " + i);
+                    loader.insert();
+                }
+            }
+            DbEntityCache cache = db.enableEntityCache("Genome", 3);
+            assertThat(db.getRecord("Genome", "83333.1").getString("Genome.genome_name"), equalTo("genome 1"));
+            assertThat(cache.getMisses(), equalTo(1L));
+            assertThat(db.getRecord("Genome", "83333.1").getString("Genome.genome_name"), equalTo("genome 1"));
+            assertThat(cache.getHits(), equalTo(1L));
+            // Read several records at once.  One comes from the cache.
+            Map<String, DbRecord> records = db.getRecords("Genome", List.of("83333.1", "83333.2", "83333.3", "83333.9"));
+            assertThat(records.size(), equalTo(3));
+            assertThat(records.get("83333.3").getString("Genome.genome_name"), equalTo("genome 3"));
+            assertThat(cache.getHits(), equalTo(2L));
+            assertThat(cache.size(), equalTo(3));
+            // A query of all the fields feeds the cache and forces evictions.
+            try (DbQuery query = new DbQuery(db, "Genome")) {
+                query.selectAll("Genome").rel("Genome.genome_id", Relop.GE);
+                query.setParm(1, "83333.4");
+                assertThat(query.stream().count(), equalTo(2L));
+            }
+            assertThat(cache.size(), equalTo(3));
+            assertThat(cache.getEvictions(), equalTo(2L));
+            // Updating a record by key invalidates only that record.
+            try (DbUpdate update = DbUpdate.batch(db, "Genome")) {
+                update.change("genome_name").primaryKey().createStatement();
+                update.set("genome_id", "83333.5");
+                update.set("genome_name", "new genome 5");
+                update.update();
+            }
+            assertThat(cache.size(), equalTo(2));
+            assertThat(db.getRecord("Genome", "83333.5").getString("Genome.genome_name"), equalTo("new genome 5"));
+            // Deleting a record removes it.
+            db.deleteRecord("Genome", "83333.5");
+            assertThat(db.getRecord("Genome", "83333.5"), nullValue());
+        }
+    }
+
+    @Test
+    public void testPinnedTable() throws SQLException, IOException {
+        File dbFile = new File("data", "temp.ser");
+        if (dbFile.exists())
+            FileUtils.forceDelete(dbFile);
+        try (DbConnection db = new SqliteDbConnection(dbFile)) {
+            db.scriptUpdate(new File("data", "rnaseqdb.sql"));
+            try (DbLoader loader = DbLoader.batch(db, "Genome")) {
+                for (int i = 1; i <= 2; i++) {
+                    loader.set("genome_id", "83333." + i);
+                    loader.set("genome_name", "genome " + i);
+                    loader.insert();
+                }
+            }
+            try (DbLoader loader = DbLoader.batch(db, "Feature")) {
+                for (int i = 1; i <= 3; i++) {
+                    String genome = (i < 3 ? "83333.1" : "83333.2");
+                    loader.set("fig_id", "fig|" + genome + ".peg." + i);
+                    loader.set("genome_id", genome);
+                    loader.setNull("alias");
+                    loader.setNull("gene_name");
+                    loader.set("seq_no", i);
+                    loader.set("assignment", "hypothetical protein");
+                    loader.set("location", Location.create(genome + ".con.1", i * 100, i * 100 + 50));
+                    loader.insert();
+                }
+            }
+            DbPinnedTable pinned = db.pinTable("Genome");
+            assertThat(pinned.size(), equalTo(2));
+            assertThat(pinned.getLoadCount(), equalTo(1));
+            assertThat(db.getRecord("Genome", "83333.2").getString("Genome.genome_name"), equalTo("genome 2"));
+            assertThat(db.checkForRecord("Genome", "83333.1"), equalTo(true));
+            assertThat(db.getRecord("Genome", "83333.9"), nullValue());
+            // The genome names are filled in from memory.
+            try (DbQuery query = new DbQuery(db, "Feature Genome")) {
+                query.select("Feature", "fig_id").select("Genome", "genome_name").rel("Feature.seq_no", Relop.GE);
+                query.setParm(1, 2);
+                Map<String, String> names = new TreeMap<>();
+                for (DbRecord record : query)
+                    names.put(record.getString("Feature.fig_id"), record.getString("Genome.genome_name"));
+                assertThat(names.size(), equalTo(2));
+                assertThat(names.get("fig|83333.1.peg.2"), equalTo("genome 1"));
+                assertThat(names.get("fig|83333.2.peg.3"), equalTo("genome 2"));
+                // Changing a genome reloads the pinned table.
+                try (DbUpdate update = DbUpdate.batch(db, "Genome")) {
+                    update.change("genome_name").primaryKey().createStatement();
+                    update.set("genome_id", "83333.2");
+                    update.set("genome_name", "new genome 2");
+                    update.update();
+                }
+                for (DbRecord record : query)
+                    names.put(record.getString("Feature.fig_id"), record.getString("Genome.genome_name"));
+                assertThat(names.get("fig|83333.2.peg.3"), equalTo("new genome 2"));
+                assertThat(pinned.getLoadCount(), equalTo(2));
+            }
+            // A filter on the pinned table forces a database join.
+            try (DbQuery query = new DbQuery(db, "Feature Genome")) {
+                query.select("Feature", "fig_id").rel("Genome.genome_name", Relop.EQ);
+                query.setParm(1, "genome 1");
+                assertThat(query.stream().count(), equalTo(2L));
+            }
+            db.unpinTable("Genome");
+            assertThat(db.getPinnedTable("Genome"), nullValue());
+        }
+    }
+
+    @Test
+    public void testQueryTemplate() throws SQLException, IOException {
+        File dbFile = new File("data", "temp.ser");
+        if (dbFile.exists())
+            FileUtils.forceDelete(dbFile);
+        try (DbConnection db = new SqliteDbConnection(dbFile)) {
+            db.scriptUpdate(new File("data", "rnaseqdb.sql"));
+            try (DbLoader loader = DbLoader.batch(db, "Genome")) {
+                for (int i = 1; i <= 5; i++) {
+                    loader.set("genome_id", "83333." + i);
+                    loader.set("genome_name", "genome " + i);
+                    loader.insert();
+                }
+            }
+            DbQueryTemplate template = new DbQueryTemplate(db, "Genome").select("Genome", "genome_name")
+                    .rel("Genome.genome_id", Relop.GE).orderBy("Genome.genome_id");
+            assertThat(template.isCompiled(), equalTo(false));
+            try (DbQuery query = template.instance()) {
+                query.setParm(1, "83333.4");
+                List<String> names = new ArrayList<>();
+                for (DbRecord record : query)
+                    names.add(record.getString("Genome.genome_name"));
+                assertThat(names, contains("genome 4", "genome 5"));
+            }
+            assertThat(template.isCompiled(), equalTo(true));
+            // A second instance has its own parameters but shares the statement.
+            try (DbQuery query = template.instance()) {
+                query.setParm(1, "83333.2");
+                assertThat(query.stream().count(), equalTo(4L));
+                assertThrows(SQLException.class, () -> query.select("Genome", "genome_id"));
+            }
+            assertThat(db.getSharedStatementCount(), equalTo(1));
+            assertThrows(SQLException.class, () -> template.rel("Genome.genome_name", Relop.EQ));
+            // Register the template along with a second query, and run them by name.
+            db.registerQuery("genomesFrom", template);
+            db.registerQuery("genomeName", new DbQueryTemplate(db, "Genome").select("Genome", "genome_name")
+                    .rel("Genome.genome_id", Relop.EQ));
+            assertThat(db.getQueryNames(), contains("genomeName", "genomesFrom"));
+            assertThat(db.warmUp(), equalTo(2));
+            assertThat(db.getSharedStatementCount(), equalTo(2));
+            DbRecord record = db.query("genomeName", "83333.3").iterator().next();
+            assertThat(record.getString("Genome.genome_name"), equalTo("genome 3"));
+            assertThat(db.query("genomesFrom", "83333.5").stream().count(), equalTo(1L));
+            assertThrows(SQLException.class, () -> db.query("genomeName", "83333.3", "83333.4"));
+            assertThrows(SQLException.class, () -> db.query("noSuchQuery"));
+            assertThrows(SQLException.class, () -> db.registerQuery("genomeName", template));
+            assertThat(db.getSharedStatementCount(), equalTo(2));
+            // Executing a shared statement closes the results of an unfinished instance.
+            Iterator<DbRecord> iter1 = db.query("genomesFrom", "83333.1").iterator();
+            assertThat(iter1.next().getString("Genome.genome_name"), equalTo("genome 1"));
+            assertThat(db.query("genomesFrom", "83333.4").stream().count(), equalTo(2L));
+            assertThrows(RuntimeException.class, () -> iter1.hasNext());
+            // An instance held across a table clear gets a new statement.
+            try (DbQuery query = db.query("genomeName", "83333.2")) {
+                assertThat(query.stream().count(), equalTo(1L));
+                db.clearTables();
+                assertThat(db.getSharedStatementCount(), equalTo(0));
+                db.scriptUpdate(new File("data", "rnaseqdb.sql"));
+                try (DbLoader loader = DbLoader.batch(db, "Genome")) {
+                    loader.set("genome_id", "83333.2");
+                    loader.set("genome_name", "new genome 2");
+                    loader.insert();
+                }
+                record = query.iterator().next();
+                assertThat(record.getString("Genome.genome_name"), equalTo("new genome 2"));
+                assertThat(db.getSharedStatementCount(), equalTo(1));
+            }
+        }
+    }
+
+    @Test
+    public void testInCollection() throws SQLException, IOException {
+        File dbFile = new File("data", "temp.ser");
+        if (dbFile.exists())
+            FileUtils.forceDelete(dbFile);
+        try (DbConnection db = new SqliteDbConnection(dbFile)) {
+            db.scriptUpdate(new File("data", "rnaseqdb.sql"));
+            try (DbLoader loader = DbLoader.batch(db, "Genome")) {
+                for (int i = 1; i <= 20; i++) {
+                    loader.set("genome_id", "83333." + i);
+                    loader.set("genome_name", "genome " + i);
+                    loader.insert();
+                }
+            }
+            List<String> ids = new ArrayList<>();
+            for (int i = 2; i <= 40; i += 2)
+                ids.add("83333." + i);
+            // Try the filter with parameters and with a temporary table.
+            for (int threshold : new int[] { 100, 5 }) {
+                try (DbQuery query = new DbQuery(db, "Genome")) {
+                    query.select("Genome", "genome_id").rel("Genome.genome_name", Relop.NE)
+                            .inCollection("Genome.genome_id", ids, threshold);
+                    query.setParm(1, "genome 4");
+                    Set<String> found = new TreeSet<>();
+                    for (DbRecord record : query)
+                        found.add(record.getString("Genome.genome_id"));
+                    assertThat(found.size(), equalTo(9));
+                    assertThat(found, hasItem("83333.20"));
+                    assertThat(found, not(hasItem("83333.4")));
+                    assertThat(found, not(hasItem("83333.3")));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testAggregation() throws SQLException, IOException {
+        File dbFile = new File("data", "temp.ser");
+        if (dbFile.exists())
+            FileUtils.forceDelete(dbFile);
+        try (DbConnection db = new SqliteDbConnection(dbFile)) {
+            db.scriptUpdate(new File("data", "rnaseqdb.sql"));
+            try (DbLoader loader = DbLoader.batch(db, "Genome")) {
+                for (int i = 1; i <= 3; i++) {
+                    loader.set("genome_id", "83333." + i);
+                    loader.set("genome_name", "genome " + i);
+                    loader.insert();
+                }
+            }
+            // Genome i gets i features.
+            try (DbLoader loader = DbLoader.batch(db, "Feature")) {
+                for (int i = 1; i <= 3; i++) {
+                    String genome = "83333." + i;
+                    for (int j = 1; j <= i; j++) {
+                        loader.set("fig_id", "fig|" + genome + ".peg." + j);
+                        loader.set("genome_id", genome);
+                        loader.setNull("alias");
+                        loader.setNull("gene_name");
+                        loader.set("seq_no", j);
+                        loader.set("assignment", "hypothetical protein");
+                        loader.set("location", Location.create(genome + ".con.1", j * 100, j * 100 + 50));
+                        loader.insert();
+                    }
+                }
+            }
+            try (DbQuery query = new DbQuery(db, "Genome Feature")) {
+                query.rel("Genome.genome_name", Relop.NE);
+                query.setParm(1, "genome 1");
+                try (DbAggregation agg = query.aggregate()) {
+                    agg.groupBy("Genome.genome_id").count().as("features").max("Feature.seq_no")
+                            .avg("Feature.seq_no");
+                    Map<String, DbRecord> groups = new TreeMap<>();
+                    for (DbRecord record : agg)
+                        groups.put(record.getString("Genome.genome_id"), record);
+                    assertThat(groups.keySet(), contains("83333.2", "83333.3"));
+                    DbRecord record = groups.get("83333.3");
+                    assertThat(record.getInt("features"), equalTo(3));
+                    assertThat(record.getInt("MAX(Feature.seq_no)"), equalTo(3));
+                    assertThat(record.getDouble("AVG(Feature.seq_no)"), closeTo(2.0, 1e-6));
+                    assertThat(groups.get("83333.2").getInt("features"), equalTo(2));
+                    // Change the parameter and run it again.
+                    query.setParm(1, "genome 3");
+                    assertThat(agg.getResults().size(), equalTo(2));
+                    assertThrows(SQLException.class, () -> agg.count());
+                }
+                // An ungrouped aggregation returns a single record.
+                try (DbAggregation agg = query.aggregate().count().sum("Feature.seq_no")) {
+                    List<DbRecord> results = agg.getResults();
+                    assertThat(results.size(), equalTo(1));
+                    assertThat(results.get(0).getInt("COUNT(*)"), equalTo(3));
+                    assertThat(results.get(0).getDouble("SUM(Feature.seq_no)"), closeTo(4.0, 1e-6));
+                    assertThrows(SQLException.class, () -> query.aggregate().sum("Genome.genome_name"));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testPaging() throws SQLException, IOException {
+        File dbFile = new File("data", "temp.ser");
+        if (dbFile.exists())
+            FileUtils.forceDelete(dbFile);
+        try (DbConnection db = new SqliteDbConnection(dbFile)) {
+            db.scriptUpdate(new File("data", "rnaseqdb.sql"));
+            try (DbLoader loader = DbLoader.batch(db, "Genome")) {
+                for (int i = 10; i < 35; i++) {
+                    loader.set("genome_id", "83333." + i);
+                    loader.set("genome_name", "genome " + i);
+                    loader.insert();
+                }
+            }
+            try (DbQuery query = new DbQuery(db, "Genome")) {
+                query.select("Genome", "genome_name").rel("Genome.genome_id", Relop.GT).orderBy("Genome.genome_id");
+                query.setParm(1, "83333.11");
+                // Use limit and offset.
+                query.limit(5).offset(3);
+                List<String> names = new ArrayList<>();
+                for (DbRecord record : query)
+                    names.add(record.getString("Genome.genome_name"));
+                assertThat(names, contains("genome 15", "genome 16", "genome 17", "genome 18", "genome 19"));
+                assertThat(query.count(), equalTo(5L));
+                assertThat(query.exists(), equalTo(true));
+                query.limit(0).offset(20);
+                assertThat(query.stream().count(), equalTo(3L));
+                assertThat(query.count(), equalTo(3L));
+                query.offset(23);
+                assertThat(query.exists(), equalTo(false));
+                query.offset(0);
+                assertThat(query.count(), equalTo(23L));
+                query.setParm(1, "83333.33");
+                assertThat(query.count(), equalTo(1L));
+                query.setParm(1, "83333.4");
+                assertThat(query.exists(), equalTo(false));
+                query.setParm(1, "83333.11");
+                // Page through the records with a keyset pager.
+                try (DbKeysetPager pager = query.pager(10)) {
+                    List<DbRecord> page = pager.nextPage();
+                    assertThat(page.size(), equalTo(10));
+                    assertThat(page.get(0).getString("Genome.genome_id"), equalTo("83333.12"));
+                    List<DbValue> key = pager.getLastKey();
+                    assertThat(key.get(0).getString(), equalTo("83333.21"));
+                    page = pager.nextPage();
+                    assertThat(page.size(), equalTo(10));
+                    assertThat(page.get(0).getString("Genome.genome_id"), equalTo("83333.22"));
+                    page = pager.nextPage();
+                    assertThat(page.size(), equalTo(3));
+                    assertThat(pager.hasMore(), equalTo(false));
+                    assertThat(pager.nextPage().size(), equalTo(0));
+                    // Resume from a saved key.
+                    pager.seek(key);
+                    assertThat(pager.nextPage().get(0).getString("Genome.genome_id"), equalTo("83333.22"));
+                    pager.seek("83333.32");
+                    assertThat(pager.nextPage().size(), equalTo(2));
+                    pager.reset();
+                    assertThat(pager.nextPage().get(0).getString("Genome.genome_id"), equalTo("83333.12"));
+                }
+                // The query itself is unchanged by the pager.
+                assertThat(query.iterator().next().size(), equalTo(1));
+                assertThat(query.stream().count(), equalTo(23L));
+            }
+            // A template instance cannot be modified, but it can still be paged.
+            DbQueryTemplate template = new DbQueryTemplate(db, "Genome").select("Genome", "genome_name")
+                    .rel("Genome.genome_id", Relop.GT).orderBy("Genome.genome_id");
+            try (DbQuery query = template.instance()) {
+                query.setParm(1, "83333.30");
+                try (DbKeysetPager pager = query.pager(3)) {
+                    List<DbRecord> page = pager.nextPage();
+                    assertThat(page.size(), equalTo(3));
+                    assertThat(page.get(2).getString("Genome.genome_id"), equalTo("83333.33"));
+                    assertThat(pager.nextPage().size(), equalTo(1));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFilterGroups() throws SQLException, IOException {
+        File dbFile = new File("data", "temp.ser");
+        if (dbFile.exists())
+            FileUtils.forceDelete(dbFile);
+        try (DbConnection db = new SqliteDbConnection(dbFile)) {
+            db.scriptUpdate(new File("data", "rnaseqdb.sql"));
+            try (DbLoader loader = DbLoader.batch(db, "Genome")) {
+                for (int i = 1; i <= 3; i++) {
+                    loader.set("genome_id", "83333." + i);
+                    loader.set("genome_name", "genome " + i);
+                    loader.insert();
+                }
+            }
+            // Genome i gets i features.
+            try (DbLoader loader = DbLoader.batch(db, "Feature")) {
+                for (int i = 1; i <= 3; i++) {
+                    String genome = "83333." + i;
+                    for (int j = 1; j <= i; j++) {
+                        loader.set("fig_id", "fig|" + genome + ".peg." + j);
+                        loader.set("genome_id", genome);
+                        loader.setNull("alias");
+                        loader.setNull("gene_name");
+                        loader.set("seq_no", j);
+                        loader.set("assignment", "hypothetical protein");
+                        loader.set("location", Location.create(genome + ".con.1", j * 100, j * 100 + 50));
+                        loader.insert();
+                    }
+                }
+            }
+            try (DbQuery query = new DbQuery(db, "Genome")) {
+                query.select("Genome", "genome_id").anyOf().rel("Genome.genome_id", Relop.EQ)
+                        .not().rel("Genome.genome_name", Relop.NE).end().end();
+                query.setParm(1, "83333.1");
+                query.setParm(2, "genome 3");
+                Set<String> found = new TreeSet<>();
+                for (DbRecord record : query)
+                    found.add(record.getString("Genome.genome_id"));
+                assertThat(found, contains("83333.1", "83333.3"));
+            }
+            // Find the genomes with a third feature.
+            try (DbQuery query = new DbQuery(db, "Genome");
+                    DbQuery subQuery = new DbQuery(db, "Feature")) {
+                subQuery.rel("Feature.seq_no", Relop.GE).correlate("Feature.genome_id", "Genome.genome_id");
+                query.select("Genome", "genome_id").exists(subQuery);
+                query.setParm(1, 3);
+                assertThat(query.count(), equalTo(1L));
+                // Now find the genomes with a second feature.
+                query.setParm(1, 2);
+                assertThat(query.count(), equalTo(2L));
+            }
+            try (DbQuery query = new DbQuery(db, "Genome");
+                    DbQuery subQuery = new DbQuery(db, "Feature")) {
+                subQuery.rel("Feature.seq_no", Relop.GE).correlate("Feature.genome_id", "Genome.genome_id");
+                query.select("Genome", "genome_id").notExists(subQuery);
+                query.setParm(1, 2);
+                List<String> ids = new ArrayList<>();
+                for (DbRecord record : query)
+                    ids.add(record.getString("Genome.genome_id"));
+                assertThat(ids, contains("83333.1"));
+            }
+            // Run a query for several genomes at once.
+            try (DbQuery query = new DbQuery(db, "Feature")) {
+                query.select("Feature", "fig_id", "seq_no").rel("Feature.genome_id", Relop.EQ).orderBy("Feature.seq_no");
+                List<Object[]> paramSets = new ArrayList<>();
+                for (String genome : new String[] { "83333.3", "83333.9", "83333.2" })
+                    paramSets.add(new Object[] { genome });
+                Map<Integer, List<DbRecord>> results = new TreeMap<>();
+                query.executeForEach(paramSets, (i, r) -> results.computeIfAbsent(i, x -> new ArrayList<>()).add(r));
+                assertThat(results.keySet(), contains(0, 2));
+                List<DbRecord> records = results.get(0);
+                assertThat(records.size(), equalTo(3));
+                for (int i = 0; i < 3; i++)
+                    assertThat(records.get(i).getString("Feature.fig_id"), equalTo("fig|83333.3.peg." + (i + 1)));
+                records = results.get(2);
+                assertThat(records.size(), equalTo(2));
+                assertThat(records.get(1).getString("Feature.fig_id"), equalTo("fig|83333.2.peg.2"));
+                // With a limit, the query is run once per set.
+                results.clear();
+                query.limit(1);
+                query.executeForEach(paramSets, (i, r) -> results.computeIfAbsent(i, x -> new ArrayList<>()).add(r));
+                assertThat(results.get(0).size(), equalTo(1));
+                assertThat(results.get(0).get(0).getString("Feature.fig_id"), equalTo("fig|83333.3.peg.1"));
+                assertThat(results.get(2).get(0).getString("Feature.fig_id"), equalTo("fig|83333.2.peg.1"));
+                List<Object[]> badSets = new ArrayList<>();
+                badSets.add(new Object[] { "83333.1", "83333.2" });
+                assertThrows(SQLException.class, () -> query.executeForEach(badSets, (i, r) -> { }));
+            }
+            // A temporary-table filter cannot be repeated in a UNION, so the query is run once per set.
+            try (DbQuery query = new DbQuery(db, "Feature")) {
+                List<String> figs = List.of("fig|83333.3.peg.1", "fig|83333.3.peg.3", "fig|83333.2.peg.2");
+                query.select("Feature", "fig_id").rel("Feature.genome_id", Relop.EQ)
+                        .inCollection("Feature.fig_id", figs, 2).orderBy("Feature.fig_id");
+                List<Object[]> paramSets = new ArrayList<>();
+                for (String genome : new String[] { "83333.3", "83333.9", "83333.2" })
+                    paramSets.add(new Object[] { genome });
+                Map<Integer, List<DbRecord>> results = new TreeMap<>();
+                query.executeForEach(paramSets, (i, r) -> results.computeIfAbsent(i, x -> new ArrayList<>()).add(r));
+                assertThat(results.keySet(), contains(0, 2));
+                List<DbRecord> records = results.get(0);
+                assertThat(records.size(), equalTo(2));
+                assertThat(records.get(0).getString("Feature.fig_id"), equalTo("fig|83333.3.peg.1"));
+                assertThat(records.get(1).getString("Feature.fig_id"), equalTo("fig|83333.3.peg.3"));
+                records = results.get(2);
+                assertThat(records.size(), equalTo(1));
+                assertThat(records.get(0).getString("Feature.fig_id"), equalTo("fig|83333.2.peg.2"));
+            }
+            try (DbQuery query = new DbQuery(db, "Genome")) {
+                query.select("Genome", "genome_id").anyOf().rel("Genome.genome_id", Relop.EQ);
+                assertThrows(SQLException.class, () -> query.count());
+                query.end();
+                assertThrows(SQLException.class, () -> query.end());
+            }
+        }
+    }
+
 }
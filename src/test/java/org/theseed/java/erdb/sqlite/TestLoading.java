@@ -3,14 +3,57 @@
  */
 package org.theseed.java.erdb.sqlite;
 
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
 import java.io.File;
 import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
 
 import org.apache.commons.io.FileUtils;
 import org.junit.jupiter.api.Test;
+import org.theseed.erdb.utils.RejectFileWriter;
 import org.theseed.java.erdb.CommonTesters;
+import org.theseed.java.erdb.DbBaseUpdate;
+import org.theseed.java.erdb.DbClassGenerator;
 import org.theseed.java.erdb.DbConnection;
+import org.theseed.java.erdb.DbLoadScheduler;
+import org.theseed.java.erdb.DbLoader;
+import org.theseed.java.erdb.DbRecord;
+import org.theseed.java.erdb.DbScriptRunner;
+import org.theseed.java.erdb.DbUpdate;
+import org.theseed.java.erdb.DbValue;
+import org.theseed.java.erdb.DbWriteQueue;
+import org.theseed.java.erdb.KeyFilter;
+import org.theseed.java.erdb.types.DbDate;
+import org.theseed.java.erdb.types.DbString;
+import org.theseed.locations.Location;
 
 /**
  * @author Bruce Parrello
@@ -29,4 +72,560 @@ public class TestLoading {
         }
     }
 
+    @Test
+    public void testTolerantLoad() throws IOException, SQLException {
+        File dbFile = new File("data", "temp.ser");
+        if (dbFile.exists())
+            FileUtils.forceDelete(dbFile);
+        try (DbConnection db = new SqliteDbConnection(dbFile)) {
+            db.scriptUpdate(new File("data", "rnaseqdb.sql"));
+            try (DbLoader loader = DbLoader.batch(db, "Genome")) {
+                loader.set("genome_id", "100.1");
+                loader.set("genome_name", "good genome");
+                loader.insert();
+            }
+            List<String> rejects = new ArrayList<>();
+            try (DbLoader loader = DbLoader.batch(db, "Feature")) {
+                loader.tolerant((table, row, error) -> rejects.add(((DbString) row.get("fig_id")).get()));
+                for (int i = 1; i <= 6; i++) {
+                    String fid = "fig|100.1.peg." + i;
+                    loader.set("fig_id", fid);
+                    loader.set("genome_id", (i == 2 || i == 5 ? "999.9" : "100.1"));
+                    loader.setNull("alias");
+                    loader.setNull("gene_name");
+                    loader.set("seq_no", i);
+                    loader.set("assignment", "hypothetical protein");
+                    loader.set("location", Location.create("100.1:con1", i * 100, i * 100 + 50));
+                    loader.insert();
+                }
+                loader.close();
+                assertThat(loader.getRejectCount(), equalTo(2));
+            }
+            assertThat(db.getKeys("Feature"), containsInAnyOrder("fig|100.1.peg.1", "fig|100.1.peg.3",
+                    "fig|100.1.peg.4", "fig|100.1.peg.6"));
+            assertThat(rejects, containsInAnyOrder("fig|100.1.peg.2", "fig|100.1.peg.5"));
+        }
+    }
+
+    @Test
+    public void testChunkedLoad() throws IOException, SQLException {
+        File dbFile = new File("data", "temp.ser");
+        if (dbFile.exists())
+            FileUtils.forceDelete(dbFile);
+        File checkFile = new File("data", "check.ser");
+        if (checkFile.exists())
+            FileUtils.forceDelete(checkFile);
+        try (DbConnection db = new SqliteDbConnection(dbFile)) {
+            db.scriptUpdate(new File("data", "rnaseqdb.sql"));
+            try (DbConnection.ChunkedTransaction xact = db.new ChunkedTransaction(3, Long.MAX_VALUE, checkFile)) {
+                try (DbLoader loader = DbLoader.batch(db, "Genome")) {
+                    for (int i = 1; i <= 7; i++) {
+                        loader.set("genome_id", "100." + i);
+                        loader.set("genome_name", "genome " + i);
+                        loader.insert();
+                    }
+                }
+                assertThat(xact.getChunkCount(), equalTo(2));
+                assertThat(xact.getCheckpoint("Genome"), equalTo("100.6"));
+                assertThat(xact.getCommittedRows("Genome"), equalTo(6L));
+                xact.commit();
+            }
+            assertThat(db.getKeys("Genome").size(), equalTo(7));
+            try (DbConnection.ChunkedTransaction xact = db.new ChunkedTransaction(1, Long.MAX_VALUE, null)) {
+                try (DbUpdate updater = DbUpdate.bulk(db, "Genome")) {
+                    updater.change("genome_name").primaryKey().createStatement();
+                    updater.set("genome_id", "100.1");
+                    updater.set("genome_name", "renamed");
+                    updater.update();
+                    // The first staged row triggers a checkpoint, which must apply it.
+                    assertThat(db.getRecord("Genome", "100.1").getString("Genome.genome_name"), equalTo("renamed"));
+                }
+                xact.commit();
+            }
+        }
+        Map<String, String> checkpoint = DbConnection.readCheckpoint(checkFile);
+        assertThat(checkpoint.get("Genome"), equalTo("100.7"));
+        assertThat(DbConnection.readCheckpointCounts(checkFile).get("Genome"), equalTo(7L));
+        assertThat(checkFile.length(), greaterThan(0L));
+    }
+
+    @Test
+    public void testClassGenerator() throws IOException, SQLException {
+        File dbFile = new File("data", "temp.ser");
+        if (dbFile.exists())
+            FileUtils.forceDelete(dbFile);
+        File outDir = new File("data", "gen");
+        if (outDir.exists())
+            FileUtils.forceDelete(outDir);
+        try (DbConnection db = new SqliteDbConnection(dbFile)) {
+            db.scriptUpdate(new File("data", "rnaseqdb.sql"));
+            DbClassGenerator generator = new DbClassGenerator(db, "org.theseed.test.gen");
+            generator.generate("Genome", outDir);
+            File packageDir = new File(outDir, "org/theseed/test/gen");
+            String loader = FileUtils.readFileToString(new File(packageDir, "GenomeLoader.java"), StandardCharsets.UTF_8);
+            assertThat(loader, containsString("public class GenomeLoader extends DbLoader"));
+            assertThat(loader, containsString("public GenomeLoader setGenomeName(String value)"));
+            assertThat(loader, containsString("private final DbString genomeIdHolder;"));
+            String row = FileUtils.readFileToString(new File(packageDir, "GenomeRow.java"), StandardCharsets.UTF_8);
+            assertThat(row, containsString("public String getGenomeName()"));
+            assertThat(row, containsString("public static GenomeRow get(DbConnection db, String key)"));
+            // A table with no key has no lookup method, so its row class does not need the connection.
+            generator.generateAll(outDir);
+            row = FileUtils.readFileToString(new File(packageDir, "FeatureToGroupRow.java"), StandardCharsets.UTF_8);
+            assertThat(row, not(containsString("DbConnection;")));
+            // Insure all the generated classes compile.
+            JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+            File classDir = new File(outDir, "classes");
+            classDir.mkdirs();
+            String classPath = String.join(File.pathSeparator, System.getProperty("java.class.path"),
+                    codeSource(DbConnection.class), codeSource(Location.class));
+            List<String> args = new ArrayList<>(List.of("-proc:none", "-d", classDir.getPath(),
+                    "-cp", classPath));
+            for (File source : FileUtils.listFiles(packageDir, new String[] { "java" }, false))
+                args.add(source.getPath());
+            assertThat(compiler.run(null, null, null, args.toArray(new String[args.size()])), equalTo(0));
+        }
+        FileUtils.forceDelete(outDir);
+    }
+
+    /**
+     * @return the class-path entry containing a class
+     *
+     * @param type		class to locate
+     */
+    private static String codeSource(Class<?> type) {
+        try {
+            return new File(type.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+        } catch (URISyntaxException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void testRejectFile() throws IOException {
+        File rejectFile = new File("data", "rejects.ser");
+        try (RejectFileWriter writer = new RejectFileWriter(rejectFile)) {
+            Map<String, DbValue> row = new LinkedHashMap<>();
+            row.put("genome_id", new DbString("100.1"));
+            row.put("genome_name", new DbString("bad\tname\r\n"));
+            writer.reject("Genome", row, new SQLException("Error on\nmultiple\tlines."));
+            assertThat(writer.getCount(), equalTo(1));
+        }
+        List<String> lines = FileUtils.readLines(rejectFile, StandardCharsets.UTF_8);
+        assertThat(lines, contains("Genome\tError on multiple lines.\tgenome_id=100.1\tgenome_name=bad name  "));
+        FileUtils.forceDelete(rejectFile);
+    }
+
+    @Test
+    public void testSkipExisting() throws IOException, SQLException {
+        File dbFile = new File("data", "temp.ser");
+        if (dbFile.exists())
+            FileUtils.forceDelete(dbFile);
+        try (DbConnection db = new SqliteDbConnection(dbFile)) {
+            db.scriptUpdate(new File("data", "rnaseqdb.sql"));
+            try (DbLoader loader = DbLoader.batch(db, "Genome")) {
+                for (int i = 1; i <= 3; i++) {
+                    loader.set("genome_id", "100." + i);
+                    loader.set("genome_name", "genome " + i);
+                    loader.insert();
+                }
+            }
+            DbLoader loader = DbLoader.batch(db, "Genome").skipExisting();
+            try (loader) {
+                for (int i = 2; i <= 5; i++) {
+                    loader.set("genome_id", "100." + i);
+                    loader.set("genome_name", "new genome " + i);
+                    loader.insert();
+                }
+            }
+            assertThat(loader.getInsertCount(), equalTo(2L));
+            assertThat(loader.getSkipCount(), equalTo(2L));
+            assertThat(db.getKeys("Genome").size(), equalTo(5));
+            assertThat(db.getRecord("Genome", "100.2").getString("Genome.genome_name"), equalTo("genome 2"));
+        }
+    }
+
+    @Test
+    public void testStreamLoad() throws IOException, SQLException {
+        File dbFile = new File("data", "temp.ser");
+        if (dbFile.exists())
+            FileUtils.forceDelete(dbFile);
+        try (DbConnection db = new SqliteDbConnection(dbFile)) {
+            db.scriptUpdate(new File("data", "rnaseqdb.sql"));
+            long count;
+            try (DbLoader loader = DbLoader.batch(db, "Genome")) {
+                count = loader.loadAll(IntStream.rangeClosed(1, 500).boxed(),
+                        (i, row) -> row.set("genome_id", "200." + i).set("genome_name", "stream genome " + i));
+            }
+            assertThat(count, equalTo(500L));
+            assertThat(db.getKeys("Genome").size(), equalTo(500));
+            assertThat(db.getRecord("Genome", "200.17").getString("Genome.genome_name"), equalTo("stream genome 17"));
+            try (DbLoader loader = DbLoader.batch(db, "Genome")) {
+                count = loader.loadAll(IntStream.rangeClosed(501, 600).boxed(),
+                        (i, row) -> row.set("genome_id", "200." + i).setNull("genome_name"), true);
+            }
+            assertThat(count, equalTo(100L));
+            assertThat(db.getKeys("Genome").size(), equalTo(600));
+            // Verify that a mapping error is reported as an SQL exception.
+            try (DbLoader loader = DbLoader.batch(db, "Genome")) {
+                assertThrows(SQLException.class, () -> loader.loadAll(Stream.of("a", "b"),
+                        (x, row) -> row.set("no_such_field", x)));
+            }
+            // The same must be true when the error happens on a worker thread in the middle of a large stream.
+            for (int pass = 1; pass <= 5; pass++) {
+                final String prefix = "9" + pass + ".";
+                try (DbLoader loader = DbLoader.batch(db, "Genome")) {
+                    assertThrows(SQLException.class, () -> loader.loadAll(IntStream.rangeClosed(1, 20000).boxed(),
+                            (i, row) -> row.set("genome_id", prefix + i).set(i == 15000 ? "no_such_field" : "genome_name", "x")));
+                }
+            }
+            // Load some samples with dates, which are encoded on the worker threads.
+            Instant date = DbDate.instantOf(2021, 6, 15);
+            try (DbLoader loader = DbLoader.batch(db, "RnaSample")) {
+                count = loader.loadAll(IntStream.rangeClosed(1, 50).boxed(),
+                        (i, row) -> row.set("sample_id", "s" + i).set("genome_id", "200." + i).set("process_date", date)
+                                .set("read_count", i).set("base_count", i * 100).set("quality", 30.0)
+                                .set("feat_count", 1).set("feat_data", new double[] { i }).set("suspicious", false));
+            }
+            assertThat(count, equalTo(50L));
+            DbRecord sample = db.getRecord("RnaSample", "s17");
+            assertThat(sample.getDouble("RnaSample.process_date"), closeTo(new DbDate(date).getDouble(), 1e-9));
+            assertThat(sample.getInt("RnaSample.base_count"), equalTo(1700));
+        }
+    }
+
+    @Test
+    public void testLoadScheduler() throws IOException, SQLException {
+        File dbFile = new File("data", "temp.ser");
+        if (dbFile.exists())
+            FileUtils.forceDelete(dbFile);
+        try (DbConnection db = new SqliteDbConnection(dbFile)) {
+            db.scriptUpdate(new File("data", "rnaseqdb.sql"));
+            DbLoadScheduler scheduler = new DbLoadScheduler(db);
+            scheduler.add("Feature", x -> {
+                try (DbLoader loader = DbLoader.batch(x, "Feature")) {
+                    loader.set("fig_id", "fig|100.1.peg.1");
+                    loader.set("genome_id", "100.1");
+                    loader.setNull("alias");
+                    loader.setNull("gene_name");
+                    loader.set("seq_no", 1);
+                    loader.set("assignment", "hypothetical protein");
+                    loader.set("location", Location.create("100.1.con.1", 100, 200));
+                    loader.insert();
+                }
+            }).add("RnaSample", x -> {
+                try (DbLoader loader = DbLoader.batch(x, "RnaSample")) {
+                    loader.set("sample_id", "sample1");
+                    loader.set("genome_id", "100.1");
+                    loader.set("read_count", 1000);
+                    loader.set("base_count", 2000);
+                    loader.set("quality", 30.0);
+                    loader.set("feat_data", new double[] { 1.0, 2.0 });
+                    loader.set("feat_count", 2);
+                    loader.set("suspicious", false);
+                    loader.set("cluster_id", "CL1");
+                    loader.setNull("process_date");
+                    loader.setNull("pubmed");
+                    loader.setNull("project_id");
+                    loader.insert();
+                }
+            }).add("Genome", x -> {
+                try (DbLoader loader = DbLoader.batch(x, "Genome")) {
+                    loader.set("genome_id", "100.1");
+                    loader.set("genome_name", "genome 1");
+                    loader.insert();
+                }
+            }).add("SampleCluster", x -> {
+                try (DbLoader loader = DbLoader.batch(x, "SampleCluster")) {
+                    loader.set("cluster_id", "CL1");
+                    loader.set("height", 6);
+                    loader.set("score", 90.1);
+                    loader.set("numSamples", 1);
+                    loader.insert();
+                }
+            });
+            List<String> order = scheduler.getLoadOrder();
+            assertThat(order.size(), equalTo(4));
+            assertThat(order.indexOf("Genome"), lessThan(order.indexOf("Feature")));
+            assertThat(order.indexOf("Genome"), lessThan(order.indexOf("RnaSample")));
+            assertThat(order.indexOf("SampleCluster"), lessThan(order.indexOf("RnaSample")));
+            scheduler.run();
+            assertThat(db.getKeys("Feature").size(), equalTo(1));
+            assertThat(db.getKeys("RnaSample").size(), equalTo(1));
+            assertThat(db.getRecord("RnaSample", "sample1").getString("RnaSample.cluster_id"), equalTo("CL1"));
+            // After a failure, the independent tasks are still run, but the dependent ones are not.
+            AtomicBoolean otherRun = new AtomicBoolean(false);
+            AtomicBoolean childRun = new AtomicBoolean(false);
+            DbLoadScheduler failing = new DbLoadScheduler(db);
+            failing.add("Genome", x -> {
+                throw new SQLException("Genome load failed.");
+            }).add("SampleCluster", x -> otherRun.set(true)).add("Feature", x -> childRun.set(true));
+            SQLException e = assertThrows(SQLException.class, failing::run);
+            assertThat(e.getMessage(), equalTo("Genome load failed."));
+            assertThat("independent task not run", otherRun.get());
+            assertThat("dependent task was run", ! childRun.get());
+        }
+    }
+
+    @Test
+    public void testWriteQueue() throws IOException, SQLException, InterruptedException, ExecutionException {
+        File dbFile = new File("data", "temp.ser");
+        if (dbFile.exists())
+            FileUtils.forceDelete(dbFile);
+        try (DbConnection db = new SqliteDbConnection(dbFile)) {
+            db.scriptUpdate(new File("data", "rnaseqdb.sql"));
+            CountDownLatch started = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            try (DbWriteQueue queue = db.startWriteQueue(10)) {
+                // The first command holds the writer until the rest of the commands are queued, so they
+                // all go into the second group.
+                CompletableFuture<Void> first = queue.submit(x -> {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new SQLException(e);
+                    }
+                    try (DbLoader loader = DbLoader.single(x, "Genome")) {
+                        loader.set("genome_id", "100.0");
+                        loader.set("genome_name", "genome 0");
+                        loader.insert();
+                    }
+                });
+                started.await();
+                for (int i = 1; i <= 4; i++)
+                    futures.add(queue.insert("Genome", Map.of("genome_id", "100." + i, "genome_name", "genome " + i)));
+                // This insert has no name, so it must fail rather than take the name from the previous insert.
+                CompletableFuture<Void> bad = queue.insert("Genome", Map.of("genome_id", "100.9"));
+                futures.add(queue.insert("Genome", Map.of("genome_id", "100.5", "genome_name", "genome 5")));
+                futures.add(queue.update("Genome", "100.1", Map.of("genome_id", "100.1", "genome_name", "renamed")));
+                futures.add(queue.delete("Genome", "100.2"));
+                CompletableFuture<Void> rekey = queue.update("Genome", "100.3", Map.of("genome_id", "100.8"));
+                release.countDown();
+                first.get();
+                for (CompletableFuture<Void> future : futures)
+                    future.get();
+                ExecutionException e = assertThrows(ExecutionException.class, () -> bad.get());
+                assertThat(e.getCause(), instanceOf(SQLException.class));
+                assertThrows(ExecutionException.class, () -> rekey.get());
+                assertThat(queue.getCommitCount(), equalTo(2L));
+                assertThat(queue.getCommandCount(), equalTo(8L));
+            }
+            assertThat(db.getKeys("Genome"), containsInAnyOrder("100.0", "100.1", "100.3", "100.4", "100.5"));
+            assertThat(db.getRecord("Genome", "100.1").getString("Genome.genome_name"), equalTo("renamed"));
+            assertThat(db.getRecord("Genome", "100.3").getString("Genome.genome_name"), equalTo("genome 3"));
+        }
+    }
+
+    @Test
+    public void testAdaptiveBatching() throws IOException, SQLException {
+        File dbFile = new File("data", "temp.ser");
+        if (dbFile.exists())
+            FileUtils.forceDelete(dbFile);
+        try (DbConnection db = new SqliteDbConnection(dbFile)) {
+            db.scriptUpdate(new File("data", "rnaseqdb.sql"));
+            // Every row is 16 bytes, and the starting batch size is 100.  With an unreachable target latency,
+            // each batch doubles the size until it hits the maximum.
+            try (DbLoader loader = DbLoader.adaptive(db, "Genome")) {
+                loader.setAdaptive(1e6, Long.MAX_VALUE, 400);
+                loadGenomes(loader, 0, 700);
+                DbBaseUpdate.BatchStats stats = loader.getBatchStats();
+                assertThat(stats.getTable(), equalTo("Genome"));
+                assertThat(stats.isAdaptive(), equalTo(true));
+                assertThat(stats.getBatchCount(), equalTo(3));
+                assertThat(stats.getRowCount(), equalTo(700L));
+                assertThat(stats.getBatchSize(), equalTo(400));
+                assertThat(stats.getMeanBytes(), closeTo(700 * 16 / 3.0, 0.001));
+            }
+            // With a target latency of zero, each batch halves the size.
+            try (DbLoader loader = DbLoader.adaptive(db, "Genome")) {
+                loader.setAdaptive(0.0, Long.MAX_VALUE, 10000);
+                loadGenomes(loader, 1000, 175);
+                DbBaseUpdate.BatchStats stats = loader.getBatchStats();
+                assertThat(stats.getBatchCount(), equalTo(3));
+                assertThat(stats.getRowCount(), equalTo(175L));
+                assertThat(stats.getBatchSize(), equalTo(12));
+            }
+            // With a byte cap of 160, each batch is cut off at ten rows, and the size settles there.
+            try (DbLoader loader = DbLoader.adaptive(db, "Genome")) {
+                loader.setAdaptive(1e6, 160, 10000);
+                loadGenomes(loader, 2000, 50);
+                DbBaseUpdate.BatchStats stats = loader.getBatchStats();
+                assertThat(stats.getBatchCount(), equalTo(5));
+                assertThat(stats.getRowCount(), equalTo(50L));
+                assertThat(stats.getBatchSize(), equalTo(10));
+                assertThat(stats.getMeanBytes(), closeTo(160.0, 0.001));
+            }
+            assertThat(db.getKeys("Genome").size(), equalTo(925));
+        }
+    }
+
+    /**
+     * Load genome records with fixed-length fields.
+     *
+     * @param loader	loader for the genome table
+     * @param start		index of the first genome
+     * @param count		number of genomes to load
+     *
+     * @throws SQLException
+     */
+    private static void loadGenomes(DbLoader loader, int start, int count) throws SQLException {
+        for (int i = start; i < start + count; i++) {
+            loader.set("genome_id", String.format("300.%04d", i));
+            loader.set("genome_name", String.format("name%04d", i));
+            loader.insert();
+        }
+    }
+
+    @Test
+    public void testScriptResume() throws IOException, SQLException {
+        File dbFile = new File("data", "temp.ser");
+        if (dbFile.exists())
+            FileUtils.forceDelete(dbFile);
+        File scriptFile = new File("data", "script.ser");
+        try (DbConnection db = new SqliteDbConnection(dbFile)) {
+            db.scriptUpdate(new File("data", "rnaseqdb.sql"));
+            // Statement 8 is a duplicate key, so the chunk containing it fails.
+            List<String> lines = new ArrayList<>();
+            for (int i = 1; i <= 10; i++) {
+                int key = (i == 8 ? 1 : i);
+                lines.add("INSERT INTO Genome (genome_id, genome_name) VALUES ('400." + key + "', 'genome " + i + "');");
+            }
+            FileUtils.writeLines(scriptFile, lines);
+            List<Long> progress = new ArrayList<>();
+            DbScriptRunner runner = new DbScriptRunner(db).setChunkSize(3).setListener(x -> progress.add(x));
+            DbScriptRunner.ScriptException e = assertThrows(DbScriptRunner.ScriptException.class,
+                    () -> runner.run(scriptFile));
+            assertThat(e.getCommitted(), equalTo(6L));
+            assertThat(progress, contains(3L, 6L));
+            assertThat(db.getKeys("Genome").size(), equalTo(6));
+            // Fix the bad statement and resume.
+            lines.set(7, "INSERT INTO Genome (genome_id, genome_name) VALUES ('400.8', 'genome 8');");
+            FileUtils.writeLines(scriptFile, lines);
+            progress.clear();
+            long count = runner.setStartOffset(e.getCommitted()).run(scriptFile);
+            assertThat(count, equalTo(10L));
+            assertThat(progress, contains(9L, 10L));
+            assertThat(db.getKeys("Genome").size(), equalTo(10));
+        } finally {
+            FileUtils.forceDelete(scriptFile);
+        }
+    }
+
+    @Test
+    public void testKeyFilterCase() throws IOException, SQLException {
+        File dbFile = new File("data", "temp.ser");
+        if (dbFile.exists())
+            FileUtils.forceDelete(dbFile);
+        try (DbConnection db = new SqliteDbConnection(dbFile)) {
+            db.scriptUpdate(new File("data", "rnaseqdb.sql"));
+            loadGenomeNames(db, "100.1");
+            // The filter is enabled under a differently-cased name than the one the loader reports.
+            KeyFilter filter = db.enableKeyFilter("genome");
+            assertThat(filter.getKeyCount(), equalTo(1L));
+            assertThat(db.getKeyFilter("GENOME"), sameInstance(filter));
+            loadGenomeNames(db, "100.2");
+            assertThat(filter.getKeyCount(), equalTo(2L));
+            assertThat("100.2 not found", db.checkForRecord("GENOME", "100.2"));
+            assertThat("100.3 found", ! db.checkForRecord("Genome", "100.3"));
+            db.deleteRecord("genome", "100.1");
+            assertThat("100.1 found", ! db.checkForRecord("Genome", "100.1"));
+            db.disableKeyFilter("GENOME");
+            assertThat(db.getKeyFilter("Genome"), equalTo(null));
+        }
+    }
+
+    /**
+     * Load genomes with the specified IDs.
+     *
+     * @param db		database to update
+     * @param ids		IDs of the genomes to load
+     *
+     * @throws SQLException
+     */
+    private static void loadGenomeNames(DbConnection db, String... ids) throws SQLException {
+        try (DbLoader loader = DbLoader.batch(db, "Genome")) {
+            for (String id : ids) {
+                loader.set("genome_id", id);
+                loader.set("genome_name", "genome " + id);
+                loader.insert();
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentScheduler() throws IOException, SQLException {
+        File dbFile = new File("data", "temp.ser");
+        if (dbFile.exists())
+            FileUtils.forceDelete(dbFile);
+        try (DbConnection db = new SqliteDbConnection(dbFile)) {
+            db.scriptUpdate(new File("data", "rnaseqdb.sql"));
+            // SQLite only allows one writer, so the successful run uses a single thread.  Each task still runs
+            // on its own connection, after its parents have committed.
+            DbLoadScheduler scheduler = new DbLoadScheduler(db).setConcurrent(() -> new SqliteDbConnection(dbFile), 1);
+            scheduler.add("Feature", x -> {
+                assertThat(x, not(sameInstance(db)));
+                assertThat("genome not committed", x.checkForRecord("Genome", "100.1"));
+                try (DbLoader loader = DbLoader.batch(x, "Feature")) {
+                    loader.set("fig_id", "fig|100.1.peg.1");
+                    loader.set("genome_id", "100.1");
+                    loader.setNull("alias");
+                    loader.setNull("gene_name");
+                    loader.set("seq_no", 1);
+                    loader.set("assignment", "hypothetical protein");
+                    loader.set("location", Location.create("100.1:con1", 100, 200));
+                    loader.insert();
+                }
+            }).add("Genome", x -> loadGenomeNames(x, "100.1"));
+            scheduler.run();
+            assertThat(db.getKeys("Feature").size(), equalTo(1));
+            // Now verify that a failure is only reported after the independent tasks have finished, and that
+            // the tasks depending on the failed one are not run.  These tasks do not write to the database.
+            AtomicBoolean slowDone = new AtomicBoolean(false);
+            AtomicBoolean childRun = new AtomicBoolean(false);
+            scheduler = new DbLoadScheduler(db).setConcurrent(() -> new SqliteDbConnection(dbFile), 2);
+            scheduler.add("Genome", x -> {
+                throw new IllegalStateException("Genome load failed.");
+            }).add("SampleCluster", x -> {
+                try {
+                    Thread.sleep(500);
+                } catch (InterruptedException e) {
+                    throw new SQLException(e);
+                }
+                slowDone.set(true);
+            }).add("Feature", x -> childRun.set(true));
+            assertThrows(IllegalStateException.class, scheduler::run);
+            assertThat("independent task not finished", slowDone.get());
+            assertThat("dependent task was run", ! childRun.get());
+        }
+    }
+
+    @Test
+    public void testSchedulerCycle() throws IOException, SQLException {
+        File dbFile = new File("data", "temp.ser");
+        if (dbFile.exists())
+            FileUtils.forceDelete(dbFile);
+        File scriptFile = new File("data", "script.ser");
+        try (DbConnection db = new SqliteDbConnection(dbFile)) {
+            // The link metadata keeps one link per pair of tables, so the cycle must have at least three tables.
+            FileUtils.writeStringToFile(scriptFile,
+                    "CREATE TABLE CycleA (a_id VARCHAR(10) PRIMARY KEY, b_id VARCHAR(10),\n"
+                    + "    FOREIGN KEY(b_id) REFERENCES CycleB(b_id));\n"
+                    + "CREATE TABLE CycleB (b_id VARCHAR(10) PRIMARY KEY, c_id VARCHAR(10),\n"
+                    + "    FOREIGN KEY(c_id) REFERENCES CycleC(c_id));\n"
+                    + "CREATE TABLE CycleC (c_id VARCHAR(10) PRIMARY KEY, a_id VARCHAR(10),\n"
+                    + "    FOREIGN KEY(a_id) REFERENCES CycleA(a_id));\n"
+                    + "CREATE TABLE CycleD (d_id VARCHAR(10) PRIMARY KEY);\n", StandardCharsets.UTF_8);
+            db.scriptUpdate(scriptFile);
+            DbLoadScheduler scheduler = new DbLoadScheduler(db);
+            scheduler.add("CycleA", x -> { }).add("CycleB", x -> { }).add("CycleC", x -> { }).add("CycleD", x -> { });
+            SQLException e = assertThrows(SQLException.class, () -> scheduler.getLoadOrder());
+            assertThat(e.getMessage(), containsString("tables CycleA, CycleB, CycleC."));
+            assertThrows(SQLException.class, () -> scheduler.run());
+        } finally {
+            FileUtils.forceDelete(scriptFile);
+        }
+    }
+
 }